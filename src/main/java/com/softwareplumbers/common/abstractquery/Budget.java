@@ -0,0 +1,154 @@
+package com.softwareplumbers.common.abstractquery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/** Limits on the work done simplifying queries.
+ *
+ * A budget limits the number of pairwise comparisons made, the number of nodes examined, and the
+ * time taken by the simplification passes in QueryFactory.union, RangeFactory.union and
+ * Visitors.Factorizer. When any limit is reached, those passes stop simplifying and return the
+ * best result found so far; the result is still equivalent to the fully simplified result, but
+ * may be larger.
+ *
+ * A budget applies to an operation run with apply, on the calling thread:
+ *
+ * ```java
+ * Simplified<Query> union = Budget.UNLIMITED
+ *     .withComparisons(100000)
+ *     .withTimeout(50, TimeUnit.MILLISECONDS)
+ *     .apply(() -> Query.union(cubes));
+ * ```
+ *
+ * Operations run outside of apply are not limited.
+ */
+public final class Budget {
+
+    /** Budget with no limits */
+    public static final Budget UNLIMITED = new Budget(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    /** Number of comparisons between checks of the clock */
+    private static final int CLOCK_INTERVAL = 64;
+
+    private static final ThreadLocal<Usage> CURRENT = new ThreadLocal<>();
+
+    /** Work done so far within a budget */
+    private static final class Usage {
+        final Budget budget;
+        final long deadline;
+        long comparisons;
+        long nodes;
+        boolean exhausted;
+
+        Usage(Budget budget) {
+            this.budget = budget;
+            this.deadline = budget.timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + budget.timeout;
+        }
+
+        boolean isPastDeadline() {
+            return deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0;
+        }
+    }
+
+    private final long comparisons;
+    private final long nodes;
+    private final long timeout;
+
+    private Budget(long comparisons, long nodes, long timeout) {
+        this.comparisons = comparisons;
+        this.nodes = nodes;
+        this.timeout = timeout;
+    }
+
+    /** Get a budget which also limits the number of pairwise comparisons.
+     *
+     * @param comparisons Maximum number of comparisons
+     * @return A new budget
+     */
+    public Budget withComparisons(long comparisons) {
+        return new Budget(comparisons, nodes, timeout);
+    }
+
+    /** Get a budget which also limits the number of nodes examined.
+     *
+     * @param nodes Maximum number of nodes (cubes, ranges or expression terms)
+     * @return A new budget
+     */
+    public Budget withNodes(long nodes) {
+        return new Budget(comparisons, nodes, timeout);
+    }
+
+    /** Get a budget which also limits the time taken.
+     *
+     * @param timeout Maximum time
+     * @param unit Unit of timeout
+     * @return A new budget
+     */
+    public Budget withTimeout(long timeout, TimeUnit unit) {
+        return new Budget(comparisons, nodes, unit.toNanos(timeout));
+    }
+
+    /** Run an operation within this budget.
+     *
+     * Any budget already applied on this thread is suspended until the operation completes.
+     *
+     * @param <T> Type of result
+     * @param operation Operation to run
+     * @return The result of the operation, and whether it completed within the budget
+     */
+    public <T> Simplified<T> apply(Supplier<T> operation) {
+        Usage previous = CURRENT.get();
+        Usage usage = new Usage(this);
+        CURRENT.set(usage);
+        try {
+            T result = operation.get();
+            return new Simplified<>(result, !usage.exhausted);
+        } finally {
+            if (previous == null) CURRENT.remove(); else CURRENT.set(previous);
+        }
+    }
+
+    /** Record a pairwise comparison against the current budget.
+     *
+     * @return false if the budget is exhausted and the comparison should not be made
+     */
+    public static boolean tryCompare() {
+        Usage usage = CURRENT.get();
+        if (usage == null) return true;
+        if (usage.exhausted) return false;
+        usage.comparisons++;
+        if (usage.comparisons > usage.budget.comparisons
+            || usage.comparisons % CLOCK_INTERVAL == 0 && usage.isPastDeadline()) {
+            usage.exhausted = true;
+        }
+        return !usage.exhausted;
+    }
+
+    /** Record nodes examined against the current budget.
+     *
+     * @param count Number of nodes
+     * @return false if the budget is exhausted and the nodes should not be examined
+     */
+    public static boolean tryNodes(int count) {
+        Usage usage = CURRENT.get();
+        if (usage == null) return true;
+        if (usage.exhausted) return false;
+        usage.nodes += count;
+        if (usage.nodes > usage.budget.nodes || usage.isPastDeadline()) usage.exhausted = true;
+        return !usage.exhausted;
+    }
+
+    /** Check whether a budget is applied on the current thread. */
+    static boolean isActive() {
+        return CURRENT.get() != null;
+    }
+
+    /** Check whether the current budget is exhausted.
+     *
+     * @return true if some operation has been abandoned because the current budget ran out
+     */
+    public static boolean isExhausted() {
+        Usage usage = CURRENT.get();
+        return usage != null && usage.exhausted;
+    }
+}
@@ -0,0 +1,362 @@
+package com.softwareplumbers.common.abstractquery;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/** Immutable map from dimension name to constraint, used to hold the constraints of a Query.Impl.
+ *
+ * Updates (with and without) return a new map which shares structure with the old one, rather than
+ * copying it. Small maps are held as a sorted array; larger maps as a hash array mapped trie, keyed
+ * on the hash code of the dimension name. Lookups compare hash codes and then names with equals.
+ *
+ * Iteration is always in the natural order of the dimension names, as for a TreeMap.
+ *
+ * @param <V> Type of constraint
+ */
+final class ConstraintMap<V> extends AbstractMap<String, V> {
+
+    /** Largest map held as a sorted array */
+    private static final int MAX_ARRAY_SIZE = 8;
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final ConstraintMap<?> EMPTY = new ConstraintMap<>(new String[0], new Object[0]);
+
+    /** Entries with the same hash code, or a single entry */
+    private static final class Leaf {
+        final int hash;
+        final String[] keys;
+        final Object[] values;
+
+        Leaf(int hash, String[] keys, Object[] values) {
+            this.hash = hash;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        Leaf(String key, Object value) {
+            this(key.hashCode(), new String[] { key }, new Object[] { value });
+        }
+
+        int indexOf(String key) {
+            for (int i = 0; i < keys.length; i++) if (keys[i].equals(key)) return i;
+            return -1;
+        }
+    }
+
+    /** Trie node; slots hold either a Node or a Leaf for each bit set in bitmap */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    private final int size;
+    // Either a sorted array of keys and values...
+    private final String[] keys;
+    private final Object[] values;
+    // ...or the root of a trie
+    private final Node root;
+    // Entries of the trie in key order, computed on first iteration
+    private volatile Leaf sorted;
+
+    private ConstraintMap(String[] keys, Object[] values) {
+        this.size = keys.length;
+        this.keys = keys;
+        this.values = values;
+        this.root = null;
+    }
+
+    private ConstraintMap(Node root, int size) {
+        this.size = size;
+        this.keys = null;
+        this.values = null;
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> ConstraintMap<V> empty() {
+        return (ConstraintMap<V>)EMPTY;
+    }
+
+    public static <V> ConstraintMap<V> of(String key, V value) {
+        return new ConstraintMap<>(new String[] { key }, new Object[] { value });
+    }
+
+    /** Get a constraint map with the same entries as some other map.
+     *
+     * @param map Map to copy
+     * @return map itself if it is already a ConstraintMap, otherwise a new ConstraintMap
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> ConstraintMap<V> from(Map<String, ? extends V> map) {
+        if (map instanceof ConstraintMap) return (ConstraintMap<V>)map;
+        ConstraintMap<V> result = empty();
+        for (Map.Entry<String, ? extends V> entry : map.entrySet()) result = result.with(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find((String)key) != NOT_FOUND;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (!(key instanceof String)) return null;
+        Object value = find((String)key);
+        return value == NOT_FOUND ? null : (V)value;
+    }
+
+    private static final Object NOT_FOUND = new Object();
+
+    private Object find(String key) {
+        if (root == null) {
+            for (int i = 0; i < size; i++) if (keys[i].equals(key)) return values[i];
+            return NOT_FOUND;
+        }
+        int hash = key.hashCode();
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) return NOT_FOUND;
+            Object slot = node.slots[node.index(bit)];
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf)slot;
+                int index = leaf.hash == hash ? leaf.indexOf(key) : -1;
+                return index < 0 ? NOT_FOUND : leaf.values[index];
+            }
+            node = (Node)slot;
+        }
+    }
+
+    /** Get a map with an added or replaced entry.
+     *
+     * @param key Dimension name
+     * @param value Constraint
+     * @return A new map, sharing structure with this map
+     */
+    public ConstraintMap<V> with(String key, V value) {
+        Object existing = find(key);
+        if (existing == value) return this;
+        int newSize = existing == NOT_FOUND ? size + 1 : size;
+        if (root == null) {
+            if (newSize <= MAX_ARRAY_SIZE) return withInArray(key, value);
+            Node trie = new Node(0, new Object[0]);
+            for (int i = 0; i < size; i++) trie = put(trie, new Leaf(keys[i], values[i]), 0);
+            return new ConstraintMap<>(put(trie, new Leaf(key, value), 0), newSize);
+        }
+        return new ConstraintMap<>(put(root, new Leaf(key, value), 0), newSize);
+    }
+
+    private ConstraintMap<V> withInArray(String key, V value) {
+        int position = 0;
+        while (position < size && keys[position].compareTo(key) < 0) position++;
+        if (position < size && keys[position].equals(key)) {
+            Object[] newValues = values.clone();
+            newValues[position] = value;
+            return new ConstraintMap<>(keys, newValues);
+        }
+        String[] newKeys = new String[size + 1];
+        Object[] newValues = new Object[size + 1];
+        System.arraycopy(keys, 0, newKeys, 0, position);
+        System.arraycopy(values, 0, newValues, 0, position);
+        newKeys[position] = key;
+        newValues[position] = value;
+        System.arraycopy(keys, position, newKeys, position + 1, size - position);
+        System.arraycopy(values, position, newValues, position + 1, size - position);
+        return new ConstraintMap<>(newKeys, newValues);
+    }
+
+    private static Object[] insert(Object[] slots, int index, Object slot) {
+        Object[] result = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, result, 0, index);
+        result[index] = slot;
+        System.arraycopy(slots, index, result, index + 1, slots.length - index);
+        return result;
+    }
+
+    private static Object[] replace(Object[] slots, int index, Object slot) {
+        Object[] result = slots.clone();
+        result[index] = slot;
+        return result;
+    }
+
+    private static Object[] delete(Object[] slots, int index) {
+        Object[] result = new Object[slots.length - 1];
+        System.arraycopy(slots, 0, result, 0, index);
+        System.arraycopy(slots, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    /** Add a single-entry leaf to a trie node. */
+    private static Node put(Node node, Leaf leaf, int shift) {
+        int bit = 1 << ((leaf.hash >>> shift) & MASK);
+        int index = node.index(bit);
+        if ((node.bitmap & bit) == 0) return new Node(node.bitmap | bit, insert(node.slots, index, leaf));
+        Object slot = node.slots[index];
+        if (slot instanceof Node) return new Node(node.bitmap, replace(node.slots, index, put((Node)slot, leaf, shift + BITS)));
+        Leaf existing = (Leaf)slot;
+        if (existing.hash == leaf.hash) {
+            int position = existing.indexOf(leaf.keys[0]);
+            Leaf merged = position >= 0
+                ? new Leaf(existing.hash, existing.keys, replace(existing.values, position, leaf.values[0]))
+                : new Leaf(existing.hash,
+                    Arrays.copyOf(insert(existing.keys, existing.keys.length, leaf.keys[0]), existing.keys.length + 1, String[].class),
+                    insert(existing.values, existing.values.length, leaf.values[0]));
+            return new Node(node.bitmap, replace(node.slots, index, merged));
+        }
+        Node child = put(put(new Node(0, new Object[0]), existing, shift + BITS), leaf, shift + BITS);
+        return new Node(node.bitmap, replace(node.slots, index, child));
+    }
+
+    /** Get a map without some entry.
+     *
+     * @param key Dimension name
+     * @return A new map, sharing structure with this map, or this map if key is not present
+     */
+    public ConstraintMap<V> without(String key) {
+        if (find(key) == NOT_FOUND) return this;
+        if (size == 1) return empty();
+        if (root == null) {
+            int position = 0;
+            while (!keys[position].equals(key)) position++;
+            return new ConstraintMap<>(
+                Arrays.copyOf(delete(keys, position), size - 1, String[].class),
+                delete(values, position));
+        }
+        if (size - 1 <= MAX_ARRAY_SIZE) {
+            ConstraintMap<V> result = empty();
+            for (Map.Entry<String, V> entry : entrySet())
+                if (!entry.getKey().equals(key)) result = result.with(entry.getKey(), entry.getValue());
+            return result;
+        }
+        return new ConstraintMap<>((Node)remove(root, key.hashCode(), key, 0), size - 1);
+    }
+
+    /** Remove a key known to be present from a trie node.
+     *
+     * @return the new node, a Leaf if only a single leaf remains, or null if the node is empty
+     */
+    private static Object remove(Node node, int hash, String key, int shift) {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int index = node.index(bit);
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Leaf) {
+            Leaf leaf = (Leaf)slot;
+            int position = leaf.indexOf(key);
+            replacement = leaf.keys.length == 1 ? null : new Leaf(leaf.hash,
+                Arrays.copyOf(delete(leaf.keys, position), leaf.keys.length - 1, String[].class),
+                delete(leaf.values, position));
+        } else {
+            replacement = remove((Node)slot, hash, key, shift + BITS);
+        }
+        Object[] slots = replacement == null ? delete(node.slots, index) : replace(node.slots, index, replacement);
+        int bitmap = replacement == null ? node.bitmap & ~bit : node.bitmap;
+        if (shift > 0 && slots.length == 1 && slots[0] instanceof Leaf) return slots[0];
+        if (slots.length == 0) return null;
+        return new Node(bitmap, slots);
+    }
+
+    private static void collect(Node node, Leaf result, int[] count) {
+        for (Object slot : node.slots) {
+            if (slot instanceof Node) {
+                collect((Node)slot, result, count);
+            } else {
+                Leaf leaf = (Leaf)slot;
+                System.arraycopy(leaf.keys, 0, result.keys, count[0], leaf.keys.length);
+                System.arraycopy(leaf.values, 0, result.values, count[0], leaf.keys.length);
+                count[0] += leaf.keys.length;
+            }
+        }
+    }
+
+    /** Get the entries of the trie in key order. */
+    private Leaf sorted() {
+        Leaf result = sorted;
+        if (result == null) {
+            Leaf entries = new Leaf(0, new String[size], new Object[size]);
+            collect(root, entries, new int[1]);
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> entries.keys[a].compareTo(entries.keys[b]));
+            result = new Leaf(0, new String[size], new Object[size]);
+            for (int i = 0; i < size; i++) {
+                result.keys[i] = entries.keys[order[i]];
+                result.values[i] = entries.values[order[i]];
+            }
+            sorted = result;
+        }
+        return result;
+    }
+
+    private String[] sortedKeys() {
+        return root == null ? keys : sorted().keys;
+    }
+
+    private Object[] sortedValues() {
+        return root == null ? values : sorted().values;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super String, ? super V> action) {
+        String[] sortedKeys = sortedKeys();
+        Object[] sortedValues = sortedValues();
+        for (int i = 0; i < size; i++) action.accept(sortedKeys[i], (V)sortedValues[i]);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new java.util.AbstractSet<String>() {
+            @Override public int size() { return size; }
+            @Override public boolean contains(Object key) { return containsKey(key); }
+            @Override public Iterator<String> iterator() {
+                return Arrays.asList(sortedKeys()).iterator();
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new java.util.AbstractSet<Map.Entry<String, V>>() {
+            @Override public int size() { return size; }
+            @Override public Iterator<Map.Entry<String, V>> iterator() {
+                String[] sortedKeys = sortedKeys();
+                Object[] sortedValues = sortedValues();
+                return new Iterator<Map.Entry<String, V>>() {
+                    int next = 0;
+                    @Override public boolean hasNext() { return next < size; }
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Map.Entry<String, V> next() {
+                        if (next >= size) throw new NoSuchElementException();
+                        Map.Entry<String, V> entry = new AbstractMap.SimpleImmutableEntry<>(sortedKeys[next], (V)sortedValues[next]);
+                        next++;
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -2,6 +2,7 @@ package com.softwareplumbers.common.abstractquery;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -35,6 +36,14 @@ public abstract class Intersection<T extends JsonValue, U extends AbstractSet<T,
 		return getFactory().intersect(result);
 	}
 
+	/** Get the members of this intersection.
+	 * 
+	 * @return an unmodifiable list of the members of this intersection
+	 */
+	public List<U> getMembers() {
+		return Collections.unmodifiableList(data);
+	}
+	
 	@SuppressWarnings("unchecked") // Because every instance of Intersection<T,U> is a U
 	@Override
 	public U union(U other) {
@@ -0,0 +1,328 @@
+package com.softwareplumbers.common.abstractquery;
+
+import com.softwareplumbers.common.immutablelist.QualifiedName;
+import com.softwareplumbers.common.jsonview.JsonViewFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/** A parameterized query prepared for repeated binding.
+ *
+ * Preparing a query records where each parameter appears in it, and assigns each distinct parameter a
+ * position. Binding values to a prepared query rebuilds only the constraints which contain a parameter;
+ * constraints without parameters are shared with the template.
+ *
+ * A parameter which replaces the value of an equality or an open range is substituted directly. Where a
+ * parameter is a bound of a 'between' range, or a member of a union, the affected range or union is
+ * simplified again after binding, since the bound values may make it empty or make one member contain
+ * another. A union of cubes which could never contain each other, whatever the values bound, is not
+ * simplified again.
+ *
+ * ```java
+ * PreparedQuery prepared = PreparedQuery.from(Query.fromJson("{ 'x': { '$': 'x' }, 'y': [{ '$': 'min' }, null] }"));
+ * Query query = prepared.bind(3, 10); // same as getTemplate().bind("{ 'x': 3, 'min': 10 }")
+ * ```
+ *
+ * A prepared query may also be bound to many sets of values at once with bindAll.
+ *
+ * A prepared query is immutable and may be bound concurrently from several threads.
+ */
+public final class PreparedQuery {
+
+    /** Rebuilds part of the template with the given parameter values */
+    @FunctionalInterface
+    private interface Binder<T> {
+        T bind(JsonValue[] values);
+    }
+
+    private final Query template;
+    private final List<String> parameters = new ArrayList<>();
+    /** For each parameter, the dimension constrained to equal it at each place it appears (null if not an equality) */
+    private final List<List<QualifiedName>> occurrences = new ArrayList<>();
+    private final Binder<Query> binder;
+
+    private PreparedQuery(Query template) {
+        this.template = template;
+        this.binder = compileQuery(template, QualifiedName.ROOT);
+    }
+
+    /** Prepare a query for binding.
+     *
+     * @param template Query containing parameters
+     * @return A prepared query
+     */
+    public static PreparedQuery from(Query template) {
+        return new PreparedQuery(template);
+    }
+
+    /** Get the query from which this query was prepared. */
+    public Query getTemplate() {
+        return template;
+    }
+
+    /** Get the names of the parameters of this query, in the order in which values are bound.
+     *
+     * @return an unmodifiable list of parameter names
+     */
+    public List<String> getParameters() {
+        return Collections.unmodifiableList(parameters);
+    }
+
+    /** Bind values to parameters by position.
+     *
+     * A null value leaves the parameter at that position unbound (use JsonValue.NULL to bind a null value).
+     *
+     * @param values A value for each parameter, in the order given by getParameters
+     * @return The query with the values substituted for parameters; Query.EMPTY if nothing can match it
+     */
+    public Query bind(JsonValue... values) {
+        if (values.length != parameters.size())
+            throw new IllegalArgumentException(String.format("Expected %d parameter values, got %d", parameters.size(), values.length));
+        return binder == null ? template : binder.bind(values);
+    }
+
+    /** Bind values to parameters by position.
+     *
+     * Values may be JsonValues, Strings, Numbers or Booleans. A null value leaves the parameter at that
+     * position unbound.
+     *
+     * @param values A value for each parameter, in the order given by getParameters
+     * @return The query with the values substituted for parameters; Query.EMPTY if nothing can match it
+     */
+    public Query bind(Object... values) {
+        JsonValue[] json = new JsonValue[values.length];
+        for (int i = 0; i < values.length; i++) json[i] = toJson(values[i]);
+        return bind(json);
+    }
+
+    /** Bind values to parameters by name.
+     *
+     * Equivalent to getTemplate().bind(parameters), except that Query.EMPTY is returned if nothing can match
+     * the bound query.
+     *
+     * @param parameters A map of parameter names to parameter values
+     * @return The query with any matching parameters substituted with the given values
+     */
+    public Query bind(JsonObject parameters) {
+        JsonValue[] values = new JsonValue[this.parameters.size()];
+        for (int i = 0; i < values.length; i++) values[i] = parameters.get(this.parameters.get(i));
+        return bind(values);
+    }
+
+    /** Bind many sets of values to parameters by name, and take the union of the results.
+     *
+     * Where only one parameter has different values in different sets, and that parameter appears
+     * once in the query, as the value of an equality constraint on some dimension, the result is the
+     * query with that dimension constrained to the union of the values (an 'in' list). Otherwise, each
+     * set of values is bound in turn and the union of the bound queries is simplified once.
+     *
+     * @param bindings Maps of parameter names to parameter values
+     * @return A query equivalent to the union of binding the query to each set of values
+     */
+    public Query bindAll(List<JsonObject> bindings) {
+        if (bindings.isEmpty()) return Query.EMPTY;
+        List<JsonValue[]> rows = new ArrayList<>(bindings.size());
+        for (JsonObject binding : bindings) {
+            JsonValue[] values = new JsonValue[parameters.size()];
+            for (int i = 0; i < values.length; i++) values[i] = binding.get(parameters.get(i));
+            rows.add(values);
+        }
+        JsonValue[] first = rows.get(0);
+        int varying = -1;
+        for (int slot = 0; slot < parameters.size(); slot++) {
+            for (JsonValue[] row : rows) {
+                if (!Objects.equals(row[slot], first[slot])) {
+                    varying = varying < 0 ? slot : Integer.MAX_VALUE;
+                    break;
+                }
+            }
+        }
+        if (varying < 0) return bind(first);
+        if (varying != Integer.MAX_VALUE && occurrences.get(varying).size() == 1 && occurrences.get(varying).get(0) != null) {
+            Range values = getValues(rows, varying);
+            if (values != null) {
+                JsonValue[] common = first.clone();
+                common[varying] = null;
+                Query query = bind(common);
+                return query.isEmpty() ? query : query.setConstraint(occurrences.get(varying).get(0), values);
+            }
+        }
+        List<Query> result = new ArrayList<>(rows.size());
+        for (JsonValue[] row : rows) result.add(bind(row));
+        return Query.union(result);
+    }
+
+    /** Get the union of the values bound to some parameter, or null if it is not bound in every row. */
+    private static Range getValues(List<JsonValue[]> rows, int slot) {
+        Map<Object, Range> distinct = new LinkedHashMap<>();
+        List<Range> values = new ArrayList<>(rows.size());
+        boolean keyed = true;
+        for (JsonValue[] row : rows) {
+            if (row[slot] == null) return null;
+            Range value = Range.equals(row[slot]);
+            values.add(value);
+            Object key = keyed ? UnionIndex.getKey(value) : null;
+            if (key == null) keyed = false; else distinct.putIfAbsent(key, value);
+        }
+        if (!keyed) return Range.union(values);
+        // Equalities on different values never merge, so there is nothing further to simplify
+        return distinct.size() == 1
+            ? distinct.values().iterator().next()
+            : new Range.RangeUnion(new ArrayList<>(distinct.values()));
+    }
+
+    private static JsonValue toJson(Object value) {
+        if (value == null || value instanceof JsonValue) return (JsonValue)value;
+        if (value instanceof String) return JsonViewFactory.asJson((String)value);
+        if (value instanceof Number) return JsonViewFactory.asJson((Number)value);
+        if (value instanceof Boolean) return JsonViewFactory.asJson((Boolean)value);
+        throw new IllegalArgumentException("Can't bind parameter to " + value.getClass().getName());
+    }
+
+    /** Get the position of a parameter, assigning it the next position if it has none.
+     *
+     * @param param Parameter
+     * @param dimension Dimension constrained to equal the parameter, or null
+     */
+    private int getSlot(JsonValue param, QualifiedName dimension) {
+        String name = Param.getKey(param);
+        int slot = parameters.indexOf(name);
+        if (slot < 0) {
+            slot = parameters.size();
+            parameters.add(name);
+            occurrences.add(new ArrayList<>());
+        }
+        occurrences.get(slot).add(dimension);
+        return slot;
+    }
+
+    /** Check whether the members of a union could never contain each other, whatever values are bound. */
+    private static boolean isFixed(List<Query> members) {
+        UnionIndex<Query> index = new UnionIndex<>(members);
+        for (Query member : members) {
+            List<Query> containing = index.findContaining(member);
+            if (containing.size() != 1 || containing.get(0) != member) return false;
+        }
+        return true;
+    }
+
+    private Binder<Query> compileQuery(Query query, QualifiedName path) {
+        if (query instanceof Query.Impl) {
+            List<String> dimensions = new ArrayList<>();
+            List<Binder<AbstractSet<? extends JsonValue, ?>>> binders = new ArrayList<>();
+            for (String dimension : query.getConstraints()) {
+                Binder<AbstractSet<? extends JsonValue, ?>> binder = compileSet(query.getConstraint(dimension), path == null ? null : path.add(dimension));
+                if (binder != null) {
+                    dimensions.add(dimension);
+                    binders.add(binder);
+                }
+            }
+            if (binders.isEmpty()) return null;
+            return values -> {
+                Query result = query;
+                for (int i = 0; i < binders.size(); i++) {
+                    AbstractSet<? extends JsonValue, ?> constraint = binders.get(i).bind(values);
+                    if (constraint.isEmpty()) return Query.EMPTY;
+                    if (constraint != query.getConstraint(dimensions.get(i))) result = result.setConstraint(dimensions.get(i), constraint);
+                }
+                return result;
+            };
+        }
+        if (query instanceof Query.UnionCube) {
+            List<Query> members = ((Query.UnionCube)query).getMembers();
+            List<Binder<Query>> binders = new ArrayList<>(members.size());
+            boolean parameterized = false;
+            for (Query member : members) {
+                Binder<Query> binder = compileQuery(member, null);
+                parameterized |= binder != null;
+                binders.add(binder);
+            }
+            if (!parameterized) return null;
+            boolean fixed = isFixed(members);
+            return values -> {
+                List<Query> result = new ArrayList<>(members.size());
+                boolean changed = false;
+                boolean simplified = fixed;
+                for (int i = 0; i < members.size(); i++) {
+                    Query member = members.get(i);
+                    Query bound = binders.get(i) == null ? member : binders.get(i).bind(values);
+                    changed |= bound != member;
+                    simplified &= bound.getConstraints().size() == member.getConstraints().size();
+                    result.add(bound);
+                }
+                if (!changed) return query;
+                return simplified ? new Query.UnionCube(result) : Query.union(result);
+            };
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Binder<AbstractSet<? extends JsonValue, ?>> compileSet(AbstractSet<? extends JsonValue, ?> constraint, QualifiedName path) {
+        if (constraint instanceof Query) return (Binder)compileQuery((Query)constraint, path);
+        if (constraint instanceof Range) return (Binder)compileRange((Range)constraint, path);
+        if (constraint instanceof ArrayConstraint.Has) {
+            Binder<AbstractSet<? extends JsonValue, ?>> match = compileSet(((ArrayConstraint.Has)constraint).getMatch(), null);
+            if (match == null) return null;
+            return values -> new ArrayConstraint.Has(match.bind(values));
+        }
+        return null;
+    }
+
+    private Binder<Range> compileRange(Range range, QualifiedName path) {
+        if (range instanceof Range.Equals) {
+            if (!Param.isParam(((Range.Equals)range).value)) return null;
+            int slot = getSlot(((Range.Equals)range).value, path);
+            return values -> values[slot] == null ? range : new Range.Equals(values[slot]);
+        }
+        if (range instanceof Range.OpenRange) {
+            Range.OpenRange open = (Range.OpenRange)range;
+            if (!Param.isParam(open.value)) return null;
+            int slot = getSlot(open.value, null);
+            return values -> values[slot] == null ? range : Range.getRange(open.operator, values[slot]);
+        }
+        if (range instanceof Range.Between) {
+            Range.Between between = (Range.Between)range;
+            Binder<Range> lower = compileRange(between.lower_bound, null);
+            Binder<Range> upper = compileRange(between.upper_bound, null);
+            if (lower == null && upper == null) return null;
+            return values -> {
+                Range lower_bound = lower == null ? between.lower_bound : lower.bind(values);
+                Range upper_bound = upper == null ? between.upper_bound : upper.bind(values);
+                if (lower_bound == between.lower_bound && upper_bound == between.upper_bound) return range;
+                return lower_bound.intersect(upper_bound);
+            };
+        }
+        if (range instanceof Range.RangeUnion || range instanceof Range.RangeIntersection) {
+            List<Range> members = range instanceof Range.RangeUnion
+                ? ((Range.RangeUnion)range).getMembers()
+                : ((Range.RangeIntersection)range).getMembers();
+            List<Binder<Range>> binders = new ArrayList<>(members.size());
+            boolean parameterized = false;
+            for (Range member : members) {
+                Binder<Range> binder = compileRange(member, null);
+                parameterized |= binder != null;
+                binders.add(binder);
+            }
+            if (!parameterized) return null;
+            boolean union = range instanceof Range.RangeUnion;
+            return values -> {
+                List<Range> result = new ArrayList<>(members.size());
+                boolean changed = false;
+                for (int i = 0; i < members.size(); i++) {
+                    Range bound = binders.get(i) == null ? members.get(i) : binders.get(i).bind(values);
+                    changed |= bound != members.get(i);
+                    result.add(bound);
+                }
+                if (!changed) return range;
+                return union ? Range.union(result) : Range.intersect(result);
+            };
+        }
+        return null;
+    }
+}
@@ -0,0 +1,125 @@
+package com.softwareplumbers.common.abstractquery;
+
+import com.softwareplumbers.common.abstractquery.visitor.Capabilities;
+import com.softwareplumbers.common.abstractquery.visitor.Capabilities.Construct;
+import java.util.ArrayList;
+import java.util.List;
+import javax.json.JsonValue;
+
+/** A query split into a part which can be evaluated by a backend and a residual to be evaluated locally.
+ *
+ * The pushed query contains every item contained by the original query, but is expressed only
+ * in constructs supported by the backend. The residual query is then applied to the items returned
+ * by the backend; the items contained by both queries are exactly those contained by the original.
+ *
+ * Constructs which cannot be pushed are replaced by the tightest supported constraint available;
+ * a 'like' expression with a fixed prefix is pushed as a range of strings starting with that prefix,
+ * while the exact expression remains in the residual.
+ */
+public final class Pushdown {
+
+    /** Query to be evaluated by the backend */
+    public final Query pushed;
+    /** Query to be evaluated locally, with containsItem, on items returned by the backend */
+    public final Query residual;
+
+    private Pushdown(Query pushed, Query residual) {
+        this.pushed = pushed;
+        this.residual = residual;
+    }
+
+    /** Check whether the whole query can be evaluated by the backend.
+     *
+     * @return true if there is no residual query
+     */
+    public boolean isExact() {
+        return residual.isUnconstrained();
+    }
+
+    @Override
+    public String toString() {
+        return pushed + " / " + residual;
+    }
+
+    /** Get a range containing every value in a range, expressed only in supported constructs.
+     *
+     * @return the range itself, if it is already supported
+     */
+    private static Range push(Range range, Capabilities capabilities) {
+        if (range instanceof Range.Like)
+            return capabilities.supports(Construct.LIKE) ? range : ((Range.Like)range).getBounds();
+        if (range instanceof Range.RangeUnion || range instanceof Range.RangeIntersection) {
+            List<Range> members = range instanceof Range.RangeUnion
+                ? ((Range.RangeUnion)range).getMembers()
+                : ((Range.RangeIntersection)range).getMembers();
+            List<Range> pushed = new ArrayList<>();
+            boolean changed = false;
+            for (Range member : members) {
+                Range pushedMember = push(member, capabilities);
+                changed |= pushedMember != member;
+                pushed.add(pushedMember);
+            }
+            if (!changed) return range;
+            return range instanceof Range.RangeUnion ? Range.union(pushed) : Range.intersect(pushed);
+        }
+        return range;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static Pushdown split(Query.Impl query, Capabilities capabilities) {
+        Query pushed = query;
+        Query residual = Query.UNBOUNDED;
+        for (String dimension : query.getConstraints()) {
+            AbstractSet constraint = query.getConstraint(dimension);
+            AbstractSet pushedConstraint = constraint;
+            AbstractSet residualConstraint = constraint;
+            if (constraint instanceof Range) {
+                pushedConstraint = push((Range)constraint, capabilities);
+            } else if (constraint instanceof Query) {
+                if (capabilities.supports(Construct.SUBQUERY)) {
+                    Pushdown sub = split((Query)constraint, capabilities);
+                    pushedConstraint = sub.pushed;
+                    residualConstraint = sub.residual;
+                } else {
+                    pushedConstraint = Range.UNBOUNDED;
+                }
+            } else if (constraint instanceof ArrayConstraint.Has) {
+                if (capabilities.supports(Construct.HAS)) {
+                    AbstractSet match = ((ArrayConstraint.Has)constraint).getMatch();
+                    AbstractSet pushedMatch = match instanceof Range ? push((Range)match, capabilities)
+                        : match instanceof Query ? split((Query)match, capabilities).pushed
+                        : match;
+                    if (pushedMatch != match) pushedConstraint = ArrayConstraint.match(pushedMatch);
+                } else {
+                    pushedConstraint = Range.UNBOUNDED;
+                }
+            }
+            if (pushedConstraint != constraint) {
+                pushed = pushed.setConstraint(dimension, (AbstractSet<? extends JsonValue, ?>)pushedConstraint);
+                residual = residual.setConstraint(dimension, (AbstractSet<? extends JsonValue, ?>)residualConstraint);
+            }
+        }
+        return new Pushdown(pushed, residual);
+    }
+
+    /** Split a query into a part which can be evaluated by a backend and a residual.
+     *
+     * @param query Query to split
+     * @param capabilities Query constructs supported by the backend
+     * @return A pushed query containing every item in query, and a residual which selects exactly the items in query from those contained by the pushed query
+     */
+    public static Pushdown split(Query query, Capabilities capabilities) {
+        if (query instanceof Query.Impl) return split((Query.Impl)query, capabilities);
+        if (query instanceof Query.UnionCube) {
+            List<Query> pushed = new ArrayList<>();
+            boolean exact = true;
+            for (Query member : ((Query.UnionCube)query).getMembers()) {
+                Pushdown split = split(member, capabilities);
+                pushed.add(split.pushed);
+                exact &= split.isExact();
+            }
+            return exact ? new Pushdown(query, Query.UNBOUNDED) : new Pushdown(Query.union(pushed), query);
+        }
+        return new Pushdown(query, Query.UNBOUNDED);
+    }
+}
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 import javax.json.JsonArray;
@@ -19,6 +20,8 @@ import java.util.function.Predicate;
 
 import javax.json.JsonObject;
 import javax.json.JsonValue.ValueType;
+import com.softwareplumbers.common.abstractquery.visitor.Capabilities;
+import com.softwareplumbers.common.abstractquery.visitor.NormalForm;
 import com.softwareplumbers.common.abstractquery.visitor.Visitor;
 import com.softwareplumbers.common.abstractquery.visitor.Visitors;
 import java.util.stream.Stream;
@@ -85,6 +88,17 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 		return bind(JsonUtil.parseObject(json));
 	}
 	
+	/** Bind many sets of values to parameters, and take the union of the results.
+	 * 
+	 * The structure of this query is analysed once; see PreparedQuery.bindAll.
+	 * 
+	 * @param bindings Maps of parameter names to parameter values
+	 * @return A query equivalent to the union of binding this query to each set of values
+	 */
+	default Query bindAll(List<JsonObject> bindings) {
+		return PreparedQuery.from(this).bindAll(bindings);
+	}
+	
 	default Query intersect(String json) {
 		return intersect(Query.fromJson(json));
 	}
@@ -96,12 +110,108 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 	default Factory<JsonObject, Query> getFactory() {
 		return FACTORY;
 	}
+	
+	/** Get the values in this query which are not in some other query.
+	 * 
+	 * Used to find the additional data needed when a query is widened; if results for other are already
+	 * available, only results for the difference need to be fetched.
+	 * 
+	 * @param other query to remove
+	 * @return A union of disjoint cubes containing items in this query but not in other, or null if this cannot be determined.
+	 */
+	default Query difference(Query other) {
+		return FACTORY.difference(this, other);
+	}
+	
+	/** Rewrite this query as an equivalent union of cubes which do not intersect each other.
+	 * 
+	 * Allows each cube to be fetched separately (for example, in parallel) without any item being fetched twice.
+	 * 
+	 * @param maxCubes maximum number of cubes permitted in the result
+	 * @return An equivalent union of disjoint cubes, or null if this cannot be determined within maxCubes.
+	 */
+	default Query toDisjointUnion(int maxCubes) {
+		return FACTORY.toDisjointUnion(this, maxCubes);
+	}
+
+	/** Rewrite this query as an equivalent union of cubes which do not intersect each other.
+	 * 
+	 * @return An equivalent union of disjoint cubes, or null if this cannot be determined.
+	 */
+	default Query toDisjointUnion() {
+		return toDisjointUnion(Integer.MAX_VALUE);
+	}
+	
+	/** Split this query into disjoint parts along some dimension.
+	 * 
+	 * The range of values permitted for the dimension is cut into slices at points chosen by
+	 * splitPoints, and each slice is intersected with this query. The parts can be executed 
+	 * concurrently; the union of the parts is equal to this query.
+	 * 
+	 * @param dimension Dimension along which to split
+	 * @param parts Number of parts required
+	 * @param splitPoints Provides the points at which to split the dimension
+	 * @return At most parts disjoint, non-empty queries.
+	 */
+	default List<Query> split(QualifiedName dimension, int parts, SplitPointProvider splitPoints) {
+		return FACTORY.split(this, dimension, parts, splitPoints);
+	}
+	
+	/** Remove any constraints which are already implied by another query.
+	 * 
+	 * For example, {tenant:'a', day:['2024-01-01','2024-02-01']}.residual({tenant:'a', day:'2024-01-05'})
+	 * is unbounded, since every item in the partition described by the second query is contained by the first.
+	 * 
+	 * @param implied Query whose constraints are known to hold
+	 * @return A query which has the same intersection with implied as this query
+	 */
+	default Query residual(Query implied) {
+		return FACTORY.residual(this, implied);
+	}
+	
+	/** Split this query into a part which can be evaluated by a backend and a residual.
+	 * 
+	 * Typically capabilities will be obtained from the formatter used to generate backend queries
+	 * (see Formatter.getCapabilities).
+	 * 
+	 * @param capabilities Query constructs supported by the backend
+	 * @return A query to send to the backend, and a residual query to apply to the items it returns
+	 */
+	default Pushdown pushdown(Capabilities capabilities) {
+		return Pushdown.split(this, capabilities);
+	}
+	
+	/** Convert this query to disjunctive normal form (an OR of ANDs).
+	 * 
+	 * Terms are multiplied out only while the result would contain no more than limit comparisons;
+	 * beyond that, subexpressions are left factored.
+	 * 
+	 * @param limit Maximum number of comparisons in the result
+	 * @return An equivalent expression tree, and whether it is fully in normal form
+	 */
+	default Simplified<Visitors.Node> toDNF(long limit) {
+		NormalForm result = NormalForm.toDNF(this, limit);
+		return new Simplified<>(result.node, result.complete);
+	}
+	
+	/** Convert this query to conjunctive normal form (an AND of ORs).
+	 * 
+	 * Terms are multiplied out only while the result would contain no more than limit comparisons;
+	 * beyond that, subexpressions are left factored.
+	 * 
+	 * @param limit Maximum number of comparisons in the result
+	 * @return An equivalent expression tree, and whether it is fully in normal form
+	 */
+	default Simplified<Visitors.Node> toCNF(long limit) {
+		NormalForm result = NormalForm.toCNF(this, limit);
+		return new Simplified<>(result.node, result.complete);
+	}
 		
 	Query maybeUnion(Query other);
 
 	public static class Impl implements Query {
 
-	private Map<String, AbstractSet<? extends JsonValue, ?>> constraints;
+	private final ConstraintMap<AbstractSet<? extends JsonValue, ?>> constraints;
 	
 	public Query maybeUnion(Query other) {
 		if (this.contains(other)) return this;
@@ -114,15 +224,21 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 	 * @param constraints A map from dimension name to a range of values.
 	 */
 	public Impl(Map<String, AbstractSet<? extends JsonValue,?>> constraints) {
+		this.constraints = ConstraintMap.from(constraints);
+	}
+	
+	private Impl(ConstraintMap<AbstractSet<? extends JsonValue,?>> constraints) {
 		this.constraints = constraints;
 	}
 	
 	/** Create a new constraint as a copy of an old constraint.
+	 * 
+	 * Constraints are immutable, so the copy shares the constraints of the original.
 	 * 
 	 * @param to_copy A constraint to copy
 	 */
 	public Impl(Impl to_copy) {
-		this.constraints = new TreeMap<>(to_copy.constraints);
+		this.constraints = to_copy.constraints;
 	}
 	
 	/** Create a 'one dimensional' constraint
@@ -131,12 +247,11 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 	 * @param range permitted range for that dimension
 	 */
 	public Impl(String dimension, AbstractSet<? extends JsonValue,?> range) {
-		this.constraints = new TreeMap<>();
-		this.constraints.put(dimension, range);
+		this.constraints = ConstraintMap.of(dimension, range);
 	}
 	
 	public Impl() {
-		this.constraints = new TreeMap<>();
+		this.constraints = ConstraintMap.empty();
 	}
 
 	/** Get the constraint for a given dimension
@@ -260,6 +375,7 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 	}
 	
 	public Boolean intersects(Query other) {
+		if (other instanceof UnionCube) return other.intersects(this);
 		return Tristate.every(constraints.keySet(), dimension->intersects(dimension, other));
 	}
 	
@@ -281,13 +397,12 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 	 */
 	public Query intersect(Query other) {
 
-		Map<String, AbstractSet<? extends JsonValue, ?>> result = new TreeMap<String, AbstractSet<? extends JsonValue, ?>>();
-		result.putAll(constraints);
+		ConstraintMap<AbstractSet<? extends JsonValue, ?>> result = constraints;
 		
 		for (String dimension : other.getConstraints()) {
 			AbstractSet<? extends JsonValue, ?> intersection = intersect(dimension, other);
 			if (intersection.isEmpty()) return EMPTY;
-				result.put(dimension, intersection);
+			result = result.with(dimension, intersection);
 		}
 
 		return new Impl(result);
@@ -296,16 +411,12 @@ public interface Query extends AbstractSet<JsonObject, Query> {
     
     public Query setConstraint(String dimension, AbstractSet<? extends JsonValue, ?> constraint) {
         if (constraint.isUnconstrained()) return removeConstraint(dimension);
-        Impl result = new Impl(this);
-        result.constraints.put(dimension, constraint);
-        return result;
+        return new Impl(constraints.with(dimension, constraint));
     }
 
     public Query removeConstraint(String name) {
         if (constraints.containsKey(name) && constraints.size() == 1) return Query.UNBOUNDED;
-        Impl result = new Impl(this);
-        result.constraints.remove(name);
-        return result;
+        return new Impl(constraints.without(name));
     }
     
 
@@ -315,9 +426,9 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 	 * 
 	 */
 	public Query removeConstraints(QualifiedName... constraints) {
-		Impl result = new Impl(this);
+		Query result = this;
 		for (QualifiedName constraint : constraints) 
-			result.removeConstraint(constraint);
+			result = result.removeConstraint(constraint);
 		return result;
 	}
 
@@ -362,15 +473,13 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 	 * @return A constraint with any matching parameters substituted with the given values.
 	 */
 	public Query bind(JsonObject parameters) {
-		Map<String,AbstractSet<? extends JsonValue,?>> new_constraints = new TreeMap<String,AbstractSet<? extends JsonValue,?>>();
+		ConstraintMap<AbstractSet<? extends JsonValue,?>> new_constraints = constraints;
 		for (Map.Entry<String,AbstractSet<? extends JsonValue,?>> entry : constraints.entrySet()) {
 			AbstractSet<? extends JsonValue,?> new_constraint = entry.getValue().bind(parameters);
-			if (!new_constraint.isEmpty())
-				new_constraints.put(entry.getKey(), new_constraint);
-			else
-				return null;
+			if (new_constraint.isEmpty()) return null;
+			if (new_constraint != entry.getValue()) new_constraints = new_constraints.with(entry.getKey(), new_constraint);
 		}
-		return new Impl(new_constraints);
+		return new_constraints == constraints ? this : new Impl(new_constraints);
 	}
 	
 
@@ -532,6 +641,18 @@ public interface Query extends AbstractSet<JsonObject, Query> {
 	public static Query union(List<Query> constraints) {
 		return FACTORY.union(constraints);
 	}
+	
+	/** Create a union of queries, simplifying in parallel on the given pool.
+	 * 
+	 * The result is identical to that of union(constraints).
+	 * 
+	 * @param constraints Queries to combine
+	 * @param pool Pool on which to simplify the union
+	 * @return the union of the queries
+	 */
+	public static Query union(List<Query> constraints, ForkJoinPool pool) {
+		return FACTORY.union(constraints, pool);
+	}
 
 	public static Query union(Query... constraints) {
 		return FACTORY.union(constraints);
@@ -0,0 +1,172 @@
+package com.softwareplumbers.common.abstractquery;
+
+import com.softwareplumbers.common.immutablelist.QualifiedName;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.json.JsonValue;
+
+/** Mutable builder for queries.
+ *
+ * Building a query by repeatedly calling intersect or union creates and simplifies a new query at each
+ * step. A builder instead collects the constraints on each dimension, and the clauses of a union, and
+ * simplifies them once when build is called:
+ *
+ * ```java
+ * QueryBuilder builder = new QueryBuilder();
+ * for (Map.Entry<String, Range> filter : filters.entrySet()) {
+ *     builder.intersect(filter.getKey(), filter.getValue());
+ * }
+ * builder.or().intersect("status", Range.equals("new"));
+ * Query query = builder.build();
+ * ```
+ *
+ * The result is the same as intersecting the constraints within each clause, and then taking the union
+ * of the clauses.
+ *
+ * A builder is not thread safe.
+ */
+public final class QueryBuilder {
+
+    /** Constraints collected on a dimension, and on its child dimensions */
+    private static final class Dimension {
+        final List<AbstractSet<? extends JsonValue, ?>> constraints = new ArrayList<>();
+        final Map<String, Dimension> children = new LinkedHashMap<>();
+
+        Dimension getChild(String name) {
+            return children.computeIfAbsent(name, key -> new Dimension());
+        }
+
+        Dimension getChild(QualifiedName name) {
+            return name.isEmpty() ? this : getChild(name.parent).getChild(name.part);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static AbstractSet<? extends JsonValue, ?> intersect(AbstractSet a, AbstractSet b) {
+            return a == null ? b : (AbstractSet<? extends JsonValue, ?>)a.intersect(b);
+        }
+
+        /** Intersect all the constraints on this dimension, returning null if there are none. */
+        @SuppressWarnings("unchecked")
+        AbstractSet<? extends JsonValue, ?> getConstraint() {
+            AbstractSet<? extends JsonValue, ?> result = null;
+            if (constraints.stream().allMatch(constraint -> constraint instanceof Range)) {
+                if (!constraints.isEmpty()) result = Range.intersect((List<Range>)(List<?>)constraints);
+            } else {
+                for (AbstractSet<? extends JsonValue, ?> constraint : constraints) result = intersect(result, constraint);
+            }
+            if (!children.isEmpty()) result = intersect(result, getQuery());
+            return result;
+        }
+
+        /** Build a query from the constraints on the child dimensions of this dimension. */
+        Query getQuery() {
+            Map<String, AbstractSet<? extends JsonValue, ?>> result = new TreeMap<>();
+            for (Map.Entry<String, Dimension> child : children.entrySet()) {
+                AbstractSet<? extends JsonValue, ?> constraint = child.getValue().getConstraint();
+                if (constraint == null || constraint.isUnconstrained()) continue;
+                if (constraint.isEmpty()) return Query.EMPTY;
+                result.put(child.getKey(), constraint);
+            }
+            return result.isEmpty() ? Query.UNBOUNDED : new Query.Impl(result);
+        }
+    }
+
+    private final List<Query> clauses = new ArrayList<>();
+    private Dimension clause = new Dimension();
+    private List<Query> queries = new ArrayList<>();
+    private boolean constrained = false;
+
+    /** Intersect the current clause with a constraint on a dimension.
+     *
+     * @param dimension Dimension to constrain
+     * @param constraint Constraint on the dimension
+     * @return this builder
+     */
+    public QueryBuilder intersect(String dimension, AbstractSet<? extends JsonValue, ?> constraint) {
+        if (constraint == null) throw new IllegalArgumentException("Can't create from a null constraint");
+        if (dimension == null) throw new IllegalArgumentException("Can't create from a null dimension");
+        clause.getChild(dimension).constraints.add(constraint);
+        constrained = true;
+        return this;
+    }
+
+    /** Intersect the current clause with a constraint on a (possibly nested) dimension.
+     *
+     * @param dimension Qualified name of dimension to constrain
+     * @param constraint Constraint on the dimension
+     * @return this builder
+     */
+    public QueryBuilder intersect(QualifiedName dimension, AbstractSet<? extends JsonValue, ?> constraint) {
+        if (constraint == null) throw new IllegalArgumentException("Can't create from a null constraint");
+        if (dimension == null || dimension.isEmpty()) throw new IllegalArgumentException("Can't create from a null  or empty dimension");
+        clause.getChild(dimension).constraints.add(constraint);
+        constrained = true;
+        return this;
+    }
+
+    /** Intersect the current clause with a query.
+     *
+     * @param query Query to intersect
+     * @return this builder
+     */
+    public QueryBuilder intersect(Query query) {
+        if (query instanceof Query.Impl) {
+            for (String dimension : query.getConstraints())
+                clause.getChild(dimension).constraints.add(query.getConstraint(dimension));
+        } else if (!query.isUnconstrained()) {
+            queries.add(query);
+        }
+        constrained = true;
+        return this;
+    }
+
+    /** Start a new clause.
+     *
+     * Subsequent calls to intersect will constrain the new clause.
+     *
+     * @return this builder
+     */
+    public QueryBuilder or() {
+        if (constrained) clauses.add(getClause());
+        clause = new Dimension();
+        queries = new ArrayList<>();
+        constrained = false;
+        return this;
+    }
+
+    /** Add a query to the union built by this builder.
+     *
+     * @param query Query to add
+     * @return this builder
+     */
+    public QueryBuilder union(Query query) {
+        clauses.add(query);
+        return this;
+    }
+
+    private Query getClause() {
+        Query result = clause.getQuery();
+        for (Query query : queries) result = query.intersect(result);
+        return result;
+    }
+
+    /** Build a query.
+     *
+     * If only the current clause has been constrained, and no query has been added with union, this is
+     * the intersection of the constraints in that clause (Query.UNBOUNDED if there are none). Otherwise,
+     * it is the union of all the constrained clauses and the queries added.
+     *
+     * The builder is not changed, and may be used to build further queries.
+     *
+     * @return the query
+     */
+    public Query build() {
+        if (clauses.isEmpty()) return getClause();
+        List<Query> result = new ArrayList<>(clauses);
+        if (constrained) result.add(getClause());
+        return Query.union(result);
+    }
+}
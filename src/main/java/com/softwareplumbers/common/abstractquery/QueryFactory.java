@@ -1,11 +1,25 @@
 package com.softwareplumbers.common.abstractquery;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
 
 import com.softwareplumbers.common.abstractquery.Query.Impl;
 import com.softwareplumbers.common.abstractquery.Query.UnionCube;
+import com.softwareplumbers.common.immutablelist.QualifiedName;
 import javax.json.JsonObject;
+import javax.json.JsonValue;
 
 public class QueryFactory extends Factory<JsonObject, Query> {
 
@@ -15,24 +29,431 @@ public class QueryFactory extends Factory<JsonObject, Query> {
 
 	}
 
+	/** A cube retained in the result of a union. */
+	private static class Slot {
+		final Query cube;
+		int position;
+		boolean absorbed;
+		Slot(Query cube, int position) {
+			this.cube = cube;
+			this.position = position;
+		}
+	}
+
+	/** Check whether one cube contains another, within the current budget.
+	 * 
+	 * @return true if container definitely contains cube; false if not, or if the budget is exhausted
+	 */
+	private static boolean contains(Query container, Query cube) {
+		return Budget.tryCompare() && container.contains(cube) == Boolean.TRUE;
+	}
+
+	/** Retained cubes which constrain the same set of dimensions.
+	 * 
+	 * Cubes are further divided on the first of those dimensions, by value where the constraint is an
+	 * unparameterized equality; a cube with an equality on that dimension can only contain, or be
+	 * contained by, a cube with an equality on the same value. Values which compare equal, such as
+	 * 1 and 1.0, are divided together.
+	 */
+	private static class Bucket {
+		final Set<String> signature;
+		final String key;
+		final Map<Object, List<Slot>> points = new LinkedHashMap<>();
+		final List<Slot> others = new ArrayList<>();
+
+		Bucket(Set<String> signature) {
+			this.signature = signature;
+			this.key = signature.isEmpty() ? null : signature.iterator().next();
+		}
+
+		Object getPoint(Query cube) {
+			return key == null ? null : UnionIndex.getKey(cube.getConstraint(key));
+		}
+
+		void add(Slot slot) {
+			Object point = getPoint(slot.cube);
+			if (point == null)
+				others.add(slot);
+			else
+				points.computeIfAbsent(point, value -> new ArrayList<>()).add(slot);
+		}
+
+		/** Find a retained cube containing cube, which must constrain every dimension in the signature. */
+		Slot findContaining(Query cube) {
+			Object point = getPoint(cube);
+			if (point != null) {
+				for (Slot slot : points.getOrDefault(point, Collections.emptyList()))
+					if (!slot.absorbed && contains(slot.cube, cube)) return slot;
+			}
+			for (Slot slot : others)
+				if (!slot.absorbed && contains(slot.cube, cube)) return slot;
+			return null;
+		}
+
+		/** Find the retained cubes contained by cube, which must have the same signature. */
+		List<Slot> findContained(Query cube) {
+			List<Slot> result = new ArrayList<>();
+			Object point = getPoint(cube);
+			if (point != null) {
+				for (Slot slot : points.getOrDefault(point, Collections.emptyList()))
+					if (!slot.absorbed && contains(cube, slot.cube)) result.add(slot);
+				return result;
+			}
+			AbstractSet<? extends JsonValue, ?> constraint = key == null ? null : cube.getConstraint(key);
+			for (List<Slot> slots : points.values()) {
+				JsonValue value = ((Range.Equals)slots.get(0).cube.getConstraint(key)).value;
+				if (constraint instanceof Range && ((Range)constraint).containsItem(value) == Boolean.TRUE) {
+					for (Slot slot : slots)
+						if (!slot.absorbed && contains(cube, slot.cube)) result.add(slot);
+				}
+			}
+			for (Slot slot : others)
+				if (!slot.absorbed && contains(cube, slot.cube)) result.add(slot);
+			return result;
+		}
+	}
+
+	/** Add the cubes in a query to a list, flattening nested unions.
+	 * 
+	 * @return true if the query is unbounded
+	 */
+	private static boolean flatten(Query query, List<Query> cubes) {
+		if (query instanceof UnionCube) {
+			for (Query member : ((UnionCube)query).getMembers())
+				if (flatten(member, cubes)) return true;
+			return false;
+		}
+		if (query.isUnconstrained()) return true;
+		if (!query.isEmpty()) cubes.add(query);
+		return false;
+	}
+
+	/** Cubes with the same signature, and the cubes retained from them. */
+	private static class Group {
+		final Bucket bucket;
+		final List<Integer> members = new ArrayList<>();
+		final List<Group> subsets = new ArrayList<>();
+		final List<Slot> slots = new ArrayList<>();
+		boolean[] covered;
+
+		Group(Set<String> signature) {
+			this.bucket = new Bucket(signature);
+		}
+
+		/** Mark the members contained by a cube retained from a group with fewer dimensions. */
+		void cover(List<Query> cubes, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (!Budget.tryNodes(1)) continue;
+				Query cube = cubes.get(members.get(i));
+				for (Group subset : subsets) {
+					if (subset.bucket.findContaining(cube) != null) {
+						covered[i] = true;
+						break;
+					}
+				}
+			}
+		}
+
+		/** Retain the members not covered, removing any contained by another. */
+		void simplify(List<Query> cubes) {
+			for (int i = 0; i < members.size(); i++) {
+				if (covered[i]) continue;
+				Query cube = cubes.get(members.get(i));
+				if (bucket.findContaining(cube) != null) continue;
+				Slot slot = new Slot(cube, members.get(i));
+				for (Slot contained : bucket.findContained(cube)) {
+					contained.absorbed = true;
+					slot.position = Math.min(slot.position, contained.position);
+				}
+				bucket.add(slot);
+				slots.add(slot);
+			}
+		}
+	}
+
+	/** Number of cubes checked against groups with fewer dimensions in a single task */
+	private static final int COVER_TASK_SIZE = 1024;
+
+	/** Run tasks, in parallel if a pool is given. */
+	private static void run(ForkJoinPool pool, List<Runnable> tasks) {
+		if (pool == null || tasks.size() < 2) {
+			tasks.forEach(Runnable::run);
+		} else {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks.stream().map(ForkJoinTask::adapt).collect(Collectors.toList()));
+				}
+			});
+		}
+	}
+
+	/** Create a union of queries.
+	 * 
+	 * Nested unions are flattened, and any cube contained by another cube in the union is removed.
+	 * 
+	 * A cube can only contain another cube if every dimension it constrains is also constrained by the
+	 * other cube. Cubes are therefore grouped by the set of dimensions they constrain, and groups are
+	 * simplified in order of the number of dimensions constrained. Each cube is first checked against
+	 * the cubes retained from groups whose dimensions are a subset of its own, and then against the
+	 * cubes retained so far from its own group. Only cubes which (where the first dimension of the
+	 * group is constrained to a single value) share that value are checked.
+	 * 
+	 * The retained cubes are returned in the order they first appeared in the list, a cube which absorbs
+	 * other cubes with the same dimensions taking the position of the earliest.
+	 * 
+	 * Each cube counts as a node, and each containment check as a comparison, against the current
+	 * Budget; once the budget is exhausted, the remaining cubes are retained without checking.
+	 */
 	@Override
 	public Query union(List<Query> list) {
-		List<Query> result = new ArrayList<Query>();
-		result.add(list.get(0));
-		for (int i = 1; i < list.size(); i++) {
-			// TODO: need a loop in here to account for case where list.get(i) is a union
-			Query merged = null;
-			for (int j = 0; j < result.size() && merged == null; j++) {
-				merged = list.get(i).maybeUnion(result.get(j));
-				if (merged != null) result.set(j, merged);
-			}
-			if (merged == null) 
-				result.add(list.get(i));
-			if (merged == Query.UNBOUNDED) return Query.UNBOUNDED;
-		}
-		
+		return union(list, null);
+	}
+
+	/** Create a union of queries, simplifying in parallel.
+	 * 
+	 * Groups of cubes with the same number of dimensions are independent of each other; they are
+	 * simplified as separate tasks on the given pool, as are the checks of each group against the
+	 * groups with fewer dimensions. The result is identical to that of union(list).
+	 * 
+	 * If a Budget is applied on the calling thread, the union is simplified on the calling thread
+	 * so that the budget applies.
+	 * 
+	 * @param list Queries to combine
+	 * @param pool Pool on which to simplify, or null to simplify on the calling thread
+	 * @return the union of the queries
+	 */
+	public Query union(List<Query> list, ForkJoinPool pool) {
+		List<Query> cubes = new ArrayList<>();
+		for (Query query : list)
+			if (flatten(query, cubes)) return Query.UNBOUNDED;
+		if (cubes.isEmpty()) return Query.EMPTY;
+		if (cubes.size() == 1) return cubes.get(0);
+		if (Budget.isActive()) pool = null;
+
+		Map<Set<String>, Group> groups = new LinkedHashMap<>();
+		for (int i = 0; i < cubes.size(); i++)
+			groups.computeIfAbsent(new TreeSet<>(cubes.get(i).getConstraints()), Group::new).members.add(i);
+		Map<Integer, List<Group>> levels = new TreeMap<>();
+		for (Group group : groups.values())
+			levels.computeIfAbsent(group.bucket.signature.size(), size -> new ArrayList<>()).add(group);
+
+		List<Group> done = new ArrayList<>();
+		for (List<Group> level : levels.values()) {
+			List<Runnable> tasks = new ArrayList<>();
+			for (Group group : level) {
+				group.covered = new boolean[group.members.size()];
+				for (Group subset : done)
+					if (group.bucket.signature.containsAll(subset.bucket.signature)) group.subsets.add(subset);
+				if (group.subsets.isEmpty()) continue;
+				for (int from = 0; from < group.members.size(); from += COVER_TASK_SIZE) {
+					int start = from;
+					int end = Math.min(from + COVER_TASK_SIZE, group.members.size());
+					tasks.add(() -> group.cover(cubes, start, end));
+				}
+			}
+			run(pool, tasks);
+			run(pool, level.stream().<Runnable>map(group -> () -> group.simplify(cubes)).collect(Collectors.toList()));
+			done.addAll(level);
+		}
+
+		List<Query> result = groups.values().stream()
+			.flatMap(group -> group.slots.stream())
+			.filter(slot -> !slot.absorbed)
+			.sorted(Comparator.comparingInt(slot -> slot.position))
+			.map(slot -> slot.cube)
+			.collect(Collectors.toList());
 		if (result.size() == 1) return result.get(0);
 		return new UnionCube(result);
 	}
 
+	/** Get the cubes which make up a query.
+	 * 
+	 * @return members of the query if it is a union, otherwise a list containing only the query
+	 */
+	static List<Query> getMembers(Query query) {
+		if (query instanceof UnionCube) return ((UnionCube)query).getMembers();
+		if (query.isEmpty()) return Collections.emptyList();
+		return Collections.singletonList(query);
+	}
+
+	/** Get the values in one constraint which are not in another.
+	 * 
+	 * @param constraint a constraint, or null if unconstrained
+	 * @param remove constraint to remove
+	 * @return values in constraint but not in remove, or null if this cannot be determined
+	 */
+	@SuppressWarnings("rawtypes")
+	private static AbstractSet constraintDifference(AbstractSet constraint, AbstractSet remove) {
+		if (remove instanceof Range) {
+			if (constraint == null) return ((Range)remove).complement();
+			if (constraint instanceof Range) return ((Range)constraint).difference((Range)remove);
+		}
+		if (remove instanceof Query && constraint instanceof Query) 
+			return ((Query)constraint).difference((Query)remove);
+		return null;
+	}
+
+	/** Remove a cube from another cube.
+	 * 
+	 * The values in cube but not in remove are split into disjoint cubes. Dimensions are taken in
+	 * turn; the first cube contains values outside remove in the first dimension; the second contains
+	 * values inside remove in the first dimension but outside it in the second; and so on.
+	 * 
+	 * @return disjoint cubes, or null if these cannot be determined.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static List<Query> cubeDifference(Query cube, Query remove) {
+		if (cube.intersects(remove) == Boolean.FALSE) return Collections.singletonList(cube);
+		List<Query> result = new ArrayList<>();
+		Query inside = cube;
+		for (String dimension : remove.getConstraints()) {
+			AbstractSet constraint = inside.getConstraint(dimension);
+			AbstractSet removeConstraint = remove.getConstraint(dimension);
+			if (constraint != null && removeConstraint.contains(constraint) == Boolean.TRUE) continue;
+			AbstractSet outside = constraintDifference(constraint, removeConstraint);
+			if (outside == null) return null;
+			if (!outside.isEmpty()) result.add(inside.setConstraint(dimension, (AbstractSet<? extends JsonValue,?>)outside));
+			AbstractSet shared = constraint == null ? removeConstraint : constraint.intersect(removeConstraint);
+			if (shared.isEmpty()) return result;
+			inside = inside.setConstraint(dimension, (AbstractSet<? extends JsonValue,?>)shared);
+		}
+		return result;
+	}
+
+	/** Split the members of a query into disjoint pieces which are also disjoint from some other cubes.
+	 * 
+	 * @return the pieces, or null if these cannot be determined or there would be more than maxPieces
+	 */
+	private static List<Query> disjointPieces(Query query, List<Query> removeMembers, int maxPieces) {
+		List<Query> previous = new ArrayList<>();
+		List<Query> result = new ArrayList<>();
+		for (Query member : getMembers(query)) {
+			List<Query> pieces = Collections.singletonList(member);
+			for (List<Query> removing : Arrays.asList(removeMembers, previous)) {
+				for (Query removeMember : removing) {
+					List<Query> remaining = new ArrayList<>();
+					for (Query piece : pieces) {
+						List<Query> difference = cubeDifference(piece, removeMember);
+						if (difference == null) return null;
+						remaining.addAll(difference);
+					}
+					pieces = remaining;
+					if (result.size() + pieces.size() > maxPieces) return null;
+				}
+			}
+			result.addAll(pieces);
+			previous.add(member);
+		}
+		return result;
+	}
+	
+	private static Query fromPieces(List<Query> pieces) {
+		if (pieces == null) return null;
+		if (pieces.isEmpty()) return Query.EMPTY;
+		if (pieces.size() == 1) return pieces.get(0);
+		return new UnionCube(pieces);
+	}
+
+	/** Get the values in one query which are not in another.
+	 * 
+	 * The result is a union of disjoint cubes. The result cannot always be determined; in particular,
+	 * parameterized ranges, 'like' expressions, and array constraints cannot be complemented.
+	 * 
+	 * @param query query
+	 * @param remove query to remove
+	 * @return A query containing values in query but not in remove, or null if this cannot be determined.
+	 */
+	public Query difference(Query query, Query remove) {
+		if (remove.isUnconstrained()) return Query.EMPTY;
+		return fromPieces(disjointPieces(query, getMembers(remove), Integer.MAX_VALUE));
+	}
+	
+	/** Rewrite a query as a union of disjoint cubes.
+	 * 
+	 * Each member of a union is reduced by removing any values contained by earlier members, which
+	 * may split it into several cubes. The result contains exactly the same items as the original
+	 * query, but no item is contained by more than one cube.
+	 * 
+	 * @param query query to rewrite
+	 * @param maxCubes maximum number of cubes permitted in the result
+	 * @return An equivalent union of disjoint cubes, or null if this cannot be determined within maxCubes.
+	 */
+	public Query toDisjointUnion(Query query, int maxCubes) {
+		if (!(query instanceof UnionCube)) return query;
+		return fromPieces(disjointPieces(query, Collections.emptyList(), maxCubes));
+	}
+	
+	/** Get the range constraining a dimension of a query.
+	 * 
+	 * @return the range for the dimension, Range.UNBOUNDED if the dimension is unconstrained
+	 * @throws IllegalArgumentException if the dimension is not constrained by a range
+	 */
+	private static Range getRange(Query query, QualifiedName dimension) {
+		AbstractSet<? extends JsonValue, ?> constraint = query;
+		for (String part : dimension) {
+			if (!(constraint instanceof Query)) throw new IllegalArgumentException(dimension + " is not a dimension of " + query);
+			constraint = ((Query)constraint).getConstraint(part);
+			if (constraint == null) return Range.UNBOUNDED;
+		}
+		if (constraint instanceof Range) return (Range)constraint;
+		throw new IllegalArgumentException(dimension + " is not constrained by a range in " + query);
+	}
+	
+	/** Split a query into disjoint parts along some dimension.
+	 * 
+	 * @param query Query to split
+	 * @param dimension Dimension along which to split
+	 * @param parts Number of parts required
+	 * @param splitPoints Provides the points at which to split the dimension
+	 * @return At most parts disjoint, non-empty queries, whose union is equal to query
+	 */
+	public List<Query> split(Query query, QualifiedName dimension, int parts, SplitPointProvider splitPoints) {
+		if (parts < 1) throw new IllegalArgumentException("Can't split into " + parts + " parts");
+		Range range = getRange(query, dimension);
+		List<Query> result = new ArrayList<>();
+		JsonValue lower = null;
+		for (JsonValue point : splitPoints.getSplitPoints(range, parts)) {
+			Range slice = lower == null ? Range.lessThan(point) : Range.between(lower, point);
+			Query part = query.intersect(Query.from(dimension, slice));
+			if (!part.isEmpty()) result.add(part);
+			lower = point;
+		}
+		Query last = lower == null ? query : query.intersect(Query.from(dimension, Range.greaterThanOrEqual(lower)));
+		if (!last.isEmpty()) result.add(last);
+		return result;
+	}
+	
+	/** Remove from a query any constraints which are already implied by another query.
+	 * 
+	 * Where every value permitted by implied in some dimension is also permitted by query, the
+	 * constraint on that dimension is removed. Members of a union which cannot intersect implied
+	 * are removed entirely.
+	 * 
+	 * @param query Query to simplify
+	 * @param implied Query whose constraints are known to hold (for example, a partition descriptor)
+	 * @return A query which has the same intersection with implied as query
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	public Query residual(Query query, Query implied) {
+		if (!(implied instanceof Impl)) return query;
+		if (query instanceof UnionCube) {
+			List<Query> result = new ArrayList<>();
+			for (Query member : getMembers(query))
+				if (member.intersects(implied) != Boolean.FALSE) result.add(residual(member, implied));
+			return result.isEmpty() ? Query.EMPTY : union(result);
+		}
+		if (!(query instanceof Impl)) return query;
+		Query result = query;
+		for (String dimension : query.getConstraints()) {
+			AbstractSet constraint = query.getConstraint(dimension);
+			AbstractSet impliedConstraint = implied.getConstraint(dimension);
+			if (constraint instanceof Range && impliedConstraint instanceof Range) {
+				if (constraint.contains(impliedConstraint) == Boolean.TRUE) result = result.removeConstraint(dimension);
+			} else if (constraint instanceof Query && impliedConstraint instanceof Query) {
+				result = result.setConstraint(dimension, residual((Query)constraint, (Query)impliedConstraint));
+			}
+		}
+		return result;
+	}
 }
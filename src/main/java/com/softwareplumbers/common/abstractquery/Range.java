@@ -19,6 +19,7 @@ import javax.json.JsonValue;
 
 import javax.json.JsonString;
 import javax.json.JsonValue.ValueType;
+import com.softwareplumbers.common.abstractquery.visitor.NormalForm;
 import com.softwareplumbers.common.abstractquery.visitor.Visitor;
 import com.softwareplumbers.common.abstractquery.visitor.Visitors;
 import com.softwareplumbers.common.jsonview.JsonViewFactory;
@@ -73,6 +74,62 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 		if (result == null) result = Range.intersect(this, other);
 		return result;
 	}
+	
+	/** Convert this range to disjunctive normal form (an OR of ANDs).
+	 * 
+	 * Terms are multiplied out only while the result would contain no more than limit comparisons;
+	 * beyond that, subexpressions are left factored.
+	 * 
+	 * @param limit Maximum number of comparisons in the result
+	 * @return An equivalent expression tree, and whether it is fully in normal form
+	 */
+	default Simplified<Visitors.Node> toDNF(long limit) {
+		NormalForm result = NormalForm.toDNF(this, limit);
+		return new Simplified<>(result.node, result.complete);
+	}
+	
+	/** Convert this range to conjunctive normal form (an AND of ORs).
+	 * 
+	 * Terms are multiplied out only while the result would contain no more than limit comparisons;
+	 * beyond that, subexpressions are left factored.
+	 * 
+	 * @param limit Maximum number of comparisons in the result
+	 * @return An equivalent expression tree, and whether it is fully in normal form
+	 */
+	default Simplified<Visitors.Node> toCNF(long limit) {
+		NormalForm result = NormalForm.toCNF(this, limit);
+		return new Simplified<>(result.node, result.complete);
+	}
+
+	/** Get the complement of this range.
+	 * 
+	 * The complement contains every value not contained by this range. Since a missing value is
+	 * treated as null, and null is less than any other value, the complement of a range which 
+	 * excludes null will include null.
+	 * 
+	 * @return the complement of this range, or null if it cannot be determined (for example, because the range is parameterized)
+	 */
+	public default Range complement() {
+		return null;
+	}
+	
+	/** Get the values in this range which are not in some other range.
+	 * 
+	 * @param other range to remove from this range
+	 * @return A range containing values in this range but not in other, or null if this cannot be determined.
+	 */
+	public default Range difference(Range other) {
+		Range complement = other.complement();
+		if (complement == null) return null;
+		if (complement instanceof RangeUnion) {
+			Range result = EMPTY;
+			for (Range item : ((RangeUnion)complement).getMembers()) {
+				result = result.union(intersect(item));
+			}
+			return result;
+		}
+		return intersect(complement);
+	}
 
 	public default Range bind(String params) {
 		return this.bind(JsonUtil.parseObject(params));
@@ -440,6 +497,11 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			return true;
 		}
 
+        @Override
+		public Range complement() {
+			return EMPTY;
+		}
+
         @Override
 		public Boolean containsItem(JsonValue item) {
 			return true;
@@ -515,6 +577,11 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			return Boolean.FALSE;
 		}
 
+        @Override
+		public Range complement() {
+			return UNBOUNDED;
+		}
+
         @Override
 		public Boolean containsItem(JsonValue item) {
 			return Boolean.FALSE;
@@ -660,6 +727,14 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			return Tristate.and(this.lower_bound.contains(range), this.upper_bound.contains(range));
 		}
 
+        @Override
+		public Range complement() {
+			Range lower = lower_bound.complement();
+			Range upper = upper_bound.complement();
+			if (lower == null || upper == null) return null;
+			return lower.union(upper);
+		}
+
         @Override
 		public Boolean containsItem(JsonValue item) {
 			return this.lower_bound.containsItem(item) && this.upper_bound.containsItem(item);
@@ -711,11 +786,12 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 				);
 			}
 			if (range instanceof LessThan || range instanceof LessThanOrEqual) 
-				return upper_bound.intersects(range);
-			if (range instanceof GreaterThan || range instanceof GreaterThanOrEqual)
 				return lower_bound.intersects(range);
-			if (range instanceof Like)
+			if (range instanceof GreaterThan || range instanceof GreaterThanOrEqual)
+				return upper_bound.intersects(range);
+			if (range instanceof Like || range instanceof RangeUnion || range instanceof Equals)
 				return range.intersects(this);
+			if (range instanceof Empty) return Boolean.FALSE;
 			return null;
 		}
 
@@ -791,14 +867,12 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 				}
 			}
 			if (range instanceof LessThan || range instanceof LessThanOrEqual) {
-				Range new_upper_bound = this.upper_bound.maybeUnion(range);
-				if (new_upper_bound == null) return null;
-				return new_upper_bound.maybeIntersect(this.lower_bound);
+				if (intersects(range) != Boolean.TRUE) return null;
+				return this.upper_bound.maybeUnion(range);
 			}
 			if (range instanceof GreaterThan || range instanceof GreaterThanOrEqual) {
-				Range new_lower_bound = this.lower_bound.maybeUnion(range);
-				if (new_lower_bound == null) return null;
-				return new_lower_bound.maybeIntersect(this.upper_bound);
+				if (intersects(range) != Boolean.TRUE) return null;
+				return this.lower_bound.maybeUnion(range);
 			} 
 			if (range instanceof Like) {
 				if (contains(range) == Boolean.TRUE) return this;
@@ -835,6 +909,12 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 		}
 
 
+        @Override
+		public Range complement() {
+			if (Param.isParam(value)) return null;
+			return lessThan(value).union(greaterThan(value));
+		}
+
         @Override
 		public Boolean containsItem(JsonValue item) {
 			return JsonUtil.maybeEquals(value, item);
@@ -939,6 +1019,11 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			return false; 
 		}
 
+        @Override
+		public Range complement() {
+			return Param.isParam(value) ? null : greaterThanOrEqual(value);
+		}
+
         @Override
 		public Boolean containsItem(JsonValue item) {
 			return Tristate.isLessThan(JsonUtil.maybeCompare(item,this.value));
@@ -1062,6 +1147,11 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			return false;
 		}
 
+        @Override
+		public Range complement() {
+			return Param.isParam(value) ? null : greaterThan(value);
+		}
+
         @Override
 		public Boolean containsItem(JsonValue item) {
 			//return item.lessThanOrEqual(this.value);
@@ -1077,7 +1167,9 @@ public interface Range extends AbstractSet<JsonValue, Range> {
                 return Tristate.isLessThanOrEqual(JsonUtil.maybeCompare(((Equals)range).value, this.value));
 			if (range instanceof LessThan || range instanceof LessThanOrEqual) 
 				return Boolean.TRUE;
-			if (range instanceof GreaterThan || range instanceof GreaterThanOrEqual) 
+			if (range instanceof GreaterThan) 
+                return Tristate.isLessThan(JsonUtil.maybeCompare(((OpenRange)range).value, this.value));
+			if (range instanceof GreaterThanOrEqual) 
 //				return ((OpenRange)range).value.lessThanOrEqual(value);
                 return Tristate.isLessThanOrEqual(JsonUtil.maybeCompare(((OpenRange)range).value, this.value));
 			if (range instanceof Between || range instanceof RangeIntersection || range instanceof RangeUnion)
@@ -1202,6 +1294,11 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			return false;
 		}
 
+        @Override
+		public Range complement() {
+			return Param.isParam(value) ? null : lessThanOrEqual(value);
+		}
+
         @Override
 		public Boolean containsItem(JsonValue item) {
 			//return item.greaterThan(this.value);
@@ -1280,7 +1377,7 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			if (range instanceof LessThan || range instanceof LessThanOrEqual) 
 				return (intersects(range) == Boolean.TRUE) ? UNBOUNDED : null;
 			if (range instanceof Between)
-				return (range.intersects(this) == Boolean.TRUE) ? maybeUnion(((Between)range).upper_bound) : null;
+				return (range.intersects(this) == Boolean.TRUE) ? maybeUnion(((Between)range).lower_bound) : null;
 			if (range instanceof GreaterThan || range instanceof GreaterThanOrEqual) {
 				//Boolean result = value.lessThan(((OpenRange)range).value);
                 Boolean result = Tristate.isLessThan(JsonUtil.maybeCompare(this.value, ((OpenRange)range).value));
@@ -1328,6 +1425,11 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			return false;
 		}
 
+        @Override
+		public Range complement() {
+			return Param.isParam(value) ? null : lessThan(value);
+		}
+
         @Override
 		public Boolean containsItem(JsonValue item) {
 			//return item.greaterThanOrEqual(this.value);
@@ -1342,7 +1444,9 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 				return range.intersects(this);
 			if (range instanceof GreaterThan || range instanceof GreaterThanOrEqual) 
 				return Boolean.TRUE;
-			if (range instanceof LessThan || range instanceof LessThanOrEqual) 
+			if (range instanceof LessThan) 
+                return Tristate.isGreaterThan(JsonUtil.maybeCompare(((OpenRange)range).value, this.value));
+			if (range instanceof LessThanOrEqual) 
 				//return ((OpenRange)range).value.greaterThanOrEqual(value);
                 return Tristate.isGreaterThanOrEqual(JsonUtil.maybeCompare(((OpenRange)range).value, this.value));
 			if (range instanceof Equals) 
@@ -1417,7 +1521,7 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 			if (range instanceof LessThan || range instanceof LessThanOrEqual) 
 				return (intersects(range) == Boolean.TRUE) ? UNBOUNDED : null;
 			if (range instanceof Between)
-				return (range.intersects(this) == Boolean.TRUE) ? maybeUnion(((Between)range).upper_bound) : null;
+				return (range.intersects(this) == Boolean.TRUE) ? maybeUnion(((Between)range).lower_bound) : null;
 			if (range instanceof GreaterThan || range instanceof GreaterThanOrEqual) {
 				//Boolean result = value.lessThanOrEqual(((OpenRange)range).value);
                 Boolean result = Tristate.isLessThanOrEqual(JsonUtil.maybeCompare(this.value, ((OpenRange)range).value));
@@ -1456,6 +1560,17 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 		public Boolean containedBy(Range other) {
 			return Tristate.every(data, item->other.contains(item));
 		}
+
+        @Override
+		public Range complement() {
+			Range result = UNBOUNDED;
+			for (Range item : data) {
+				Range complement = item.complement();
+				if (complement == null) return null;
+				result = result.intersect(complement);
+			}
+			return result;
+		}
 	}
 	
 	public static class RangeIntersection extends Intersection<JsonValue, Range> implements Range {
@@ -1478,6 +1593,17 @@ public interface Range extends AbstractSet<JsonValue, Range> {
 		public Boolean containedBy(Range other) {
 			return Tristate.any(data, item->other.contains(item));
 		}
+
+        @Override
+		public Range complement() {
+			Range result = EMPTY;
+			for (Range item : data) {
+				Range complement = item.complement();
+				if (complement == null) return null;
+				result = result.union(complement);
+			}
+			return result;
+		}
 	}
 	
 
@@ -1518,6 +1644,14 @@ public interface Range extends AbstractSet<JsonValue, Range> {
             }
         }
 
+		/** Get a range containing every value matched by this expression.
+		 * 
+		 * @return the range of strings starting with the fixed prefix of the pattern, or UNBOUNDED if there is no prefix
+		 */
+		public Range getBounds() {
+			return bounds;
+		}
+
 		@Override
 		public Boolean intersects(Range other) {
 			if (other.contains(bounds) == Boolean.TRUE) return Boolean.TRUE;
@@ -3,7 +3,9 @@ package com.softwareplumbers.common.abstractquery;
 import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import javax.json.JsonValue;
 
 public class RangeFactory extends Factory<JsonValue, Range> {
@@ -35,8 +37,33 @@ public class RangeFactory extends Factory<JsonValue, Range> {
 		return new Range.RangeIntersection(result);
 	}
 
+	/** Union of many equalities on unparameterized values of the same type.
+	 * 
+	 * Equalities on different values never merge, so duplicates are removed by value rather than
+	 * by comparing every pair.
+	 * 
+	 * @return the union, or null if some element is not such an equality
+	 */
+	private static Range unionOfValues(List<Range> elements) {
+		Map<Object, Range> distinct = new LinkedHashMap<>();
+		Class<?> type = null;
+		for (Range element : elements) {
+			Object key = UnionIndex.getKey(element);
+			if (key == null || type != null && type != key.getClass()) return null;
+			type = key.getClass();
+			distinct.putIfAbsent(key, element);
+		}
+		return distinct.size() == 1
+			? distinct.values().iterator().next()
+			: new Range.RangeUnion(new ArrayList<>(distinct.values()));
+	}
+
 	@Override
 	public Range union(List<Range> elements) {
+		if (elements.size() >= UnionIndex.THRESHOLD) {
+			Range values = unionOfValues(elements);
+			if (values != null) return values;
+		}
 		Iterator<Range> items = elements.iterator();
 		if (!items.hasNext()) return Range.EMPTY;
 		List<Range> result = new ArrayList<Range>();
@@ -45,7 +72,7 @@ public class RangeFactory extends Factory<JsonValue, Range> {
 			// TODO: need a loop in here to account for case where list.get(i) is a union
 			Range item = items.next();
 			Range merged = null;
-			for (int j = 0; j < result.size() && merged == null; j++) {
+			for (int j = 0; j < result.size() && merged == null && Budget.tryCompare(); j++) {
 				merged = item.maybeUnion(result.get(j));
 				if (merged != null) result.set(j, merged);
 			}
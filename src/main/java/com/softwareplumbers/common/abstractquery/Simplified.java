@@ -0,0 +1,24 @@
+package com.softwareplumbers.common.abstractquery;
+
+/** Result of an operation run within a simplification budget.
+ *
+ * @param <T> Type of result
+ * @see Budget
+ */
+public final class Simplified<T> {
+
+    /** The result, which may not be fully simplified */
+    public final T result;
+    /** True if the operation completed without exhausting its budget */
+    public final boolean complete;
+
+    Simplified(T result, boolean complete) {
+        this.result = result;
+        this.complete = complete;
+    }
+
+    @Override
+    public String toString() {
+        return complete ? String.valueOf(result) : result + " (partially simplified)";
+    }
+}
@@ -0,0 +1,92 @@
+package com.softwareplumbers.common.abstractquery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.json.JsonValue;
+
+/** Chooses the points at which a range is split when a query is divided into parts.
+ *
+ * @see Query#split(com.softwareplumbers.common.immutablelist.QualifiedName, int, SplitPointProvider)
+ */
+@FunctionalInterface
+public interface SplitPointProvider {
+
+	/** Get the points at which to split a range.
+	 *
+	 * @param range Range to split
+	 * @param parts Number of parts required
+	 * @return At most parts-1 values, in ascending order, which lie within range
+	 */
+	List<JsonValue> getSplitPoints(Range range, int parts);
+
+	/** Provides split points chosen from a list of candidate values. */
+	public static class Candidates implements SplitPointProvider {
+
+		private static final Comparator<JsonValue> ORDER = (a, b) -> {
+			switch (JsonUtil.maybeCompare(a, b)) {
+				case LESS: return -1;
+				case GREATER: return 1;
+				case EQUAL: return 0;
+				default: throw new IllegalArgumentException("Can't order " + a + " and " + b);
+			}
+		};
+
+		private final List<JsonValue> candidates;
+
+		public Candidates(List<JsonValue> candidates) {
+			this.candidates = new ArrayList<>(candidates);
+			this.candidates.sort(ORDER);
+		}
+
+		/** Select evenly spaced values from the candidates which lie within a range. */
+		@Override
+		public List<JsonValue> getSplitPoints(Range range, int parts) {
+			List<JsonValue> inRange = candidates.stream()
+				.filter(value -> range.containsItem(value) == Boolean.TRUE)
+				.collect(Collectors.toList());
+			List<JsonValue> result = new ArrayList<>();
+			if (inRange.isEmpty()) return result;
+			for (int i = 1; i < parts; i++) {
+				JsonValue point = inRange.get(i * inRange.size() / parts);
+				if (result.isEmpty() || ORDER.compare(result.get(result.size() - 1), point) < 0) result.add(point);
+			}
+			return result;
+		}
+	}
+
+	/** Split at given points.
+	 *
+	 * Points which do not lie within the range being split are ignored. If there are more points than
+	 * required, an evenly spaced selection of them is used.
+	 *
+	 * @param points Points at which to split
+	 * @return a split point provider
+	 */
+	static SplitPointProvider of(List<JsonValue> points) {
+		return new Candidates(points);
+	}
+
+	/** Split at given points.
+	 *
+	 * @param points Points at which to split
+	 * @return a split point provider
+	 */
+	static SplitPointProvider of(JsonValue... points) {
+		return of(Arrays.asList(points));
+	}
+
+	/** Split using a sample of the values in a dimension.
+	 *
+	 * Split points are quantiles of the sampled values which lie within the range being split, so
+	 * that each part should contain roughly the same number of items.
+	 *
+	 * @param sample values sampled from the dimension being split (for example, a histogram)
+	 * @return a split point provider
+	 */
+	static SplitPointProvider fromSample(List<JsonValue> sample) {
+		return new Candidates(sample);
+	}
+}
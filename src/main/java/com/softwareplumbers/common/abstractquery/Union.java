@@ -1,6 +1,7 @@
 package com.softwareplumbers.common.abstractquery;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.json.JsonValue;
@@ -14,6 +15,7 @@ public abstract class Union<T extends JsonValue, U extends AbstractSet<T,U>> imp
 	
 	protected List<U> data;
 	protected ValueType type;
+	private volatile UnionIndex<U> index;
 	
 	public Union(ValueType type, List<U> data) {
 		this.data = data;
@@ -51,19 +53,57 @@ public abstract class Union<T extends JsonValue, U extends AbstractSet<T,U>> imp
 		return false;
 	}
 
+	/** Get an index of the members of this union, or null if the union is too small to need one. */
+	private UnionIndex<U> getIndex() {
+		if (data.size() < UnionIndex.THRESHOLD) return null;
+		UnionIndex<U> result = index;
+		if (result == null) index = result = new UnionIndex<>(data);
+		return result;
+	}
+
+	/** Get the members of this union which might contain some set. */
+	private List<U> findContaining(U set) {
+		UnionIndex<U> index = getIndex();
+		return index == null ? data : index.findContaining(set);
+	}
+
+	/** Get the members of this union which might be equal to some set. */
+	private List<U> findEqual(U set) {
+		UnionIndex<U> index = getIndex();
+		return index == null ? data : index.findEqual(set);
+	}
+
+	/** Check whether this union contains some set.
+	 * 
+	 * A union contains another union if every member of the other union is contained by some member of
+	 * this union. Only members of this union which might contain the set are checked (see UnionIndex).
+	 * 
+	 * @param set Set to check
+	 * @return true if this union contains the set, false if not, null if we cannot tell
+	 */
 	@Override
 	public Boolean contains(U set) {
-		for (U c : this.data) {
+		if (set instanceof Union) return Tristate.every(((Union<T,U>)set).data, this::contains);
+		for (U c : findContaining(set)) {
 			Boolean contains_cube = c.contains(set);
 			if (contains_cube == null || contains_cube) return contains_cube;
 		}
 		return false;
 	}
 
+	/** Check whether this union may be equal to some other set.
+	 * 
+	 * Each member of this union is compared only with the members of the other union which might be
+	 * equal to it (see UnionIndex).
+	 * 
+	 * @param other Set to compare
+	 * @return true if every member of this union equals a member of the other, false if some member does not, null if we cannot tell
+	 */
 	@Override
 	public Boolean maybeEquals(U other) {
 		if (!(other instanceof Union)) return false;
-		return Tristate.every(data, constraint->Tristate.any(((Union<T,U>)other).data, oconstraint->constraint.maybeEquals(oconstraint)));
+		Union<T,U> union = (Union<T,U>)other;
+		return Tristate.every(data, constraint->Tristate.any(union.findEqual(constraint), oconstraint->constraint.maybeEquals(oconstraint)));
 	}
 	
     @Override
@@ -100,6 +140,14 @@ public abstract class Union<T extends JsonValue, U extends AbstractSet<T,U>> imp
 		return type;
 	}
 	
+	/** Get the sets which make up this union.
+	 * 
+	 * @return an unmodifiable list of the members of this union
+	 */
+	public List<U> getMembers() {
+		return Collections.unmodifiableList(data);
+	}
+	
 	public String toString() {
 		return toExpression(Visitors.DEFAULT);
 	}
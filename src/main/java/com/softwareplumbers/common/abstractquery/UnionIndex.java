@@ -0,0 +1,155 @@
+package com.softwareplumbers.common.abstractquery;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.json.JsonNumber;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/** Index of the members of a large union, used to find the members which might equal or contain some set.
+ *
+ * Members are grouped by signature (the dimensions constrained by a cube; a range is treated as a cube
+ * constraining a single dimension). Within a group, members whose every dimension is constrained to a
+ * single, unparameterized value are bucketed by a fingerprint made from those values.
+ *
+ * A cube can only equal a cube with the same signature, and can only be contained by a cube whose signature
+ * is a subset of its own. Two cubes which constrain some dimension to different values can neither equal nor
+ * contain each other. Members excluded on these grounds are certain not to match; all other members are
+ * returned as candidates, and must still be checked exactly. Members which are neither cubes nor ranges are
+ * always candidates.
+ *
+ * @param <U> Type of member
+ */
+final class UnionIndex<U> {
+
+    /** Unions with fewer members than this are not indexed */
+    static final int THRESHOLD = 16;
+
+    /** Members with the same signature */
+    private static final class Group {
+        final Set<String> signature;
+        final Map<List<Object>, List<Integer>> byFingerprint = new HashMap<>();
+        final List<Integer> others = new ArrayList<>();
+        final List<Integer> all = new ArrayList<>();
+
+        Group(Set<String> signature) {
+            this.signature = signature;
+        }
+
+        void add(Map<String, Object> dimensions, int index) {
+            List<Object> fingerprint = getFingerprint(dimensions, signature);
+            if (fingerprint == null)
+                others.add(index);
+            else
+                byFingerprint.computeIfAbsent(fingerprint, key -> new ArrayList<>()).add(index);
+            all.add(index);
+        }
+
+        void findMatching(Map<String, Object> dimensions, List<Integer> result) {
+            List<Object> fingerprint = getFingerprint(dimensions, signature);
+            if (fingerprint == null) {
+                result.addAll(all);
+            } else {
+                result.addAll(byFingerprint.getOrDefault(fingerprint, Collections.emptyList()));
+                result.addAll(others);
+            }
+        }
+    }
+
+    private final List<U> members;
+    private final Map<Set<String>, Group> groups = new LinkedHashMap<>();
+    private final List<Integer> unindexed = new ArrayList<>();
+
+    UnionIndex(List<U> members) {
+        this.members = members;
+        for (int i = 0; i < members.size(); i++) {
+            Map<String, Object> dimensions = getDimensions(members.get(i));
+            if (dimensions == null)
+                unindexed.add(i);
+            else
+                groups.computeIfAbsent(new TreeSet<>(dimensions.keySet()), Group::new).add(dimensions, i);
+        }
+    }
+
+    /** Get the value to which a constraint restricts a dimension.
+     *
+     * Values which compare equal have equal keys.
+     *
+     * @return a key for the value, or null if the constraint is not an unparameterized equality
+     */
+    static Object getKey(Object constraint) {
+        if (!(constraint instanceof Range.Equals)) return null;
+        JsonValue value = ((Range.Equals)constraint).value;
+        if (value == null || Param.isParam(value)) return null;
+        switch (value.getValueType()) {
+            case STRING:
+                return ((JsonString)value).getString();
+            case NUMBER:
+                BigDecimal number = ((JsonNumber)value).bigDecimalValue();
+                return number.signum() == 0 ? BigDecimal.ZERO : number.stripTrailingZeros();
+            case TRUE:
+            case FALSE:
+            case NULL:
+                return value.getValueType();
+            default:
+                return null;
+        }
+    }
+
+    /** Get the keys of the values to which the given dimensions are restricted, or null if any is not. */
+    private static List<Object> getFingerprint(Map<String, Object> dimensions, Set<String> signature) {
+        List<Object> fingerprint = new ArrayList<>(signature.size());
+        for (String dimension : signature) {
+            Object key = getKey(dimensions.get(dimension));
+            if (key == null) return null;
+            fingerprint.add(key);
+        }
+        return fingerprint;
+    }
+
+    /** Get the constraint on each dimension of a member, or null if the member is neither a cube nor a range. */
+    private static Map<String, Object> getDimensions(Object member) {
+        if (member instanceof Query.Impl) {
+            Query cube = (Query)member;
+            Map<String, Object> dimensions = new HashMap<>();
+            for (String dimension : cube.getConstraints()) dimensions.put(dimension, cube.getConstraint(dimension));
+            return dimensions;
+        }
+        if (member instanceof Range) return Collections.singletonMap("", member);
+        return null;
+    }
+
+    private List<U> getMembers(List<Integer> indices) {
+        Collections.sort(indices);
+        List<U> result = new ArrayList<>(indices.size());
+        for (int index : indices) result.add(members.get(index));
+        return result;
+    }
+
+    /** Get the members which might be equal to some set, in union order. */
+    List<U> findEqual(U set) {
+        Map<String, Object> dimensions = getDimensions(set);
+        if (dimensions == null) return members;
+        List<Integer> result = new ArrayList<>(unindexed);
+        Group group = groups.get(new TreeSet<>(dimensions.keySet()));
+        if (group != null) group.findMatching(dimensions, result);
+        return getMembers(result);
+    }
+
+    /** Get the members which might contain some set, in union order. */
+    List<U> findContaining(U set) {
+        Map<String, Object> dimensions = getDimensions(set);
+        if (dimensions == null) return members;
+        List<Integer> result = new ArrayList<>(unindexed);
+        for (Group group : groups.values())
+            if (dimensions.keySet().containsAll(group.signature)) group.findMatching(dimensions, result);
+        return getMembers(result);
+    }
+}
@@ -0,0 +1,77 @@
+package com.softwareplumbers.common.abstractquery.cache;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.index.QueryIndex;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.json.JsonObject;
+
+/** Index over cached queries, used to find the cache entries affected by a change to a document.
+ *
+ * Cached queries are held in a QueryIndex, which keeps an interval tree for each dimension
+ * constrained by some cached query. When a document changes, the value of each indexed dimension in
+ * the document is looked up in the corresponding tree, and only the queries which were found, or
+ * which do not constrain the dimension, on every dimension are tested against the document. The cost
+ * of a lookup therefore depends on the number of indexed dimensions and matching queries, rather
+ * than on the number of cached queries.
+ *
+ * A query which cannot determine whether it contains a document (because it is parameterized, or
+ * because the document has values of an unexpected type) is conservatively treated as containing it.
+ * A query whose range on a dimension is of a different type from the document's value is never
+ * excluded by the lookup, but always tested against the document.
+ *
+ * @param <K> Type of key used to identify cache entries
+ */
+public class InvalidationIndex<K> {
+
+    private final QueryIndex<K> index = new QueryIndex<>();
+
+    /** Add a cached query to the index, replacing any query previously added with the same key.
+     *
+     * @param key Key identifying the cache entry
+     * @param query Query for which results are cached
+     */
+    public void put(K key, Query query) {
+        index.put(key, query);
+    }
+
+    /** Remove a cached query from the index.
+     *
+     * @param key Key identifying the cache entry
+     * @return true if the key was found
+     */
+    public boolean remove(K key) {
+        return index.remove(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** Find the cache entries affected by a change to a document.
+     *
+     * An entry is affected if its query contains either the old or the new version of the document.
+     *
+     * @param oldVersion Document before the change, or null if the document was inserted
+     * @param newVersion Document after the change, or null if the document was deleted
+     * @return Keys of the affected cache entries
+     */
+    public Set<K> getAffected(JsonObject oldVersion, JsonObject newVersion) {
+        Set<K> results = new LinkedHashSet<>();
+        if (oldVersion != null) results.addAll(index.getContainingItem(oldVersion));
+        if (newVersion != null) results.addAll(index.getContainingItem(newVersion));
+        return results;
+    }
+
+    /** Find the cache entries affected by a change to a document, and remove them from the index.
+     *
+     * @param oldVersion Document before the change, or null if the document was inserted
+     * @param newVersion Document after the change, or null if the document was deleted
+     * @return Keys of the affected cache entries, which should now be evicted from the cache
+     */
+    public Set<K> invalidate(JsonObject oldVersion, JsonObject newVersion) {
+        Set<K> results = getAffected(oldVersion, newVersion);
+        results.forEach(this::remove);
+        return results;
+    }
+}
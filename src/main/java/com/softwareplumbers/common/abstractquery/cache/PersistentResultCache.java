@@ -0,0 +1,425 @@
+package com.softwareplumbers.common.abstractquery.cache;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.index.QueryIndex;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.json.JsonObject;
+
+/** Persistent, memory-mapped cache of query results.
+ *
+ * Intended as a second tier behind an in-process cache. Result rows are held in a memory-mapped file
+ * rather than on the heap, so they are not lost under heap pressure, and the file is re-read when the
+ * cache is reopened so that cached results survive a restart.
+ *
+ * Only an index of the cached queries is held on the heap. A lookup first looks for an entry with
+ * the same fingerprint (a hash of the query's encoded form) as the requested query. Failing that,
+ * any entry whose query contains the requested query can also satisfy the request; in this case the
+ * cached rows are filtered with the requested query. Containing entries, and entries affected by a
+ * change to a document, are found with a QueryIndex.
+ *
+ * File layout:
+ *
+ * | Offset | Content |
+ * |--------|---------|
+ * | 0      | magic number (int) |
+ * | 4      | format version (int) |
+ * | 8      | end of last committed record (long) |
+ * | 16     | records |
+ *
+ * Each record is a status byte (live or deleted), a payload length (int), and the payload: the
+ * encoded query followed by a row count and the rows. A record is forced to disk before the header is
+ * updated, and only becomes visible once the header has been updated, so a partially written record
+ * is ignored when the file is reopened. If a committed record is nevertheless found to be invalid
+ * when the file is reopened, it and any records after it are discarded. Compaction
+ * writes a new file which then replaces the old one, so the cache file is never left half compacted.
+ */
+public class PersistentResultCache implements Closeable {
+
+    private static final int MAGIC = 0x41514331;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int END_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final byte LIVE = 1;
+    private static final byte DELETED = 0;
+    private static final long INITIAL_SIZE = 1 << 20;
+
+    /** An entry in the on-heap index. */
+    private static class Entry {
+        final Query query;
+        final long fingerprint;
+        final int offset;
+        final int length;
+        final int rowCount;
+        Entry(Query query, long fingerprint, int offset, int length, int rowCount) {
+            this.query = query; this.fingerprint = fingerprint; this.offset = offset; this.length = length; this.rowCount = rowCount;
+        }
+        int getRecordSize() { return RECORD_HEADER_SIZE + length; }
+    }
+
+    private final Path file;
+    private final long maxSize;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int end;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<Long, List<Entry>> byFingerprint = new HashMap<>();
+    private final QueryIndex<Entry> queryIndex = new QueryIndex<>();
+
+    /** Open a cache file, creating it if necessary.
+     *
+     * @param file Path to cache file
+     * @param maxSize Maximum size of the file in bytes (at most 2GB)
+     * @throws IOException if the file cannot be opened or is not a cache file
+     */
+    public PersistentResultCache(Path file, long maxSize) throws IOException {
+        if (maxSize > Integer.MAX_VALUE) throw new IllegalArgumentException("Maximum cache size is " + Integer.MAX_VALUE);
+        if (maxSize < HEADER_SIZE) throw new IllegalArgumentException("Cache size must be at least " + HEADER_SIZE);
+        this.file = file;
+        this.maxSize = maxSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long existing = channel.size();
+        this.buffer = map(channel, existing);
+        if (existing == 0) {
+            writeHeader(buffer, HEADER_SIZE);
+            this.end = HEADER_SIZE;
+        } else {
+            try {
+                load(existing);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    /** Open a cache file with no practical size limit.
+     *
+     * @param file Path to cache file
+     * @throws IOException if the file cannot be opened or is not a cache file
+     */
+    public PersistentResultCache(Path file) throws IOException {
+        this(file, Integer.MAX_VALUE);
+    }
+
+    private MappedByteBuffer map(FileChannel channel, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(maxSize, Math.max(size, INITIAL_SIZE)));
+    }
+
+    private static void writeHeader(ByteBuffer buffer, int end) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(END_OFFSET, end);
+    }
+
+    private void setEnd(int end) {
+        this.end = end;
+        buffer.putLong(END_OFFSET, end);
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer result = buffer.duplicate();
+        result.position(offset);
+        result.limit(offset + length);
+        return result;
+    }
+
+    /** Read the header and index the live records of an existing file.
+     *
+     * Records are read up to the end recorded in the header. If an invalid record is found, it and
+     * all the records after it are discarded, and the header is rewritten to end before it.
+     *
+     * @param size Size of the file in bytes
+     * @throws IOException if the header is invalid
+     */
+    private void load(long size) throws IOException {
+        if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException(file + " is not a result cache file");
+        long committed = buffer.getLong(END_OFFSET);
+        if (committed < HEADER_SIZE || committed > Math.min(size, buffer.capacity()))
+            throw new IOException(file + " is corrupt: end of records " + committed + " is outside the file");
+        this.end = (int)committed;
+        int offset = HEADER_SIZE;
+        while (offset < end) {
+            Entry entry = readEntry(offset);
+            if (entry == null) {
+                setEnd(offset);
+                buffer.force();
+                break;
+            }
+            if (buffer.get(offset) == LIVE) index(entry);
+            offset += entry.getRecordSize();
+        }
+    }
+
+    /** Read the record at the given offset.
+     *
+     * @return an entry for the record, with no query if it is deleted, or null if the record is invalid
+     */
+    private Entry readEntry(int offset) {
+        if (end - offset < RECORD_HEADER_SIZE) return null;
+        byte status = buffer.get(offset);
+        int length = buffer.getInt(offset + 1);
+        if (status != LIVE && status != DELETED) return null;
+        if (length < 0 || length > end - offset - RECORD_HEADER_SIZE) return null;
+        if (status == DELETED) return new Entry(null, 0, offset, length, 0);
+        try {
+            ByteBuffer payload = slice(offset + RECORD_HEADER_SIZE, length);
+            byte[] encodedQuery = QueryCodec.readBytes(payload);
+            int rowCount = QueryCodec.readVarInt(payload);
+            return new Entry(QueryCodec.decode(encodedQuery), fingerprint(encodedQuery), offset, length, rowCount);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** 64 bit FNV-1a hash, which unlike hashCode is stable between JVM instances. */
+    private static long fingerprint(byte[] encodedQuery) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : encodedQuery) {
+            hash ^= (b & 0xFF);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void index(Entry entry) {
+        entries.add(entry);
+        byFingerprint.computeIfAbsent(entry.fingerprint, key -> new ArrayList<>()).add(entry);
+        queryIndex.put(entry, entry.query);
+    }
+
+    private void unindex(Entry entry) {
+        entries.remove(entry);
+        List<Entry> matching = byFingerprint.get(entry.fingerprint);
+        matching.remove(entry);
+        if (matching.isEmpty()) byFingerprint.remove(entry.fingerprint);
+        queryIndex.remove(entry);
+    }
+
+    private Optional<Entry> findExact(Query query, long fingerprint) {
+        return byFingerprint.getOrDefault(fingerprint, Collections.emptyList())
+            .stream()
+            .filter(entry -> entry.query.equals(query))
+            .findFirst();
+    }
+
+    private void delete(Entry entry) {
+        buffer.put(entry.offset, DELETED);
+        unindex(entry);
+    }
+
+    private int liveSize() {
+        return entries.stream().mapToInt(Entry::getRecordSize).sum();
+    }
+
+    /** Check whether a record of the given size could ever fit in the cache. */
+    private boolean fits(int required) {
+        return HEADER_SIZE + (long)required <= maxSize;
+    }
+
+    /** Make sure there is room to append the given number of bytes, which must fit in the cache.
+     *
+     * Deleted records are compacted away if the cache would otherwise exceed its maximum size;
+     * if there is still not enough room, the oldest entries are evicted. The entry being replaced,
+     * if any, is evicted only if there is not room for the new record alongside it.
+     *
+     * @param required Number of bytes to append
+     * @param replaced Entry which will be deleted once the new record is written, or null
+     */
+    private void ensureCapacity(int required, Entry replaced) throws IOException {
+        if (end + (long)required > maxSize) {
+            long available = maxSize - HEADER_SIZE - liveSize();
+            List<Entry> candidates = new ArrayList<>(entries);
+            if (replaced != null && candidates.remove(replaced)) candidates.add(replaced);
+            Iterator<Entry> oldest = candidates.iterator();
+            while (available < required) {
+                Entry evicted = oldest.next();
+                available += evicted.getRecordSize();
+                delete(evicted);
+            }
+            compact();
+        }
+        if (end + required > buffer.capacity()) {
+            long capacity = Math.min(maxSize, Math.max(end + (long)required, 2L * buffer.capacity()));
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    /** Add results for a query to the cache.
+     *
+     * Any results previously cached for an equal query are replaced once the new results have been
+     * written. If the new results are too large to be cached, or cannot be written, the previously
+     * cached results are kept.
+     *
+     * @param query Query which generated the results
+     * @param rows Results of the query
+     * @return false if the results are too large to be cached
+     * @throws IOException if the cache file could not be extended
+     */
+    public synchronized boolean put(Query query, List<JsonObject> rows) throws IOException {
+        byte[] encodedQuery = QueryCodec.encode(query);
+        long fingerprint = fingerprint(encodedQuery);
+
+        QueryCodec.Output payload = new QueryCodec.Output();
+        payload.writeBytes(encodedQuery);
+        payload.writeVarInt(rows.size());
+        for (JsonObject row : rows) QueryCodec.writeRow(payload, row);
+
+        int length = payload.size();
+        if (!fits(RECORD_HEADER_SIZE + length)) return false;
+        ensureCapacity(RECORD_HEADER_SIZE + length, findExact(query, fingerprint).orElse(null));
+        int offset = end;
+        ByteBuffer record = slice(offset, RECORD_HEADER_SIZE + length);
+        record.put(LIVE);
+        record.putInt(length);
+        record.put(payload.toByteArray());
+        // the record must reach the disk before the header which commits it
+        buffer.force();
+        setEnd(offset + RECORD_HEADER_SIZE + length);
+        // ensureCapacity may have compacted the file, moving the replaced entry
+        findExact(query, fingerprint).ifPresent(this::delete);
+        index(new Entry(query, fingerprint, offset, length, rows.size()));
+        return true;
+    }
+
+    private List<JsonObject> readRows(Entry entry) {
+        ByteBuffer payload = slice(entry.offset + RECORD_HEADER_SIZE, entry.length);
+        QueryCodec.readBytes(payload);
+        int rowCount = QueryCodec.readVarInt(payload);
+        List<JsonObject> rows = new ArrayList<>(rowCount);
+        for (int i = 0; i < rowCount; i++) rows.add(QueryCodec.readRow(payload));
+        return rows;
+    }
+
+    /** Get cached results for a query.
+     *
+     * If results were cached for an equal query, these are returned directly. Otherwise, the smallest
+     * cached result set for a query which contains the given query is filtered with the given query.
+     *
+     * @param query Query for which we need results
+     * @return Results for query, or nothing if they cannot be found in the cache.
+     */
+    public synchronized Optional<List<JsonObject>> get(Query query) {
+        Optional<Entry> exact = findExact(query, fingerprint(QueryCodec.encode(query)));
+        if (exact.isPresent()) return Optional.of(readRows(exact.get()));
+        Entry best = null;
+        for (Entry entry : queryIndex.getContaining(query)) {
+            if (best == null || entry.rowCount < best.rowCount) best = entry;
+        }
+        if (best == null) return Optional.empty();
+        return Optional.of(readRows(best).stream().filter(query).collect(Collectors.toList()));
+    }
+
+    /** Remove cached results for a query.
+     *
+     * @param query Query to remove
+     * @return true if results for the query were found and removed
+     */
+    public synchronized boolean remove(Query query) {
+        Optional<Entry> exact = findExact(query, fingerprint(QueryCodec.encode(query)));
+        exact.ifPresent(this::delete);
+        return exact.isPresent();
+    }
+
+    /** Remove any cached results which may be affected by a change to a document.
+     *
+     * @param oldVersion Document before the change, or null if the document was inserted
+     * @param newVersion Document after the change, or null if the document was deleted
+     * @return the number of cached result sets removed
+     */
+    public synchronized int invalidate(JsonObject oldVersion, JsonObject newVersion) {
+        Set<Entry> affected = new LinkedHashSet<>();
+        if (oldVersion != null) affected.addAll(queryIndex.getContainingItem(oldVersion));
+        if (newVersion != null) affected.addAll(queryIndex.getContainingItem(newVersion));
+        affected.forEach(this::delete);
+        return affected.size();
+    }
+
+    /** Get the queries for which results are cached.
+     *
+     * @return cached queries, oldest first.
+     */
+    public synchronized List<Query> getQueries() {
+        return entries.stream().map(entry -> entry.query).collect(Collectors.toList());
+    }
+
+    /** Get the number of cached result sets.
+     * @return the number of cached result sets
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Reclaim the space used by removed and replaced results.
+     *
+     * The live records are copied to a new file, which atomically replaces the cache file once it
+     * is complete. If compaction fails part way through, the cache file is left unchanged.
+     *
+     * @throws IOException if the compacted file could not be written
+     */
+    public synchronized void compact() throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        List<Entry> live = new ArrayList<>(entries);
+        List<Entry> moved = new ArrayList<>(live.size());
+        int offset = HEADER_SIZE;
+        try (FileChannel target = FileChannel.open(compacted,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer copy = map(target, HEADER_SIZE + (long)liveSize());
+            for (Entry entry : live) {
+                byte[] record = new byte[entry.getRecordSize()];
+                slice(entry.offset, record.length).get(record);
+                copy.position(offset);
+                copy.put(record);
+                moved.add(new Entry(entry.query, entry.fingerprint, offset, entry.length, entry.rowCount));
+                offset += record.length;
+            }
+            writeHeader(copy, offset);
+            copy.force();
+        }
+        buffer.force();
+        channel.close();
+        try {
+            Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = map(channel, channel.size());
+        }
+        end = offset;
+
+        entries.clear();
+        byFingerprint.clear();
+        live.forEach(queryIndex::remove);
+        moved.forEach(this::index);
+    }
+
+    /** Write any changes through to the underlying file. */
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
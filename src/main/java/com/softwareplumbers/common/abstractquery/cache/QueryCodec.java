@@ -0,0 +1,351 @@
+package com.softwareplumbers.common.abstractquery.cache;
+
+import com.softwareplumbers.common.abstractquery.AbstractSet;
+import com.softwareplumbers.common.abstractquery.ArrayConstraint;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import com.softwareplumbers.common.abstractquery.visitor.Visitor;
+import com.softwareplumbers.common.jsonview.JsonViewFactory;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.TreeMap;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+
+/** Compact binary encoding for queries and result rows.
+ *
+ * A query is encoded as the sequence of events generated by visiting it. Decoding replays those
+ * events into a builder which reconstructs the same structure, without re-normalizing it. The
+ * Json representation of a query is not used because it does not round-trip 'like', 'has', or
+ * parameterized bounds.
+ *
+ * Values, including whole result rows, are written as a type tag followed by the value; objects
+ * and arrays are written member by member, and numbers as a scale and unscaled value, so that rows
+ * are neither formatted nor parsed as Json text. All lengths and counts are written as unsigned
+ * variable-length integers.
+ */
+final class QueryCodec {
+
+    private static final byte QUERY = 1;
+    private static final byte DIMENSION = 2;
+    private static final byte OPERATOR = 3;
+    private static final byte AND = 4;
+    private static final byte OR = 5;
+    private static final byte BETWEEN = 6;
+    private static final byte SUB = 7;
+    private static final byte ARRAY = 8;
+    private static final byte VALUE = 9;
+    private static final byte UNBOUNDED = 10;
+    private static final byte END = 11;
+
+    private static final byte NULL_VALUE = 0;
+    private static final byte TRUE_VALUE = 1;
+    private static final byte FALSE_VALUE = 2;
+    private static final byte NUMBER_VALUE = 3;
+    private static final byte STRING_VALUE = 4;
+    private static final byte OBJECT_VALUE = 5;
+    private static final byte ARRAY_VALUE = 6;
+
+    private static final Object UNBOUNDED_MARKER = new Object();
+
+    private QueryCodec() { }
+
+    /** Growable output buffer with the primitive writers used by the codec. */
+    static class Output extends ByteArrayOutputStream {
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeNumber(BigDecimal value) {
+            int scale = value.scale();
+            writeVarInt((scale << 1) ^ (scale >> 31));
+            writeBytes(value.unscaledValue().toByteArray());
+        }
+
+        void writeObject(JsonObject value) {
+            writeVarInt(value.size());
+            for (Map.Entry<String, JsonValue> member : value.entrySet()) {
+                writeString(member.getKey());
+                writeValue(member.getValue());
+            }
+        }
+
+        void writeArray(JsonArray value) {
+            writeVarInt(value.size());
+            for (JsonValue item : value) writeValue(item);
+        }
+
+        void writeValue(JsonValue value) {
+            switch (value.getValueType()) {
+                case NULL: write(NULL_VALUE); break;
+                case TRUE: write(TRUE_VALUE); break;
+                case FALSE: write(FALSE_VALUE); break;
+                case NUMBER: write(NUMBER_VALUE); writeNumber(((JsonNumber)value).bigDecimalValue()); break;
+                case STRING: write(STRING_VALUE); writeString(((JsonString)value).getString()); break;
+                case OBJECT: write(OBJECT_VALUE); writeObject((JsonObject)value); break;
+                default: write(ARRAY_VALUE); writeArray((JsonArray)value);
+            }
+        }
+
+        void writeType(ValueType type) {
+            write(type == null ? 0 : type.ordinal() + 1);
+        }
+    }
+
+    static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte next;
+        do {
+            next = buffer.get();
+            value |= (next & 0x7F) << shift;
+            shift += 7;
+        } while ((next & 0x80) != 0);
+        return value;
+    }
+
+    static byte[] readBytes(ByteBuffer buffer) {
+        byte[] result = new byte[readVarInt(buffer)];
+        buffer.get(result);
+        return result;
+    }
+
+    static String readString(ByteBuffer buffer) {
+        return new String(readBytes(buffer), StandardCharsets.UTF_8);
+    }
+
+    static BigDecimal readNumber(ByteBuffer buffer) {
+        int scale = readVarInt(buffer);
+        return new BigDecimal(new BigInteger(readBytes(buffer)), (scale >>> 1) ^ -(scale & 1));
+    }
+
+    static JsonObject readObject(ByteBuffer buffer) {
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        int size = readVarInt(buffer);
+        for (int i = 0; i < size; i++) {
+            String name = readString(buffer);
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL_VALUE: builder.addNull(name); break;
+                case TRUE_VALUE: builder.add(name, true); break;
+                case FALSE_VALUE: builder.add(name, false); break;
+                case NUMBER_VALUE: builder.add(name, readNumber(buffer)); break;
+                case STRING_VALUE: builder.add(name, readString(buffer)); break;
+                case OBJECT_VALUE: builder.add(name, readObject(buffer)); break;
+                case ARRAY_VALUE: builder.add(name, readArray(buffer)); break;
+                default: throw new IllegalStateException("Unknown value tag: " + tag);
+            }
+        }
+        return builder.build();
+    }
+
+    static JsonArray readArray(ByteBuffer buffer) {
+        JsonArrayBuilder builder = Json.createArrayBuilder();
+        int size = readVarInt(buffer);
+        for (int i = 0; i < size; i++) {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL_VALUE: builder.addNull(); break;
+                case TRUE_VALUE: builder.add(true); break;
+                case FALSE_VALUE: builder.add(false); break;
+                case NUMBER_VALUE: builder.add(readNumber(buffer)); break;
+                case STRING_VALUE: builder.add(readString(buffer)); break;
+                case OBJECT_VALUE: builder.add(readObject(buffer)); break;
+                case ARRAY_VALUE: builder.add(readArray(buffer)); break;
+                default: throw new IllegalStateException("Unknown value tag: " + tag);
+            }
+        }
+        return builder.build();
+    }
+
+    static JsonValue readValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL_VALUE: return JsonValue.NULL;
+            case TRUE_VALUE: return JsonValue.TRUE;
+            case FALSE_VALUE: return JsonValue.FALSE;
+            case NUMBER_VALUE: return JsonViewFactory.asJson(readNumber(buffer));
+            case STRING_VALUE: return JsonViewFactory.asJson(readString(buffer));
+            case OBJECT_VALUE: return readObject(buffer);
+            case ARRAY_VALUE: return readArray(buffer);
+            default: throw new IllegalStateException("Unknown value tag: " + tag);
+        }
+    }
+
+    static ValueType readType(ByteBuffer buffer) {
+        int ordinal = buffer.get();
+        return ordinal == 0 ? null : ValueType.values()[ordinal - 1];
+    }
+
+    /** Write a result row. */
+    static void writeRow(Output out, JsonObject row) {
+        out.writeObject(row);
+    }
+
+    /** Read a result row. */
+    static JsonObject readRow(ByteBuffer buffer) {
+        return readObject(buffer);
+    }
+
+    /** Encode a query. */
+    static byte[] encode(Query query) {
+        Encoder encoder = new Encoder();
+        query.visit(encoder);
+        return encoder.getResult();
+    }
+
+    /** Decode a query previously written by encode.
+     *
+     * @param buffer Buffer positioned at the start of the encoded query.
+     * @return the decoded query
+     */
+    static Query decode(ByteBuffer buffer) {
+        Builder builder = new Builder();
+        int depth = 0;
+        do {
+            byte op = buffer.get();
+            switch (op) {
+                case QUERY: builder.queryExpr(); depth++; break;
+                case DIMENSION: builder.dimensionExpr(readString(buffer)); depth++; break;
+                case OPERATOR: builder.operExpr(readString(buffer)); depth++; break;
+                case AND: builder.andExpr(readType(buffer)); depth++; break;
+                case OR: builder.orExpr(readType(buffer)); depth++; break;
+                case BETWEEN: builder.betweenExpr(readType(buffer)); depth++; break;
+                case SUB: builder.subExpr(readString(buffer)); depth++; break;
+                case ARRAY: builder.arrayExpr(); depth++; break;
+                case VALUE: builder.value(readValue(buffer)); break;
+                case UNBOUNDED: builder.unbounded(); break;
+                case END: builder.endExpr(); depth--; break;
+                default: throw new IllegalStateException("Unknown opcode: " + op);
+            }
+        } while (depth > 0);
+        return builder.getResult();
+    }
+
+    /** Decode a query from a byte array. */
+    static Query decode(byte[] encoded) {
+        return decode(ByteBuffer.wrap(encoded));
+    }
+
+    private static class Encoder implements Visitor<byte[]> {
+
+        private final Output out = new Output();
+
+        @Override public void operExpr(String operator) { out.write(OPERATOR); out.writeString(operator); }
+        @Override public void andExpr(ValueType type) { out.write(AND); out.writeType(type); }
+        @Override public void orExpr(ValueType type) { out.write(OR); out.writeType(type); }
+        @Override public void betweenExpr(ValueType type) { out.write(BETWEEN); out.writeType(type); }
+        @Override public void subExpr(String operator) { out.write(SUB); out.writeString(operator); }
+        @Override public void arrayExpr() { out.write(ARRAY); }
+        @Override public void queryExpr() { out.write(QUERY); }
+        @Override public void dimensionExpr(String name) { out.write(DIMENSION); out.writeString(name); }
+        @Override public void value(JsonValue value) { out.write(VALUE); out.writeValue(value); }
+        @Override public void unbounded() { out.write(UNBOUNDED); }
+        @Override public void endExpr() { out.write(END); }
+        @Override public byte[] getResult() { return out.toByteArray(); }
+    }
+
+    private static class Frame {
+        final byte kind;
+        final String label;
+        final List<Object> children = new ArrayList<>();
+        Frame(byte kind, String label) { this.kind = kind; this.label = label; }
+    }
+
+    /** Rebuilds abstract sets from visitor events. */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class Builder implements Visitor<Query> {
+
+        private final Stack<Frame> frames = new Stack<>();
+        private Object result;
+
+        private void begin(byte kind, String label) { frames.push(new Frame(kind, label)); }
+
+        private void add(Object item) {
+            if (frames.isEmpty()) result = item; else frames.peek().children.add(item);
+        }
+
+        @Override public void operExpr(String operator) { begin(OPERATOR, operator); }
+        @Override public void andExpr(ValueType type) { begin(AND, null); }
+        @Override public void orExpr(ValueType type) { begin(OR, null); }
+        @Override public void betweenExpr(ValueType type) { begin(BETWEEN, null); }
+        @Override public void subExpr(String operator) { begin(SUB, operator); }
+        @Override public void arrayExpr() { begin(ARRAY, null); }
+        @Override public void queryExpr() { begin(QUERY, null); }
+        @Override public void dimensionExpr(String name) { begin(DIMENSION, name); }
+        @Override public void value(JsonValue value) { add(value); }
+        @Override public void unbounded() { add(UNBOUNDED_MARKER); }
+        @Override public void endExpr() { add(build(frames.pop())); }
+
+        @Override
+        public Query getResult() {
+            if (result == UNBOUNDED_MARKER) return Query.UNBOUNDED;
+            if (result instanceof Query) return (Query)result;
+            return Query.EMPTY; // The empty query is visited as an empty range
+        }
+
+        private static Object build(Frame frame) {
+            List<Object> children = frame.children;
+            switch (frame.kind) {
+                case QUERY:
+                    Map<String, AbstractSet<? extends JsonValue, ?>> constraints = new TreeMap<>();
+                    for (Object child : children) {
+                        Map.Entry<String, AbstractSet<? extends JsonValue, ?>> entry = (Map.Entry<String, AbstractSet<? extends JsonValue, ?>>)child;
+                        constraints.put(entry.getKey(), entry.getValue());
+                    }
+                    return new Query.Impl(constraints);
+                case DIMENSION:
+                    Object constraint = children.get(0);
+                    return new AbstractMap.SimpleImmutableEntry<>(frame.label, constraint == UNBOUNDED_MARKER ? Range.UNBOUNDED : constraint);
+                case OPERATOR:
+                    JsonValue value = (JsonValue)children.get(0);
+                    if (frame.label.equals(Range.Like.OPERATOR)) return Range.like(((JsonString)value).getString());
+                    if (value.getValueType() == ValueType.ARRAY && ((JsonArray)value).isEmpty()) return Range.EMPTY;
+                    return Range.getRange(frame.label, value);
+                case BETWEEN:
+                    return new Range.Between((Range.OpenRange)children.get(0), (Range.OpenRange)children.get(1));
+                case AND:
+                    if (children.get(0) instanceof ArrayConstraint) return new ArrayConstraint.ArrayConstraintIntersection(children);
+                    return new Range.RangeIntersection((List)children);
+                case OR:
+                    if (children.get(0) instanceof Query) return new Query.UnionCube((List)children);
+                    return new Range.RangeUnion((List)children);
+                case SUB:
+                    return ArrayConstraint.match((AbstractSet)children.get(0));
+                case ARRAY:
+                    return children.get(0);
+                default:
+                    throw new IllegalStateException("Unknown expression type: " + frame.kind);
+            }
+        }
+    }
+}
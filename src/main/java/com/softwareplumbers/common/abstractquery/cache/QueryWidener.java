@@ -0,0 +1,193 @@
+package com.softwareplumbers.common.abstractquery.cache;
+
+import com.softwareplumbers.common.abstractquery.AbstractSet;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import com.softwareplumbers.common.abstractquery.index.Interval;
+import com.softwareplumbers.common.immutablelist.QualifiedName;
+import com.softwareplumbers.common.jsonview.JsonViewFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/** Widens queries so that similar queries share cache entries.
+ *
+ * Each dimension may be given a bucketing function. The bounds of any range on that dimension are
+ * rounded outward to the edges of the buckets which contain them, so that, for example, age &gt;= 21
+ * and age &gt;= 22 are both widened to age &gt;= 20. The widened query contains every item contained by
+ * the original query; it is the widened query which is fetched and cached, and the original query is
+ * then applied to the rows returned with containsItem.
+ *
+ * Equality constraints, and ranges which cannot be bucketed (for example, parameterized ranges or
+ * 'like' expressions) are left unchanged.
+ */
+public class QueryWidener {
+
+    /** Divides the values of a dimension into buckets. */
+    public interface Buckets {
+
+        /** Get the lower edge of the bucket containing a value.
+         *
+         * @param value Value
+         * @return Greatest bucket edge less than or equal to value, or null if value cannot be bucketed
+         */
+        JsonValue floor(JsonValue value);
+
+        /** Get the upper edge of the bucket containing a value.
+         *
+         * @param value Value
+         * @return Least bucket edge strictly greater than value, or null if value cannot be bucketed
+         */
+        JsonValue next(JsonValue value);
+
+        /** Divide numbers into buckets of equal width, with an edge at zero.
+         *
+         * @param width Width of each bucket
+         * @return buckets of the given width
+         */
+        static Buckets width(Number width) {
+            BigDecimal size = new BigDecimal(width.toString());
+            if (size.signum() <= 0) throw new IllegalArgumentException("Bucket width must be positive");
+            return new Buckets() {
+                private BigDecimal edge(JsonValue value) {
+                    if (value == null || value.getValueType() != JsonValue.ValueType.NUMBER) return null;
+                    return ((JsonNumber)value).bigDecimalValue().divide(size, 0, RoundingMode.FLOOR).multiply(size);
+                }
+                @Override public JsonValue floor(JsonValue value) {
+                    BigDecimal edge = edge(value);
+                    return edge == null ? null : JsonViewFactory.asJson(edge);
+                }
+                @Override public JsonValue next(JsonValue value) {
+                    BigDecimal edge = edge(value);
+                    return edge == null ? null : JsonViewFactory.asJson(edge.add(size));
+                }
+            };
+        }
+    }
+
+    private final Map<QualifiedName, Buckets> buckets;
+
+    /** Create a widener which does not widen any dimension. */
+    public QueryWidener() {
+        this.buckets = Collections.emptyMap();
+    }
+
+    private QueryWidener(Map<QualifiedName, Buckets> buckets) {
+        this.buckets = buckets;
+    }
+
+    /** Get a widener which also widens some dimension.
+     *
+     * @param dimension Dimension to widen
+     * @param dimensionBuckets Buckets to which bounds on dimension are rounded
+     * @return A new widener
+     */
+    public QueryWidener withBuckets(QualifiedName dimension, Buckets dimensionBuckets) {
+        Map<QualifiedName, Buckets> result = new HashMap<>(buckets);
+        result.put(dimension, dimensionBuckets);
+        return new QueryWidener(Collections.unmodifiableMap(result));
+    }
+
+    /** Get a widener which also widens some dimension.
+     *
+     * @param dimension Name of dimension to widen
+     * @param dimensionBuckets Buckets to which bounds on dimension are rounded
+     * @return A new widener
+     */
+    public QueryWidener withBuckets(String dimension, Buckets dimensionBuckets) {
+        return withBuckets(QualifiedName.of(dimension), dimensionBuckets);
+    }
+
+    private static Range widen(Interval interval, Buckets buckets) {
+        if (interval.isPoint()) return Range.equals(interval.lower);
+        Range lower = Range.UNBOUNDED;
+        Range upper = Range.UNBOUNDED;
+        if (interval.lower != null) {
+            JsonValue edge = buckets.floor(interval.lower);
+            if (edge != null)
+                lower = Range.greaterThanOrEqual(edge);
+            else
+                lower = interval.lowerInclusive ? Range.greaterThanOrEqual(interval.lower) : Range.greaterThan(interval.lower);
+        }
+        if (interval.upper != null) {
+            JsonValue floor = buckets.floor(interval.upper);
+            JsonValue edge = floor != null && !interval.upperInclusive && Interval.compare(floor, interval.upper) == 0
+                ? interval.upper
+                : buckets.next(interval.upper);
+            if (edge != null)
+                upper = Range.lessThan(edge);
+            else
+                upper = interval.upperInclusive ? Range.lessThanOrEqual(interval.upper) : Range.lessThan(interval.upper);
+        }
+        return lower.intersect(upper);
+    }
+
+    /** Widen a range by rounding its bounds outward to bucket edges.
+     *
+     * Ranges with a bound which cannot be represented by an interval, such as a parameter, are not
+     * widened, since the widened range would silently drop that bound.
+     *
+     * @return a range containing range, or range itself if it cannot be widened
+     */
+    private static Range widen(Range range, Buckets buckets) {
+        List<Interval> intervals = Interval.fromExact(range);
+        if (intervals == null || intervals.isEmpty()) return range;
+        List<Range> result = new ArrayList<>();
+        for (Interval interval : intervals) result.add(widen(interval, buckets));
+        Range widened = Range.union(result);
+        return widened.equals(range) ? range : widened;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private Query widen(QualifiedName prefix, Query query) {
+        if (query instanceof Query.UnionCube) {
+            List<Query> members = ((Query.UnionCube)query).getMembers();
+            List<Query> widened = members.stream().map(member -> widen(prefix, member)).collect(Collectors.toList());
+            return widened.equals(members) ? query : Query.union(widened);
+        }
+        Query result = query;
+        for (String dimension : query.getConstraints()) {
+            QualifiedName path = prefix.add(dimension);
+            AbstractSet constraint = query.getConstraint(dimension);
+            AbstractSet widened = constraint;
+            Buckets dimensionBuckets = buckets.get(path);
+            if (constraint instanceof Range && dimensionBuckets != null)
+                widened = widen((Range)constraint, dimensionBuckets);
+            else if (constraint instanceof Query)
+                widened = widen(path, (Query)constraint);
+            if (widened != constraint) result = result.setConstraint(dimension, widened);
+        }
+        return result;
+    }
+
+    /** Widen a query by rounding the bounds of ranges outward to bucket edges.
+     *
+     * @param query Query to widen
+     * @return A query containing every item contained by query
+     */
+    public Query widen(Query query) {
+        return widen(QualifiedName.ROOT, query);
+    }
+
+    /** Fetch the results of a query through a cache, using the widened query as the cache key.
+     *
+     * @param query Query to execute
+     * @param cache Function which fetches the rows matching a query, from a cache if possible
+     * @return The rows matching query
+     */
+    public List<JsonObject> fetch(Query query, Function<Query, List<JsonObject>> cache) {
+        Query widened = widen(query);
+        List<JsonObject> rows = cache.apply(widened);
+        if (widened == query) return rows;
+        return rows.stream().filter(query).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,7 @@
+/** Caching support for query results.
+ *
+ * Because queries are held in a canonical form, and because one query can be tested for containment
+ * of another, cached results can be found for any query which is equal to, or narrower than, a query
+ * for which results have already been retrieved.
+ */
+package com.softwareplumbers.common.abstractquery.cache;
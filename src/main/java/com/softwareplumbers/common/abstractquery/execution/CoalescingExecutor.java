@@ -0,0 +1,281 @@
+package com.softwareplumbers.common.abstractquery.execution;
+
+import com.softwareplumbers.common.abstractquery.AbstractSet;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import com.softwareplumbers.common.abstractquery.visitor.Visitors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/** Merges many small concurrent queries into a single backend query.
+ *
+ * Queries submitted to the executor are held for a short window. When the window closes, all the
+ * queries held are combined into one union, which is sent to the backend once; the rows returned
+ * are then distributed to each caller by filtering them with the caller's query.
+ *
+ * The window is extended each time a new query arrives, so that a burst of queries is collected
+ * together; however no query is held for longer than the latency budget. A batch is sent immediately
+ * once it reaches the maximum batch size.
+ *
+ * Queries which differ in only a single dimension are merged before the union is formed, so that a
+ * burst of point lookups such as {id:'x'}, {id:'y'} is sent to the backend as a single query on id
+ * with a list of permitted values.
+ */
+public class CoalescingExecutor implements AutoCloseable {
+
+    private static class Request {
+        final Query query;
+        final CompletableFuture<List<JsonObject>> result = new CompletableFuture<>();
+        Request(Query query) { this.query = query; }
+    }
+
+    private final Function<Query, CompletableFuture<List<JsonObject>>> backend;
+    private final ScheduledExecutorService scheduler;
+    private final long windowNanos;
+    private final long latencyBudgetNanos;
+    private final int maxBatch;
+
+    private List<Request> batch = new ArrayList<>();
+    private long batchStarted;
+    private ScheduledFuture<?> timer;
+    /** Incremented whenever the timer is cancelled, so that a timer which is already running can tell it is stale */
+    private long timerGeneration;
+
+    /** Create a new coalescing executor.
+     *
+     * @param backend Function which fetches the results of a query from the backend
+     * @param scheduler Scheduler used to close batching windows
+     * @param window Time to wait for further queries after a query arrives
+     * @param latencyBudget Maximum time for which any query is held before it is sent
+     * @param unit Time unit for window and latencyBudget
+     * @param maxBatch Maximum number of queries in a batch
+     */
+    public CoalescingExecutor(
+        Function<Query, CompletableFuture<List<JsonObject>>> backend,
+        ScheduledExecutorService scheduler,
+        long window,
+        long latencyBudget,
+        TimeUnit unit,
+        int maxBatch) {
+        if (maxBatch < 1) throw new IllegalArgumentException("Maximum batch size must be at least 1");
+        if (latencyBudget < window) throw new IllegalArgumentException("Latency budget must be no less than window");
+        this.backend = backend;
+        this.scheduler = scheduler;
+        this.windowNanos = unit.toNanos(window);
+        this.latencyBudgetNanos = unit.toNanos(latencyBudget);
+        this.maxBatch = maxBatch;
+    }
+
+    /** Create a new coalescing executor with a latency budget equal to the window.
+     *
+     * @param backend Function which fetches the results of a query from the backend
+     * @param scheduler Scheduler used to close batching windows
+     * @param window Maximum time for which any query is held before it is sent
+     * @param unit Time unit for window
+     * @param maxBatch Maximum number of queries in a batch
+     */
+    public CoalescingExecutor(
+        Function<Query, CompletableFuture<List<JsonObject>>> backend,
+        ScheduledExecutorService scheduler,
+        long window,
+        TimeUnit unit,
+        int maxBatch) {
+        this(backend, scheduler, window, window, unit, maxBatch);
+    }
+
+    /** Submit a query for execution.
+     *
+     * @param query Query to execute
+     * @return Future which will complete with the rows matching query
+     */
+    public CompletableFuture<List<JsonObject>> submit(Query query) {
+        Request request = new Request(query);
+        List<Request> full = null;
+        synchronized(this) {
+            long now = System.nanoTime();
+            if (batch.isEmpty()) batchStarted = now;
+            batch.add(request);
+            cancelTimer();
+            if (batch.size() >= maxBatch) {
+                full = takeBatch();
+            } else {
+                long delay = Math.min(windowNanos, batchStarted + latencyBudgetNanos - now);
+                long generation = timerGeneration;
+                timer = scheduler.schedule(() -> expire(generation), Math.max(0, delay), TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) execute(full);
+        return request.result;
+    }
+
+    private void cancelTimer() {
+        if (timer != null) timer.cancel(false);
+        timer = null;
+        timerGeneration++;
+    }
+
+    private List<Request> takeBatch() {
+        List<Request> taken = batch;
+        batch = new ArrayList<>();
+        cancelTimer();
+        return taken;
+    }
+
+    /** Close the window, unless the timer has been cancelled since it was scheduled. */
+    private void expire(long generation) {
+        List<Request> taken;
+        synchronized(this) {
+            if (generation != timerGeneration) return;
+            taken = takeBatch();
+        }
+        if (!taken.isEmpty()) execute(taken);
+    }
+
+    /** Send any queries currently held to the backend immediately. */
+    public void flush() {
+        List<Request> taken;
+        synchronized(this) {
+            taken = takeBatch();
+        }
+        if (!taken.isEmpty()) execute(taken);
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private void execute(List<Request> requests) {
+        Query combined = Query.union(merge(requests.stream().map(request -> request.query).collect(Collectors.toList())));
+        CompletableFuture<List<JsonObject>> result;
+        try {
+            result = backend.apply(combined);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((rows, error) -> {
+            for (Request request : requests) {
+                if (error != null)
+                    request.result.completeExceptionally(error);
+                else
+                    request.result.complete(rows.stream().filter(request.query).collect(Collectors.toList()));
+            }
+        });
+    }
+
+    /** Check whether two queries constrain the same dimensions, and agree on all but the given one. */
+    private static boolean agreeExcept(Query a, Query b, String dimension) {
+        if (!(a instanceof Query.Impl && b instanceof Query.Impl)) return false;
+        if (!a.getConstraints().equals(b.getConstraints())) return false;
+        for (String fixed : a.getConstraints()) {
+            if (!fixed.equals(dimension) && !Objects.equals(a.getConstraint(fixed), b.getConstraint(fixed))) return false;
+        }
+        return true;
+    }
+
+    /** Get a key for the constraints which a query places on every dimension other than the given one.
+     *
+     * Queries which differ only on that dimension have the same key. Constraints are compared by
+     * their string form, so queries with the same key must still be compared exactly.
+     */
+    private static List<String> getFixed(Query query, String dimension) {
+        List<String> result = new ArrayList<>();
+        result.add(dimension);
+        for (String fixed : new TreeSet<>(query.getConstraints())) {
+            if (fixed.equals(dimension)) continue;
+            result.add(fixed);
+            result.add(query.getConstraint(fixed).toExpression(Visitors.DEFAULT));
+        }
+        return result;
+    }
+
+    /** Queries which differ only on one dimension, to be merged into a single query. */
+    private static class Group {
+        final Query first;
+        String dimension;
+        final List<AbstractSet<? extends JsonValue, ?>> constraints = new ArrayList<>();
+
+        Group(Query first) {
+            this.first = first;
+        }
+
+        boolean accepts(Query query, String candidate) {
+            return (dimension == null || dimension.equals(candidate))
+                && agreeExcept(first, query, candidate)
+                && sameKind(first.getConstraint(candidate), query.getConstraint(candidate));
+        }
+
+        void add(Query query, String candidate) {
+            if (dimension == null) {
+                dimension = candidate;
+                constraints.add(first.getConstraint(candidate));
+            }
+            constraints.add(query.getConstraint(candidate));
+        }
+
+        @SuppressWarnings("unchecked")
+        Query getQuery() {
+            if (dimension == null) return first;
+            AbstractSet<? extends JsonValue, ?> union = constraints.get(0) instanceof Range
+                ? Range.union((List<Range>)(List<?>)constraints)
+                : Query.union((List<Query>)(List<?>)constraints);
+            return first.setConstraint(dimension, union);
+        }
+    }
+
+    /** Merge queries which differ only on one dimension into a single query.
+     *
+     * Each query is merged into the first query already seen which it differs from on only a single
+     * dimension, so that {id:'x'}, {id:'y'} becomes {id: 'x' or 'y'}. Queries already seen are grouped
+     * by the constraints on all but one of their dimensions, so only queries in the same group are
+     * compared, and the constraints collected in each group are combined with a single union. Once a
+     * query has absorbed another, it only absorbs further queries which differ from it on the same
+     * dimension.
+     */
+    static List<Query> merge(List<Query> queries) {
+        List<Group> groups = new ArrayList<>();
+        Map<List<String>, List<Integer>> byFixed = new HashMap<>();
+        for (Query query : queries) {
+            int target = -1;
+            String dimension = null;
+            if (query instanceof Query.Impl) {
+                for (String candidate : query.getConstraints()) {
+                    for (int i : byFixed.getOrDefault(getFixed(query, candidate), Collections.emptyList())) {
+                        if ((target < 0 || i < target) && groups.get(i).accepts(query, candidate)) {
+                            target = i;
+                            dimension = candidate;
+                        }
+                    }
+                }
+            }
+            if (target < 0) {
+                if (query instanceof Query.Impl) {
+                    for (String candidate : query.getConstraints())
+                        byFixed.computeIfAbsent(getFixed(query, candidate), key -> new ArrayList<>()).add(groups.size());
+                }
+                groups.add(new Group(query));
+            } else {
+                groups.get(target).add(query, dimension);
+            }
+        }
+        return groups.stream().map(Group::getQuery).collect(Collectors.toList());
+    }
+
+    private static boolean sameKind(AbstractSet<?, ?> a, AbstractSet<?, ?> b) {
+        return a instanceof Range && b instanceof Range || a instanceof Query && b instanceof Query;
+    }
+}
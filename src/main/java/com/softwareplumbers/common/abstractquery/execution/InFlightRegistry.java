@@ -0,0 +1,88 @@
+package com.softwareplumbers.common.abstractquery.execution;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.json.JsonObject;
+
+/** Shares backend fetches between concurrent requests for the same data.
+ *
+ * When a query is fetched, the registry first checks the queries which are currently being
+ * fetched from the backend. If one of them is equal to the new query, the new request simply shares
+ * its result. If one of them contains the new query, the new request waits for the same result and
+ * filters it locally. Only if no query in flight can supply the results is a new fetch sent to the
+ * backend.
+ *
+ * Queries are removed from the registry as soon as their fetch completes, so the registry does not
+ * act as a cache.
+ *
+ * Each caller, including the one whose request started the fetch, gets its own future which depends
+ * on the shared fetch, so cancelling or completing one caller's future does not affect the others.
+ */
+public class InFlightRegistry {
+
+    private static class Fetch {
+        final Query query;
+        final CompletableFuture<List<JsonObject>> result = new CompletableFuture<>();
+        Fetch(Query query) { this.query = query; }
+    }
+
+    private final Function<Query, CompletableFuture<List<JsonObject>>> backend;
+    private final List<Fetch> inFlight = new ArrayList<>();
+
+    /** Create a new registry.
+     *
+     * @param backend Function which fetches the results of a query from the backend
+     */
+    public InFlightRegistry(Function<Query, CompletableFuture<List<JsonObject>>> backend) {
+        this.backend = backend;
+    }
+
+    /** Get results for a query, sharing any suitable fetch already in progress.
+     *
+     * @param query Query to fetch
+     * @return Future which will complete with the results of the query; it is not shared with any
+     * other caller
+     */
+    public CompletableFuture<List<JsonObject>> fetch(Query query) {
+        Fetch fetch;
+        synchronized(this) {
+            Fetch containing = null;
+            for (Fetch candidate : inFlight) {
+                if (candidate.query.equals(query)) return candidate.result.thenApply(Function.identity());
+                if (containing == null && candidate.query.contains(query) == Boolean.TRUE) containing = candidate;
+            }
+            if (containing != null) {
+                return containing.result.thenApply(rows -> rows.stream().filter(query).collect(Collectors.toList()));
+            }
+            fetch = new Fetch(query);
+            inFlight.add(fetch);
+        }
+
+        CompletableFuture<List<JsonObject>> result;
+        try {
+            result = backend.apply(query);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((rows, error) -> {
+            synchronized(this) {
+                inFlight.remove(fetch);
+            }
+            if (error != null) fetch.result.completeExceptionally(error); else fetch.result.complete(rows);
+        });
+        return fetch.result.thenApply(Function.identity());
+    }
+
+    /** Get the number of fetches currently in progress.
+     *
+     * @return the number of distinct queries currently being fetched from the backend
+     */
+    public synchronized int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,221 @@
+package com.softwareplumbers.common.abstractquery.execution;
+
+import com.softwareplumbers.common.abstractquery.AbstractSet;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import com.softwareplumbers.common.abstractquery.Union;
+import com.softwareplumbers.common.abstractquery.visitor.Formatter;
+import com.softwareplumbers.common.abstractquery.visitor.Visitable;
+import com.softwareplumbers.common.abstractquery.visitor.Visitor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+
+/** Splits queries which are too large for a backend into smaller chunks.
+ *
+ * A query is measured with some measure - such as the number of terms, the number of values,
+ * or the length of the text produced by a formatter. A query which exceeds the budget is split into
+ * chunks, each within the budget, whose union is equal to the original query. Unions are split between
+ * their members; the members of a long list of permitted values (such as an IN-list) are split
+ * between chunks while any other constraints are repeated in every chunk.
+ *
+ * A query which cannot be split any further is returned as a single chunk, even if it exceeds the
+ * budget.
+ */
+public class QueryChunker {
+
+    private static class Counter implements Visitor<Long> {
+        private final boolean countValues;
+        private long count = 0;
+        Counter(boolean countValues) { this.countValues = countValues; }
+        @Override public void operExpr(String operator) { if (!countValues) count++; }
+        @Override public void andExpr(ValueType type) { }
+        @Override public void orExpr(ValueType type) { }
+        @Override public void betweenExpr(ValueType type) { if (!countValues) count++; }
+        @Override public void subExpr(String operator) { }
+        @Override public void arrayExpr() { }
+        @Override public void queryExpr() { }
+        @Override public void dimensionExpr(String name) { }
+        @Override public void value(JsonValue value) { if (countValues) count++; }
+        @Override public void unbounded() { }
+        @Override public void endExpr() { }
+        @Override public Long getResult() { return count; }
+    }
+
+    private static final Formatter<Long> TERMS = () -> new Counter(false);
+    private static final Formatter<Long> VALUES = () -> new Counter(true);
+
+    /** Measure the number of comparison terms in a query.
+     *
+     * @return A measure which counts each comparison (including each end of a range) as one term
+     */
+    public static ToLongFunction<Query> terms() {
+        return query -> query.toExpression(TERMS);
+    }
+
+    /** Measure the number of values in a query.
+     *
+     * Where every value is sent to the backend as a bind parameter, this is the number of parameters
+     * required. The named parameters of a parameterized SQL query can instead be measured with size().
+     *
+     * @return A measure which counts each value in a query
+     */
+    public static ToLongFunction<Query> values() {
+        return query -> query.toExpression(VALUES);
+    }
+
+    /** Measure the size of a query when formatted with some formatter.
+     *
+     * @param formatter Formatter used to format the query
+     * @param size Function which measures the formatted query
+     * @param <T> Type of formatted query
+     * @return A measure of the formatted size of a query
+     */
+    public static <T> ToLongFunction<Query> size(Formatter<T> formatter, ToLongFunction<T> size) {
+        return query -> size.applyAsLong(query.toExpression(formatter));
+    }
+
+    /** Measure the length in bytes of query text.
+     *
+     * @param formatter Formatter used to format the query (for example, an SQL formatter)
+     * @return A measure of the length of the formatted query in UTF-8 bytes
+     */
+    public static ToLongFunction<Query> bytes(Formatter<String> formatter) {
+        return size(formatter, text -> text.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private final ToLongFunction<Query> measure;
+    private final long budget;
+
+    /** Create a new query chunker.
+     *
+     * @param measure Measure of query size
+     * @param budget Maximum size of any chunk
+     */
+    public QueryChunker(ToLongFunction<Query> measure, long budget) {
+        if (budget < 1) throw new IllegalArgumentException("Budget must be at least 1");
+        this.measure = measure;
+        this.budget = budget;
+    }
+
+    /** Split a query into chunks within the budget.
+     *
+     * @param query Query to split
+     * @return Queries within budget, whose union is equal to query
+     */
+    public List<Query> chunk(Query query) {
+        List<Query> result = new ArrayList<>();
+        chunk(query, result);
+        return result;
+    }
+
+    private void chunk(Query query, List<Query> result) {
+        long size = measure.applyAsLong(query);
+        List<Query> parts = size > budget ? split(query, (int)Math.min(Integer.MAX_VALUE, (size + budget - 1) / budget)) : null;
+        if (parts == null) {
+            result.add(query);
+        } else {
+            for (Query part : parts) chunk(part, result);
+        }
+    }
+
+    /** Execute a query in chunks.
+     *
+     * All chunks are sent to the backend at once. The rows returned are merged, and where a row
+     * is returned by more than one chunk, only the first row with any given key is retained.
+     *
+     * @param query Query to execute
+     * @param backend Function which fetches the results of a query from the backend
+     * @param key Function which gets a unique key from a row
+     * @return Future which will complete with the rows matching query
+     */
+    public CompletableFuture<List<JsonObject>> execute(
+        Query query,
+        Function<Query, CompletableFuture<List<JsonObject>>> backend,
+        Function<JsonObject, ?> key) {
+        List<CompletableFuture<List<JsonObject>>> results = chunk(query).stream()
+            .map(backend)
+            .collect(Collectors.toList());
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+            .thenApply(done -> {
+                Map<Object, JsonObject> merged = new LinkedHashMap<>();
+                for (CompletableFuture<List<JsonObject>> rows : results)
+                    for (JsonObject row : rows.join())
+                        merged.putIfAbsent(key.apply(row), row);
+                return new ArrayList<>(merged.values());
+            });
+    }
+
+    private static <T> List<List<T>> groups(List<T> items, int parts) {
+        List<List<T>> result = new ArrayList<>();
+        int count = Math.min(parts, items.size());
+        for (int i = 0; i < count; i++)
+            result.add(items.subList((int)((long)i * items.size() / count), (int)((long)(i + 1) * items.size() / count)));
+        return result;
+    }
+
+    /** Split a constraint into some number of parts whose union is the original constraint.
+     *
+     * Sub-lists of the members of a union are already irreducible, so are used to construct new
+     * unions directly.
+     *
+     * @return the parts, or null if the constraint cannot be split.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static List<AbstractSet> split(AbstractSet constraint, int parts) {
+        if (constraint instanceof Query.UnionCube) {
+            return groups(((Query.UnionCube)constraint).getMembers(), parts).stream()
+                .map(group -> group.size() == 1 ? group.get(0) : new Query.UnionCube(new ArrayList<>(group)))
+                .collect(Collectors.toList());
+        }
+        if (constraint instanceof Range.RangeUnion) {
+            return groups(((Range.RangeUnion)constraint).getMembers(), parts).stream()
+                .map(group -> group.size() == 1 ? group.get(0) : new Range.RangeUnion(new ArrayList<>(group)))
+                .collect(Collectors.toList());
+        }
+        if (constraint instanceof Query.Impl) {
+            Query query = (Query)constraint;
+            String largest = null;
+            long largestSize = 0;
+            for (String dimension : query.getConstraints()) {
+                AbstractSet candidate = query.getConstraint(dimension);
+                if (!isSplittable(candidate)) continue;
+                long size = ((Visitable)candidate).toExpression(TERMS);
+                if (largest == null || size > largestSize) {
+                    largest = dimension;
+                    largestSize = size;
+                }
+            }
+            if (largest == null) return null;
+            List<AbstractSet> result = new ArrayList<>();
+            for (AbstractSet part : split(query.getConstraint(largest), parts))
+                result.add(query.setConstraint(largest, (AbstractSet<? extends JsonValue, ?>)part));
+            return result;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static List<Query> split(Query query, int parts) {
+        List<AbstractSet> result = split((AbstractSet)query, parts);
+        return result == null ? null : result.stream().map(part -> (Query)part).collect(Collectors.toList());
+    }
+
+    private static boolean isSplittable(AbstractSet<?, ?> constraint) {
+        if (constraint instanceof Union) return true;
+        if (constraint instanceof Query.Impl) {
+            Query query = (Query)constraint;
+            return query.getConstraints().stream().anyMatch(dimension -> isSplittable(query.getConstraint(dimension)));
+        }
+        return false;
+    }
+}
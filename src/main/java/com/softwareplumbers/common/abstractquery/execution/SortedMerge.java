@@ -0,0 +1,198 @@
+package com.softwareplumbers.common.abstractquery.execution;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.json.JsonObject;
+
+/** Merges sorted results from each disjunct of a union into a single sorted, deduplicated result.
+ *
+ * Each disjunct of a union query is executed separately, and must return rows sorted by key. The
+ * rows are merged lazily through a heap holding the next row from each source. A source is not
+ * advanced when a row is taken from it, but only on the following call to hasNext or next, so no
+ * more than one row per source is held in memory and a slow consumer slows the sources. Rows with
+ * the same key are returned only once.
+ *
+ * Source iterators which implement AutoCloseable are closed when the merge is closed or exhausted.
+ *
+ * @param <K> Type of key by which rows are sorted
+ */
+public class SortedMerge<K> implements Iterator<JsonObject>, AutoCloseable {
+
+    private class Head {
+        final Iterator<JsonObject> source;
+        JsonObject row;
+        K key;
+        Head(Iterator<JsonObject> source) { this.source = source; }
+        boolean advance() {
+            if (!source.hasNext()) return false;
+            JsonObject next = source.next();
+            K nextKey = key(next);
+            if (row != null && comparator.compare(key, nextKey) > 0)
+                throw new IllegalStateException("Source is not sorted: " + next + " follows " + row);
+            row = next;
+            key = nextKey;
+            return true;
+        }
+    }
+
+    private final List<Iterator<JsonObject>> sources;
+    private final Function<JsonObject, K> key;
+    private final Comparator<? super K> comparator;
+    private final PriorityQueue<Head> heap;
+    /** Source of the row most recently returned, which has yet to be advanced */
+    private Head pending;
+    private boolean started;
+    private boolean closed;
+    private K lastKey;
+    private boolean hasLastKey;
+
+    /** Create a merge over some sorted sources.
+     *
+     * @param sources Iterators over rows sorted by key
+     * @param key Function which gets the key from a row
+     * @param comparator Order of keys
+     */
+    public SortedMerge(List<Iterator<JsonObject>> sources, Function<JsonObject, K> key, Comparator<? super K> comparator) {
+        this.sources = new ArrayList<>(sources);
+        this.key = key;
+        this.comparator = comparator;
+        this.heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> comparator.compare(a.key, b.key));
+    }
+
+    /** Merge the results of each disjunct of a query.
+     *
+     * @param query Query to execute; if a union, each member is executed separately
+     * @param source Function which gets an iterator over the rows matching a query, sorted by key
+     * @param key Function which gets the key from a row
+     * @param comparator Order of keys
+     * @param <K> Type of key
+     * @return merge over the results of each disjunct
+     */
+    public static <K> SortedMerge<K> of(Query query, Function<Query, Iterator<JsonObject>> source, Function<JsonObject, K> key, Comparator<? super K> comparator) {
+        List<Query> disjuncts = query instanceof Query.UnionCube ? ((Query.UnionCube)query).getMembers() : Collections.singletonList(query);
+        return new SortedMerge<>(disjuncts.stream().filter(disjunct -> !disjunct.isEmpty()).map(source).collect(Collectors.toList()), key, comparator);
+    }
+
+    /** Merge the results of each disjunct of a query, in the natural order of keys.
+     *
+     * @param query Query to execute; if a union, each member is executed separately
+     * @param source Function which gets an iterator over the rows matching a query, sorted by key
+     * @param key Function which gets the key from a row
+     * @param <K> Type of key
+     * @return merge over the results of each disjunct
+     */
+    public static <K extends Comparable<? super K>> SortedMerge<K> of(Query query, Function<Query, Iterator<JsonObject>> source, Function<JsonObject, K> key) {
+        return of(query, source, key, Comparator.naturalOrder());
+    }
+
+    private K key(JsonObject row) {
+        return key.apply(row);
+    }
+
+    private void start() {
+        if (started) return;
+        started = true;
+        for (Iterator<JsonObject> source : sources) {
+            Head head = new Head(source);
+            if (head.advance()) heap.add(head); else close(source);
+        }
+    }
+
+    private void advancePending() {
+        if (pending == null) return;
+        Head head = pending;
+        pending = null;
+        if (head.advance()) heap.add(head); else close(head.source);
+    }
+
+    private void skipDuplicates() {
+        while (hasLastKey && !heap.isEmpty() && comparator.compare(heap.peek().key, lastKey) == 0) {
+            take();
+            advancePending();
+        }
+    }
+
+    private JsonObject take() {
+        Head head = heap.poll();
+        lastKey = head.key;
+        hasLastKey = true;
+        pending = head;
+        return head.row;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) return false;
+        start();
+        advancePending();
+        skipDuplicates();
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public JsonObject next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return take();
+    }
+
+    /** Get the merged rows as a stream.
+     *
+     * @return A sequential stream which closes this merge when closed
+     */
+    public Stream<JsonObject> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false)
+            .onClose(this::close);
+    }
+
+    private static void close(Iterator<JsonObject> source) {
+        if (source instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable)source).close();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** Close every source not yet exhausted.
+     *
+     * All sources are closed even if closing one of them fails. The first failure is then rethrown,
+     * with any later failures attached as suppressed exceptions.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        List<Iterator<JsonObject>> open = new ArrayList<>();
+        if (!started) {
+            open.addAll(sources);
+        } else {
+            if (pending != null) open.add(pending.source);
+            pending = null;
+            while (!heap.isEmpty()) open.add(heap.poll().source);
+        }
+        RuntimeException failure = null;
+        for (Iterator<JsonObject> source : open) {
+            try {
+                close(source);
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e; else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,6 @@
+/** Support for executing queries against a backend.
+ *
+ * Utilities which reduce the number or size of the queries sent to a backend data store, by sharing,
+ * combining, or splitting queries before they are executed.
+ */
+package com.softwareplumbers.common.abstractquery.execution;
@@ -0,0 +1,296 @@
+package com.softwareplumbers.common.abstractquery.index;
+
+import com.softwareplumbers.common.abstractquery.JsonUtil;
+import com.softwareplumbers.common.abstractquery.Param;
+import com.softwareplumbers.common.abstractquery.Range;
+import com.softwareplumbers.common.abstractquery.visitor.Visitor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Stack;
+import javax.json.JsonNumber;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+
+/** An interval between two Json values.
+ *
+ * Json values are ordered first by type (null, false, true, numbers, strings) and then by value,
+ * which is consistent with the ordering used by Range wherever that ordering is defined. A null bound
+ * means that the interval is unbounded in that direction.
+ *
+ * Intervals are used to index ranges; the intervals derived from a range always contain every value
+ * contained by the range, but may contain other values also.
+ */
+public final class Interval {
+
+    /** Interval containing every value */
+    public static final Interval ALL = new Interval(null, false, null, false);
+
+    public final JsonValue lower;
+    public final boolean lowerInclusive;
+    public final JsonValue upper;
+    public final boolean upperInclusive;
+
+    public Interval(JsonValue lower, boolean lowerInclusive, JsonValue upper, boolean upperInclusive) {
+        this.lower = lower;
+        this.lowerInclusive = lower != null && lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upper != null && upperInclusive;
+    }
+
+    /** Create an interval containing a single value.
+     *
+     * @param value value to be contained
+     * @return an interval containing only value
+     */
+    public static Interval point(JsonValue value) {
+        return new Interval(value, true, value, true);
+    }
+
+    public boolean isPoint() {
+        return lower != null && lowerInclusive && upperInclusive && compare(lower, upper) == 0;
+    }
+
+    public boolean isBounded() {
+        return lower != null && upper != null;
+    }
+
+    private static int rank(ValueType type) {
+        switch (type) {
+            case NULL: return 0;
+            case FALSE: return 1;
+            case TRUE: return 2;
+            case NUMBER: return 3;
+            case STRING: return 4;
+            case ARRAY: return 5;
+            default: return 6;
+        }
+    }
+
+    /** Total ordering of Json values.
+     *
+     * Arrays and objects are ordered after other values but are not ordered amongst themselves.
+     *
+     * @param a first value (a java null is treated as a Json null)
+     * @param b second value (a java null is treated as a Json null)
+     * @return a negative number, zero, or a positive number as a is less than, equal to, or greater than b
+     */
+    public static int compare(JsonValue a, JsonValue b) {
+        ValueType typeA = JsonUtil.getValueType(a);
+        ValueType typeB = JsonUtil.getValueType(b);
+        int result = Integer.compare(rank(typeA), rank(typeB));
+        if (result != 0) return result;
+        switch (typeA) {
+            case NUMBER: return JsonUtil.compare((JsonNumber)a, (JsonNumber)b);
+            case STRING: return JsonUtil.compare((JsonString)a, (JsonString)b);
+            default: return 0;
+        }
+    }
+
+    /** Compare lower bounds, where an unbounded lower bound is least. */
+    static int compareLower(Interval a, Interval b) {
+        if (a.lower == null) return b.lower == null ? 0 : -1;
+        if (b.lower == null) return 1;
+        int result = compare(a.lower, b.lower);
+        if (result != 0) return result;
+        return Boolean.compare(b.lowerInclusive, a.lowerInclusive);
+    }
+
+    /** Compare upper bounds, where an unbounded upper bound is greatest. */
+    static int compareUpper(Interval a, Interval b) {
+        if (a.upper == null) return b.upper == null ? 0 : 1;
+        if (b.upper == null) return -1;
+        int result = compare(a.upper, b.upper);
+        if (result != 0) return result;
+        return Boolean.compare(a.upperInclusive, b.upperInclusive);
+    }
+
+    /** Check whether the lower bound of this interval is at or below some value. */
+    boolean startsBefore(JsonValue value) {
+        if (lower == null) return true;
+        int result = compare(lower, value);
+        return result < 0 || result == 0 && lowerInclusive;
+    }
+
+    /** Check whether the upper bound of this interval is at or above some value. */
+    boolean endsAfter(JsonValue value) {
+        if (upper == null) return true;
+        int result = compare(upper, value);
+        return result > 0 || result == 0 && upperInclusive;
+    }
+
+    /** Check whether the lower bound of this interval is at or below the upper bound of another. */
+    boolean startsBeforeEndOf(Interval other) {
+        if (lower == null || other.upper == null) return true;
+        int result = compare(lower, other.upper);
+        return result < 0 || result == 0 && lowerInclusive && other.upperInclusive;
+    }
+
+    /** Check whether this interval has any value in common with another.
+     *
+     * @param other interval
+     * @return true if some value lies within both intervals
+     */
+    public boolean overlaps(Interval other) {
+        return startsBeforeEndOf(other) && other.startsBeforeEndOf(this);
+    }
+
+    /** Check whether this interval contains a value.
+     *
+     * @param value Value to check (a java null is treated as a Json null)
+     * @return true if value lies within this interval
+     */
+    public boolean contains(JsonValue value) {
+        return startsBefore(value) && endsAfter(value);
+    }
+
+    /** Get the intersection of this interval with some other interval.
+     *
+     * @param other interval
+     * @return intersection of intervals, or null if the intervals do not intersect
+     */
+    public Interval intersect(Interval other) {
+        Interval lowerSource = compareLower(this, other) >= 0 ? this : other;
+        Interval upperSource = compareUpper(this, other) <= 0 ? this : other;
+        Interval result = new Interval(lowerSource.lower, lowerSource.lowerInclusive, upperSource.upper, upperSource.upperInclusive);
+        if (result.lower != null && result.upper != null) {
+            int comparison = compare(result.lower, result.upper);
+            if (comparison > 0 || comparison == 0 && !(result.lowerInclusive && result.upperInclusive)) return null;
+        }
+        return result;
+    }
+
+    /** Get intervals which together contain every value in a range.
+     *
+     * Parameterized bounds, 'like' expressions and the like cannot be represented; if no useful
+     * intervals can be derived from the range, null is returned.
+     *
+     * @param range Range to convert
+     * @return intervals covering the range, or null
+     */
+    public static List<Interval> from(Range range) {
+        if (range.isEmpty()) return Collections.emptyList();
+        Extractor extractor = new Extractor();
+        range.visit(extractor);
+        return extractor.getResult();
+    }
+
+    /** Get intervals which together contain exactly the values in a range.
+     *
+     * Unlike from, which ignores any part of an intersection it cannot represent, this returns null
+     * unless every bound in the range is represented in the result.
+     *
+     * @param range Range to convert
+     * @return intervals containing exactly the values in the range, or null
+     */
+    public static List<Interval> fromExact(Range range) {
+        if (range.isEmpty()) return Collections.emptyList();
+        Extractor extractor = new Extractor();
+        range.visit(extractor);
+        return extractor.inexact ? null : extractor.getResult();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Interval)) return false;
+        Interval interval = (Interval)other;
+        return compareLower(this, interval) == 0 && compareUpper(this, interval) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        // Numerically equal values may have different representations, so only types are hashed
+        return Objects.hash(lower == null ? null : lower.getValueType(), lowerInclusive, upper == null ? null : upper.getValueType(), upperInclusive);
+    }
+
+    @Override
+    public String toString() {
+        return (lowerInclusive ? "[" : "(")
+            + (lower == null ? "" : lower.toString())
+            + ","
+            + (upper == null ? "" : upper.toString())
+            + (upperInclusive ? "]" : ")");
+    }
+
+    private static class Frame {
+        final String operator;
+        final List<List<Interval>> children = new ArrayList<>();
+        boolean union;
+        JsonValue value;
+        Frame(String operator, boolean union) { this.operator = operator; this.union = union; }
+    }
+
+    /** Visitor which derives covering intervals from a range expression. */
+    private static class Extractor implements Visitor<List<Interval>> {
+
+        private final Stack<Frame> frames = new Stack<>();
+        private List<Interval> result;
+        /** Set if some part of an intersection could not be represented */
+        private boolean inexact;
+
+        @Override public void operExpr(String operator) { frames.push(new Frame(operator, false)); }
+        @Override public void andExpr(ValueType type) { frames.push(new Frame(null, false)); }
+        @Override public void orExpr(ValueType type) { frames.push(new Frame(null, true)); }
+        @Override public void subExpr(String operator) { frames.push(new Frame(operator, false)); }
+        @Override public void arrayExpr() { frames.push(new Frame(null, false)); }
+        @Override public void queryExpr() { frames.push(new Frame(null, false)); }
+        @Override public void dimensionExpr(String name) { frames.push(new Frame(null, false)); }
+        @Override public void value(JsonValue value) { if (!frames.isEmpty()) frames.peek().value = value; }
+        @Override public void unbounded() { add(null); }
+        @Override public List<Interval> getResult() { return result; }
+
+        @Override
+        public void endExpr() {
+            Frame frame = frames.pop();
+            add(frame.operator != null ? fromOperator(frame.operator, frame.value) : frame.union ? union(frame.children) : intersect(frame.children));
+        }
+
+        private void add(List<Interval> intervals) {
+            if (frames.isEmpty()) result = intervals; else frames.peek().children.add(intervals);
+        }
+
+        private static List<Interval> fromOperator(String operator, JsonValue value) {
+            if (value == null || Param.isParam(value) || !JsonUtil.isAtomicValue(value)) return null;
+            switch (operator) {
+                case "=": return Collections.singletonList(point(value));
+                case "<": return Collections.singletonList(new Interval(null, false, value, false));
+                case "<=": return Collections.singletonList(new Interval(null, false, value, true));
+                case ">": return Collections.singletonList(new Interval(value, false, null, false));
+                case ">=": return Collections.singletonList(new Interval(value, true, null, false));
+                default: return null;
+            }
+        }
+
+        private static List<Interval> union(List<List<Interval>> children) {
+            List<Interval> result = new ArrayList<>();
+            for (List<Interval> child : children) {
+                if (child == null) return null;
+                result.addAll(child);
+            }
+            return result;
+        }
+
+        /** Intersect whichever children are simple intervals; others can safely be ignored. */
+        private List<Interval> intersect(List<List<Interval>> children) {
+            List<Interval> result = null;
+            for (List<Interval> child : children) {
+                if (child == null) {
+                    inexact = true;
+                    continue;
+                }
+                if (result == null)
+                    result = child;
+                else if (result.size() == 1 && child.size() == 1) {
+                    Interval intersection = result.get(0).intersect(child.get(0));
+                    result = intersection == null ? Collections.emptyList() : Collections.singletonList(intersection);
+                } else {
+                    inexact = true;
+                    if (child.size() < result.size()) result = child;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.softwareplumbers.common.abstractquery.index;
+
+import java.util.Random;
+import java.util.function.Consumer;
+import javax.json.JsonValue;
+
+/** Collection of values keyed by interval.
+ *
+ * Supports finding all the values whose interval contains a point, or overlaps another interval, in
+ * time proportional to log(n) plus the number of results.
+ *
+ * Implemented as a treap ordered by the lower bound of each interval, in which each node also records
+ * the greatest upper bound in its subtree. Not thread safe.
+ *
+ * @param <V> Type of value stored in the tree
+ */
+public class IntervalTree<V> {
+
+    /** An entry in the tree, which can be used to remove it. */
+    public static final class Handle<V> {
+        public final Interval interval;
+        public final V value;
+        private final long sequence;
+        private final int priority;
+        private Handle<V> left;
+        private Handle<V> right;
+        private Interval maxUpper;
+
+        private Handle(Interval interval, V value, long sequence, int priority) {
+            this.interval = interval;
+            this.value = value;
+            this.sequence = sequence;
+            this.priority = priority;
+            this.maxUpper = interval;
+        }
+    }
+
+    private final Random random = new Random();
+    private Handle<V> root;
+    private long sequence;
+    private int size;
+
+    private static int compare(Handle<?> a, Handle<?> b) {
+        int result = Interval.compareLower(a.interval, b.interval);
+        return result != 0 ? result : Long.compare(a.sequence, b.sequence);
+    }
+
+    private static <V> Handle<V> update(Handle<V> node) {
+        Interval maxUpper = node.interval;
+        if (node.left != null && Interval.compareUpper(node.left.maxUpper, maxUpper) > 0) maxUpper = node.left.maxUpper;
+        if (node.right != null && Interval.compareUpper(node.right.maxUpper, maxUpper) > 0) maxUpper = node.right.maxUpper;
+        node.maxUpper = maxUpper;
+        return node;
+    }
+
+    private static <V> Handle<V> rotateRight(Handle<V> node) {
+        Handle<V> left = node.left;
+        node.left = left.right;
+        left.right = update(node);
+        return update(left);
+    }
+
+    private static <V> Handle<V> rotateLeft(Handle<V> node) {
+        Handle<V> right = node.right;
+        node.right = right.left;
+        right.left = update(node);
+        return update(right);
+    }
+
+    private static <V> Handle<V> insert(Handle<V> node, Handle<V> added) {
+        if (node == null) return added;
+        if (compare(added, node) < 0) {
+            node.left = insert(node.left, added);
+            if (node.left.priority > node.priority) return rotateRight(node);
+        } else {
+            node.right = insert(node.right, added);
+            if (node.right.priority > node.priority) return rotateLeft(node);
+        }
+        return update(node);
+    }
+
+    private static <V> Handle<V> delete(Handle<V> node, Handle<V> removed) {
+        if (node == null) return null;
+        if (node == removed) {
+            if (node.left == null) return node.right;
+            if (node.right == null) return node.left;
+            if (node.left.priority > node.right.priority) {
+                node = rotateRight(node);
+                node.right = delete(node.right, removed);
+            } else {
+                node = rotateLeft(node);
+                node.left = delete(node.left, removed);
+            }
+        } else if (compare(removed, node) < 0) {
+            node.left = delete(node.left, removed);
+        } else {
+            node.right = delete(node.right, removed);
+        }
+        return update(node);
+    }
+
+    /** Add a value to the tree.
+     *
+     * @param interval Interval with which value is associated
+     * @param value Value to add
+     * @return A handle which can be used to remove the value
+     */
+    public Handle<V> add(Interval interval, V value) {
+        Handle<V> handle = new Handle<>(interval, value, sequence++, random.nextInt());
+        root = insert(root, handle);
+        size++;
+        return handle;
+    }
+
+    /** Remove a value previously added to the tree.
+     *
+     * @param handle Handle returned when the value was added
+     */
+    public void remove(Handle<V> handle) {
+        root = delete(root, handle);
+        handle.left = handle.right = null;
+        size--;
+    }
+
+    private static <V> void stab(Handle<V> node, JsonValue point, Consumer<? super V> results) {
+        while (node != null && node.maxUpper.endsAfter(point)) {
+            stab(node.left, point, results);
+            if (!node.interval.startsBefore(point)) return;
+            if (node.interval.endsAfter(point)) results.accept(node.value);
+            node = node.right;
+        }
+    }
+
+    /** Find all values whose interval contains a point.
+     *
+     * @param point value to find (a java null is treated as a Json null)
+     * @param results consumer which will receive the values found
+     */
+    public void stab(JsonValue point, Consumer<? super V> results) {
+        stab(root, point, results);
+    }
+
+    private static <V> void overlap(Handle<V> node, Interval interval, Consumer<? super V> results) {
+        while (node != null && interval.startsBeforeEndOf(node.maxUpper)) {
+            overlap(node.left, interval, results);
+            if (!node.interval.startsBeforeEndOf(interval)) return;
+            if (node.interval.overlaps(interval)) results.accept(node.value);
+            node = node.right;
+        }
+    }
+
+    /** Find all values whose interval overlaps another interval.
+     *
+     * @param interval interval to find
+     * @param results consumer which will receive the values found
+     */
+    public void overlap(Interval interval, Consumer<? super V> results) {
+        overlap(root, interval, results);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
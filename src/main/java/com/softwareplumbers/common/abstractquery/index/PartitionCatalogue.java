@@ -0,0 +1,78 @@
+package com.softwareplumbers.common.abstractquery.index;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Catalogue of data partitions, used to find the partitions which a query needs to read.
+ *
+ * Each partition is described by a query, such as {tenant:'a', day:['2024-01-01','2024-01-02']},
+ * which contains every item in the partition. Descriptors are held in a QueryIndex, so that only
+ * the partitions whose ranges overlap the query on every indexed dimension are tested against it.
+ *
+ * Partitions are returned together with a residual query, from which any constraints already
+ * implied by the partition descriptor have been removed.
+ *
+ * @param <P> Type used to identify partitions
+ */
+public class PartitionCatalogue<P> {
+
+    /** A partition which may contain items matching a query. */
+    public static final class Match<P> {
+        /** Partition identifier */
+        public final P partition;
+        /** Query describing the partition */
+        public final Query descriptor;
+        /** Query to execute against the partition */
+        public final Query residual;
+
+        private Match(P partition, Query descriptor, Query residual) {
+            this.partition = partition;
+            this.descriptor = descriptor;
+            this.residual = residual;
+        }
+
+        @Override
+        public String toString() {
+            return partition + ": " + residual;
+        }
+    }
+
+    private final QueryIndex<P> index = new QueryIndex<>();
+
+    /** Add a partition to the catalogue, replacing any partition previously added with the same identifier.
+     *
+     * @param partition Partition identifier
+     * @param descriptor Query which contains every item in the partition
+     */
+    public void put(P partition, Query descriptor) {
+        index.put(partition, descriptor);
+    }
+
+    /** Remove a partition from the catalogue.
+     *
+     * @param partition Partition identifier
+     * @return true if the partition was found
+     */
+    public boolean remove(P partition) {
+        return index.remove(partition);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** Find the partitions which might contain items matching a query.
+     *
+     * @param query Query to execute
+     * @return Partitions which might contain matching items, in the order they were added, each with the query to execute against it
+     */
+    public List<Match<P>> prune(Query query) {
+        List<Match<P>> result = new ArrayList<>();
+        for (P partition : index.getIntersecting(query)) {
+            Query descriptor = index.get(partition);
+            if (descriptor != null) result.add(new Match<>(partition, descriptor, query.residual(descriptor)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,372 @@
+package com.softwareplumbers.common.abstractquery.index;
+
+import com.softwareplumbers.common.abstractquery.AbstractSet;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import com.softwareplumbers.common.immutablelist.QualifiedName;
+import com.softwareplumbers.common.abstractquery.JsonUtil;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/** Index over a collection of stored queries.
+ *
+ * Finds the stored queries which contain, or intersect, some other query, or which contain some
+ * item, without testing every stored query.
+ *
+ * For each stored query, an envelope is computed on every dimension constrained by a range: a list
+ * of intervals which together contain every value permitted on that dimension. (For a union, a
+ * dimension has an envelope only if every member of the union constrains it.) Every dimension with
+ * an envelope in some stored query has an interval tree holding the envelopes on that dimension.
+ *
+ * Each stored query is given a slot number, and each dimension also has a bitmap of the slots of
+ * the stored queries with an envelope on that dimension. A stored query can only intersect, or
+ * contain, a query if their envelopes overlap on every dimension which both constrain; and a stored
+ * query which constrains a dimension cannot contain a query which does not. Candidates are found by
+ * looking up each dimension of the query in the corresponding tree, and removing from a bitmap of
+ * all the stored queries those which constrain the dimension but were not found in the tree. Only
+ * the candidates are then tested with contains or intersects.
+ *
+ * The index may be read and updated concurrently from several threads.
+ *
+ * @param <K> Type of key used to identify stored queries
+ */
+public class QueryIndex<K> {
+
+    private static class Entry<K> {
+        final K key;
+        final Query query;
+        final long sequence;
+        final int slot;
+        final Map<QualifiedName, List<IntervalTree.Handle<Entry<K>>>> handles = new HashMap<>();
+        Entry(K key, Query query, long sequence, int slot) {
+            this.key = key;
+            this.query = query;
+            this.sequence = sequence;
+            this.slot = slot;
+        }
+    }
+
+    /** Index of the stored queries on one dimension. */
+    private static class Dimension<K> {
+        final IntervalTree<Entry<K>> tree = new IntervalTree<>();
+        /** Slots of the stored queries with an envelope on this dimension */
+        final BitSet constrained = new BitSet();
+        /** Slots of the stored queries whose envelope on this dimension is bounded only by values of one type */
+        final Map<JsonValue.ValueType, BitSet> byType = new EnumMap<>(JsonValue.ValueType.class);
+        /** Slots of the stored queries whose envelope on this dimension has no bounds */
+        final BitSet untyped = new BitSet();
+
+        /** Get the type of every bound in some intervals, or null if they are of more than one type. */
+        static JsonValue.ValueType getType(List<Interval> intervals) {
+            JsonValue.ValueType result = null;
+            for (Interval interval : intervals) {
+                for (JsonValue bound : new JsonValue[] { interval.lower, interval.upper }) {
+                    if (bound == null) continue;
+                    JsonValue.ValueType type = JsonUtil.getValueType(bound);
+                    if (result == null) result = type; else if (result != type) return null;
+                }
+            }
+            return result;
+        }
+
+        List<IntervalTree.Handle<Entry<K>>> add(Entry<K> entry, List<Interval> intervals) {
+            List<IntervalTree.Handle<Entry<K>>> handles = new ArrayList<>();
+            for (Interval interval : intervals) handles.add(tree.add(interval, entry));
+            constrained.set(entry.slot);
+            JsonValue.ValueType type = getType(intervals);
+            boolean bounded = intervals.stream().anyMatch(interval -> interval.lower != null || interval.upper != null);
+            if (!bounded)
+                untyped.set(entry.slot);
+            else if (type != null)
+                byType.computeIfAbsent(type, key -> new BitSet()).set(entry.slot);
+            return handles;
+        }
+
+        void remove(Entry<K> entry, List<IntervalTree.Handle<Entry<K>>> handles) {
+            handles.forEach(tree::remove);
+            constrained.clear(entry.slot);
+            untyped.clear(entry.slot);
+            byType.values().forEach(slots -> slots.clear(entry.slot));
+        }
+
+        /** Get the slots of the stored queries which constrain this dimension to values of the given type only. */
+        BitSet getTyped(JsonValue.ValueType type) {
+            BitSet result = (BitSet)untyped.clone();
+            BitSet typed = byType.get(type);
+            if (typed != null) result.or(typed);
+            return result;
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<K, Entry<K>> entries = new LinkedHashMap<>();
+    private final Map<QualifiedName, Dimension<K>> dimensions = new HashMap<>();
+    private final List<Entry<K>> slots = new ArrayList<>();
+    private final BitSet occupied = new BitSet();
+    private long sequence;
+
+    private static List<Query> getMembers(Query query) {
+        if (query instanceof Query.UnionCube) return ((Query.UnionCube)query).getMembers();
+        if (query.isEmpty()) return Collections.emptyList();
+        return Collections.singletonList(query);
+    }
+
+    private static void getEnvelope(QualifiedName prefix, Query query, Map<QualifiedName, List<Interval>> result) {
+        for (String dimension : query.getConstraints()) {
+            AbstractSet<? extends JsonValue, ?> constraint = query.getConstraint(dimension);
+            QualifiedName path = prefix.add(dimension);
+            if (constraint instanceof Range) {
+                List<Interval> intervals = Interval.from((Range)constraint);
+                if (intervals != null) result.put(path, intervals);
+            } else if (constraint instanceof Query.Impl) {
+                getEnvelope(path, (Query)constraint, result);
+            }
+        }
+    }
+
+    /** Get intervals covering the values permitted by a query on each indexable dimension. */
+    private static Map<QualifiedName, List<Interval>> getEnvelope(Query query) {
+        Map<QualifiedName, List<Interval>> result = new HashMap<>();
+        if (query instanceof Query.Impl) {
+            getEnvelope(QualifiedName.ROOT, query, result);
+        } else if (query instanceof Query.UnionCube) {
+            boolean first = true;
+            for (Query member : ((Query.UnionCube)query).getMembers()) {
+                Map<QualifiedName, List<Interval>> envelope = getEnvelope(member);
+                if (first) {
+                    result.putAll(envelope);
+                    first = false;
+                } else {
+                    result.keySet().retainAll(envelope.keySet());
+                    for (Map.Entry<QualifiedName, List<Interval>> intervals : result.entrySet()) {
+                        List<Interval> merged = new ArrayList<>(intervals.getValue());
+                        merged.addAll(envelope.get(intervals.getKey()));
+                        intervals.setValue(merged);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Add a query to the index, replacing any query previously added with the same key.
+     *
+     * @param key Key identifying the query
+     * @param query Query to add
+     */
+    public void put(K key, Query query) {
+        lock.writeLock().lock();
+        try {
+            removeEntry(key);
+            int slot = occupied.nextClearBit(0);
+            Entry<K> entry = new Entry<>(key, query, sequence++, slot);
+            for (Map.Entry<QualifiedName, List<Interval>> intervals : getEnvelope(query).entrySet()) {
+                Dimension<K> dimension = dimensions.computeIfAbsent(intervals.getKey(), path -> new Dimension<>());
+                entry.handles.put(intervals.getKey(), dimension.add(entry, intervals.getValue()));
+            }
+            if (slot == slots.size()) slots.add(entry); else slots.set(slot, entry);
+            occupied.set(slot);
+            entries.put(key, entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean removeEntry(K key) {
+        Entry<K> entry = entries.remove(key);
+        if (entry == null) return false;
+        for (Map.Entry<QualifiedName, List<IntervalTree.Handle<Entry<K>>>> handles : entry.handles.entrySet()) {
+            Dimension<K> dimension = dimensions.get(handles.getKey());
+            dimension.remove(entry, handles.getValue());
+            if (dimension.constrained.isEmpty()) dimensions.remove(handles.getKey());
+        }
+        slots.set(entry.slot, null);
+        occupied.clear(entry.slot);
+        return true;
+    }
+
+    /** Remove a query from the index.
+     *
+     * @param key Key identifying the query
+     * @return true if the key was found
+     */
+    public boolean remove(K key) {
+        lock.writeLock().lock();
+        try {
+            return removeEntry(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Get a stored query.
+     *
+     * @param key Key identifying the query
+     * @return the query, or null if the key is not found
+     */
+    public Query get(K key) {
+        lock.readLock().lock();
+        try {
+            Entry<K> entry = entries.get(key);
+            return entry == null ? null : entry.query;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Get the constraint on a path within a query.
+     *
+     * @return the constraint, null if the path is unconstrained, or Range.UNBOUNDED if the path cannot be followed
+     */
+    private static AbstractSet<? extends JsonValue, ?> getConstraint(Query query, QualifiedName path) {
+        AbstractSet<? extends JsonValue, ?> constraint = query;
+        for (String part : path) {
+            if (constraint instanceof Query.Impl || constraint == Query.UNBOUNDED)
+                constraint = ((Query)constraint).getConstraint(part);
+            else
+                return Range.UNBOUNDED;
+            if (constraint == null) return null;
+        }
+        return constraint;
+    }
+
+    /** Find the slots of the stored queries which might intersect or contain a cube, using the index only. */
+    private BitSet getCandidates(Query cube, boolean containing) {
+        BitSet candidates = (BitSet)occupied.clone();
+        for (Map.Entry<QualifiedName, Dimension<K>> dimension : dimensions.entrySet()) {
+            AbstractSet<? extends JsonValue, ?> constraint = getConstraint(cube, dimension.getKey());
+            if (constraint == null) {
+                if (containing) candidates.andNot(dimension.getValue().constrained);
+            } else {
+                List<Interval> intervals = constraint instanceof Range ? Interval.from((Range)constraint) : null;
+                if (intervals == null) continue;
+                BitSet excluded = (BitSet)dimension.getValue().constrained.clone();
+                for (Interval interval : intervals) dimension.getValue().tree.overlap(interval, entry -> excluded.clear(entry.slot));
+                candidates.andNot(excluded);
+            }
+            if (candidates.isEmpty()) break;
+        }
+        return candidates;
+    }
+
+    /** Get the value at a path within an item.
+     *
+     * @return the value, JsonValue.NULL if the final element of the path is missing, or null if the path cannot be followed
+     */
+    private static JsonValue resolve(JsonObject item, QualifiedName path) {
+        JsonValue value = item;
+        for (String part : path) {
+            if (value == null || value.getValueType() != JsonValue.ValueType.OBJECT) return null;
+            value = ((JsonObject)value).get(part);
+        }
+        return value == null ? JsonValue.NULL : value;
+    }
+
+    private List<K> getKeys(BitSet candidates, Predicate<Entry<K>> test) {
+        return candidates.stream()
+            .mapToObj(slots::get)
+            .filter(test)
+            .sorted(Comparator.comparingLong(entry -> entry.sequence))
+            .map(entry -> entry.key)
+            .collect(Collectors.toList());
+    }
+
+    /** Find the stored queries which contain a query.
+     *
+     * @param query Query to find
+     * @return Keys of the stored queries which definitely contain query, in the order they were added
+     */
+    public List<K> getContaining(Query query) {
+        List<Query> cubes = getMembers(query);
+        if (cubes.isEmpty()) return Collections.emptyList();
+        lock.readLock().lock();
+        try {
+            BitSet candidates = (BitSet)occupied.clone();
+            for (Query cube : cubes) candidates.and(getCandidates(cube, true));
+            return getKeys(candidates, entry -> cubes.stream().allMatch(cube -> entry.query.contains(cube) == Boolean.TRUE));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Find the stored queries which intersect a query.
+     *
+     * @param query Query to find
+     * @return Keys of the stored queries which may intersect query, in the order they were added
+     */
+    public List<K> getIntersecting(Query query) {
+        List<Query> cubes = getMembers(query);
+        lock.readLock().lock();
+        try {
+            BitSet result = new BitSet();
+            for (Query cube : cubes) {
+                BitSet candidates = getCandidates(cube, false);
+                candidates.andNot(result);
+                candidates.stream()
+                    .filter(slot -> slots.get(slot).query.intersects(cube) != Boolean.FALSE)
+                    .forEach(result::set);
+            }
+            return getKeys(result, entry -> true);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean mayContain(Query query, JsonObject item) {
+        try {
+            return query.containsItem(item) != Boolean.FALSE;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    /** Find the stored queries which contain an item.
+     *
+     * A stored query which cannot determine whether it contains the item (because it is
+     * parameterized, or because the item has values of an unexpected type) is included. A stored
+     * query whose envelope on a dimension is bounded by values of a different type from the item's
+     * value is therefore not excluded by the index, but tested against the item.
+     *
+     * @param item Item to find
+     * @return Keys of the stored queries which may contain item, in the order they were added
+     */
+    public List<K> getContainingItem(JsonObject item) {
+        lock.readLock().lock();
+        try {
+            BitSet candidates = (BitSet)occupied.clone();
+            for (Map.Entry<QualifiedName, Dimension<K>> dimension : dimensions.entrySet()) {
+                JsonValue value = resolve(item, dimension.getKey());
+                if (value == null) continue;
+                BitSet excluded = dimension.getValue().getTyped(JsonUtil.getValueType(value));
+                dimension.getValue().tree.stab(value, entry -> excluded.clear(entry.slot));
+                candidates.andNot(excluded);
+                if (candidates.isEmpty()) break;
+            }
+            return getKeys(candidates, entry -> mayContain(entry.query, item));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
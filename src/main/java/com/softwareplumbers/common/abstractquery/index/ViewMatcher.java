@@ -0,0 +1,101 @@
+package com.softwareplumbers.common.abstractquery.index;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Matches queries against materialized views, each defined by a query.
+ *
+ * A view can answer a query if the view definition contains the query. Of the views which can
+ * answer a query, the smallest is chosen, and a plan is returned which scans that view with a
+ * residual filter from which the constraints already implied by the view have been removed.
+ *
+ * View definitions are held in a QueryIndex, so that only the views whose ranges overlap the query
+ * on every dimension which the view constrains are checked with Query.contains.
+ *
+ * @param <V> Type used to identify views
+ */
+public class ViewMatcher<V> {
+
+    /** Plan for answering a query from a view. */
+    public static final class Plan<V> {
+        /** View to scan */
+        public final V view;
+        /** Definition of the view */
+        public final Query definition;
+        /** Filter to apply to the rows of the view */
+        public final Query residual;
+        /** Size of the view */
+        public final long size;
+
+        private Plan(V view, Query definition, Query residual, long size) {
+            this.view = view;
+            this.definition = definition;
+            this.residual = residual;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return view + ": " + residual;
+        }
+    }
+
+    private final QueryIndex<V> index = new QueryIndex<>();
+    private final Map<V, Long> sizes = new ConcurrentHashMap<>();
+
+    /** Add a view, replacing any view previously added with the same identifier.
+     *
+     * @param view View identifier
+     * @param definition Query which selects the rows in the view
+     * @param size Size of the view (for example, the number of rows); the smallest view which can answer a query is preferred
+     */
+    public void put(V view, Query definition, long size) {
+        sizes.put(view, size);
+        index.put(view, definition);
+    }
+
+    /** Update the size of a view.
+     *
+     * @param view View identifier
+     * @param size New size of the view
+     * @return true if the view was found
+     */
+    public boolean setSize(V view, long size) {
+        return sizes.computeIfPresent(view, (key, old) -> size) != null;
+    }
+
+    /** Remove a view.
+     *
+     * @param view View identifier
+     * @return true if the view was found
+     */
+    public boolean remove(V view) {
+        sizes.remove(view);
+        return index.remove(view);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** Find the smallest view which can answer a query.
+     *
+     * @param query Query to answer
+     * @return A plan for answering the query from a view, or null if no view contains the query
+     */
+    public Plan<V> match(Query query) {
+        V best = null;
+        long bestSize = Long.MAX_VALUE;
+        for (V view : index.getContaining(query)) {
+            Long size = sizes.get(view);
+            if (size != null && (best == null || size < bestSize)) {
+                best = view;
+                bestSize = size;
+            }
+        }
+        if (best == null) return null;
+        Query definition = index.get(best);
+        return definition == null ? null : new Plan<>(best, definition, query.residual(definition), bestSize);
+    }
+}
@@ -0,0 +1,6 @@
+/** Indexes over collections of queries.
+ *
+ * Structures which find the queries in a large collection that are relevant to some document or
+ * to some other query, without testing every query in the collection.
+ */
+package com.softwareplumbers.common.abstractquery.index;
@@ -0,0 +1,79 @@
+package com.softwareplumbers.common.abstractquery.visitor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/** Describes the query constructs which a formatter is able to express.
+ *
+ * A backend which cannot evaluate some construct can still be sent a query containing it, by
+ * first splitting the query into a part the backend can evaluate and a residual to be evaluated
+ * locally.
+ *
+ * @see com.softwareplumbers.common.abstractquery.Query#pushdown(Capabilities)
+ */
+public final class Capabilities {
+
+    /** Query constructs which a formatter may not support */
+    public enum Construct {
+        /** 'like' expressions matching string values against a pattern */
+        LIKE,
+        /** 'has' constraints matching the elements of an array */
+        HAS,
+        /** constraints on the fields of a sub-object */
+        SUBQUERY
+    }
+
+    /** Capabilities of a formatter which can express every construct */
+    public static final Capabilities ALL = new Capabilities(EnumSet.allOf(Construct.class));
+    /** Capabilities of a formatter which can express only simple comparisons */
+    public static final Capabilities NONE = new Capabilities(EnumSet.noneOf(Construct.class));
+
+    private final Set<Construct> supported;
+
+    private Capabilities(EnumSet<Construct> supported) {
+        this.supported = Collections.unmodifiableSet(supported);
+    }
+
+    /** Create capabilities which support the given constructs.
+     *
+     * @param constructs Supported constructs
+     * @return capabilities supporting only the given constructs
+     */
+    public static Capabilities of(Construct... constructs) {
+        EnumSet<Construct> supported = EnumSet.noneOf(Construct.class);
+        supported.addAll(Arrays.asList(constructs));
+        return new Capabilities(supported);
+    }
+
+    /** Create capabilities which do not support the given constructs.
+     *
+     * @param constructs Unsupported constructs
+     * @return capabilities supporting everything supported by these capabilities, except the given constructs
+     */
+    public Capabilities without(Construct... constructs) {
+        EnumSet<Construct> result = supported.isEmpty() ? EnumSet.noneOf(Construct.class) : EnumSet.copyOf(supported);
+        result.removeAll(Arrays.asList(constructs));
+        return new Capabilities(result);
+    }
+
+    public boolean supports(Construct construct) {
+        return supported.contains(construct);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Capabilities && supported.equals(((Capabilities)other).supported);
+    }
+
+    @Override
+    public int hashCode() {
+        return supported.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return supported.toString();
+    }
+}
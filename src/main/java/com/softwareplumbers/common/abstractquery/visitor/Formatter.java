@@ -14,8 +14,30 @@ import java.util.function.Function;
 @FunctionalInterface
 public interface Formatter<T> {
     Visitor<T> getVisitor();
-    
+
+    /** Get the query constructs which this formatter can express.
+     *
+     * @return Capabilities of this formatter; by default, all constructs are supported.
+     */
+    default Capabilities getCapabilities() {
+        return Capabilities.ALL;
+    }
+
+    /** Get a formatter which declares different capabilities.
+     *
+     * @param capabilities Query constructs which the formatter can express
+     * @return A formatter which creates the same visitors as this formatter
+     */
+    default Formatter<T> withCapabilities(Capabilities capabilities) {
+        Formatter<T> base = this;
+        return new Formatter<T>() {
+            @Override public Visitor<T> getVisitor() { return base.getVisitor(); }
+            @Override public Capabilities getCapabilities() { return capabilities; }
+        };
+    }
+
     default <U> Formatter<U> transform(Function<Visitor<T>, Visitor<U>> transformer) {
-        return ()->transformer.apply(getVisitor());
+        Formatter<U> transformed = ()->transformer.apply(getVisitor());
+        return transformed.withCapabilities(getCapabilities());
     };
 }
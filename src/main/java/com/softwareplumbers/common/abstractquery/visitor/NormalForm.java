@@ -0,0 +1,260 @@
+package com.softwareplumbers.common.abstractquery.visitor;
+
+import com.softwareplumbers.common.abstractquery.visitor.Visitors.And;
+import com.softwareplumbers.common.abstractquery.visitor.Visitors.Dimension;
+import com.softwareplumbers.common.abstractquery.visitor.Visitors.Node;
+import com.softwareplumbers.common.abstractquery.visitor.Visitors.Or;
+import com.softwareplumbers.common.abstractquery.visitor.Visitors.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.json.JsonValue.ValueType;
+
+/** Conversion of expression trees to disjunctive (OR of ANDs) or conjunctive (AND of ORs) normal form.
+ *
+ * Constraints on dimensions are pushed down to single comparisons, so that for example x in (1,2)
+ * and y=3 becomes x=1 and y=3 or x=2 and y=3 in disjunctive normal form. A 'between' or 'has'
+ * expression is treated as a single comparison.
+ *
+ * Converting a conjunction of disjunctions to disjunctive normal form (or vice versa) multiplies
+ * out the terms, and the result may be exponentially larger than the original expression. The
+ * limit on the number of comparisons is therefore shared out across the whole expression as it is
+ * converted: the terms of a concatenation draw on the budget in turn, and the size of each expansion
+ * is estimated beforehand. A subexpression which would exceed the budget left to it is not expanded
+ * but kept as a single (factored) term.
+ */
+public final class NormalForm {
+
+    /** The converted expression */
+    public final Node node;
+    /** True if the whole expression was converted, false if some subexpression was kept factored */
+    public final boolean complete;
+
+    private NormalForm(Node node, boolean complete) {
+        this.node = node;
+        this.complete = complete;
+    }
+
+    /** An expression in normal form; a list of clauses, each of which is a list of comparisons. */
+    private static final class Form {
+        final List<List<Node>> clauses;
+        /** Number of comparisons in all clauses */
+        final long size;
+        /** Greatest number of comparisons in any clause */
+        final long maxClauseSize;
+
+        Form(List<List<Node>> clauses) {
+            this.clauses = clauses;
+            long total = 0;
+            long max = 0;
+            for (List<Node> clause : clauses) {
+                long clauseSize = 0;
+                for (Node term : clause) clauseSize += countComparisons(term);
+                total += clauseSize;
+                max = Math.max(max, clauseSize);
+            }
+            this.size = total;
+            this.maxClauseSize = max;
+        }
+
+        static Form of(Node node) {
+            return new Form(Collections.singletonList(Collections.singletonList(node)));
+        }
+    }
+
+    /** Count the comparisons in an expression.
+     *
+     * This is also the size of the expression in normal form, if it is kept as a single factored term.
+     */
+    private static long countComparisons(Node node) {
+        if (node instanceof Or || node instanceof And || node instanceof Query || node instanceof Dimension && node.size() == 1) {
+            long total = 0;
+            for (Node child : node) total += countComparisons(child);
+            return total;
+        }
+        return 1;
+    }
+
+    private static class Converter {
+        final boolean disjunctive;
+        boolean complete = true;
+
+        Converter(boolean disjunctive) {
+            this.disjunctive = disjunctive;
+        }
+
+        /** Concatenate the clauses of several forms. */
+        static Form concatenate(List<Form> forms) {
+            List<List<Node>> clauses = new ArrayList<>();
+            for (Form form : forms) clauses.addAll(form.clauses);
+            return new Form(clauses);
+        }
+
+        /** Estimate the number of comparisons in the product of several forms.
+         *
+         * @return the estimated size, or Long.MAX_VALUE on overflow
+         */
+        static long estimateProduct(List<Form> forms) {
+            try {
+                long clauses = 1;
+                long clauseSize = 0;
+                for (Form form : forms) {
+                    clauses = Math.multiplyExact(clauses, form.clauses.size());
+                    clauseSize = Math.addExact(clauseSize, form.maxClauseSize);
+                }
+                return Math.multiplyExact(clauses, clauseSize);
+            } catch (ArithmeticException e) {
+                return Long.MAX_VALUE;
+            }
+        }
+
+        /** Combine every clause of each form with every clause of the others. */
+        static Form multiply(List<Form> forms) {
+            List<List<Node>> clauses = Collections.singletonList(Collections.emptyList());
+            for (Form form : forms) {
+                List<List<Node>> product = new ArrayList<>(clauses.size() * form.clauses.size());
+                for (List<Node> left : clauses) {
+                    for (List<Node> right : form.clauses) {
+                        List<Node> clause = new ArrayList<>(left.size() + right.size());
+                        clause.addAll(left);
+                        clause.addAll(right);
+                        product.add(clause);
+                    }
+                }
+                clauses = product;
+            }
+            return new Form(clauses);
+        }
+
+        /** Convert the children of a node and combine them.
+         *
+         * @param budget Maximum number of comparisons in the result
+         */
+        Form combine(Node node, boolean concatenate, long budget) {
+            List<Form> forms = new ArrayList<>(node.size());
+            if (concatenate) {
+                // later terms need room for at least their comparisons kept as factored terms
+                long reserved = 0;
+                long[] minimums = new long[node.size()];
+                for (int i = 0; i < node.size(); i++) reserved += minimums[i] = countComparisons(node.get(i));
+                long used = 0;
+                for (int i = 0; i < node.size(); i++) {
+                    reserved -= minimums[i];
+                    Form form = convert(node.get(i), Math.max(minimums[i], budget - used - reserved));
+                    used += form.size;
+                    forms.add(form);
+                }
+                return concatenate(forms);
+            }
+            for (Node child : node) forms.add(convert(child, budget));
+            if (estimateProduct(forms) > budget) return factor(node);
+            return multiply(forms);
+        }
+
+        Form factor(Node node) {
+            complete = false;
+            return Form.of(node);
+        }
+
+        /** Convert a node to normal form.
+         *
+         * @param budget Maximum number of comparisons in the result; exceeded only if the node itself
+         * has more comparisons, in which case nothing in it is multiplied out
+         */
+        Form convert(Node node, long budget) {
+            if (node instanceof Or)
+                return combine(node, disjunctive, budget);
+            if (node instanceof And || node instanceof Query)
+                return combine(node, !disjunctive, budget);
+            if (node instanceof Dimension && node.size() == 1) {
+                Dimension dimension = (Dimension)node;
+                Node constraint = node.get(0);
+                boolean object = isObject(constraint);
+                Form form = convert(constraint, budget);
+                List<List<Node>> clauses = new ArrayList<>(form.clauses.size());
+                for (List<Node> clause : form.clauses) {
+                    List<Node> wrapped = new ArrayList<>(clause.size());
+                    for (Node comparison : clause) wrapped.add(wrap(dimension, comparison, object));
+                    clauses.add(wrapped);
+                }
+                return new Form(clauses);
+            }
+            return Form.of(node);
+        }
+    }
+
+    private static boolean isObject(Node node) {
+        if (node instanceof Query || node instanceof Dimension) return true;
+        if (node instanceof Or) return ((Or)node).type == ValueType.OBJECT;
+        if (node instanceof And) return ((And)node).type == ValueType.OBJECT;
+        return false;
+    }
+
+    private static ValueType getType(Node node) {
+        if (node instanceof Or) return ((Or)node).type;
+        if (node instanceof And) return ((And)node).type;
+        if (node instanceof Visitors.Between) return ((Visitors.Between)node).type;
+        return isObject(node) ? ValueType.OBJECT : null;
+    }
+
+    /** Apply a comparison found within the constraint on a dimension to that dimension. */
+    private static Node wrap(Dimension dimension, Node comparison, boolean object) {
+        if (object && comparison instanceof Dimension)
+            comparison = new Query(Collections.singletonList(comparison));
+        return new Dimension(dimension.value, Collections.singletonList(comparison));
+    }
+
+    /** Make a term which can be combined with others in an object expression. */
+    private static Node asObjectTerm(Node node) {
+        return node instanceof Dimension ? new Query(Collections.singletonList(node)) : node;
+    }
+
+    private static Node and(List<Node> terms, ValueType type) {
+        if (terms.size() == 1) return type == ValueType.OBJECT ? asObjectTerm(terms.get(0)) : terms.get(0);
+        if (type != ValueType.OBJECT) return new And(type, terms);
+        if (terms.stream().allMatch(term -> term instanceof Dimension)) return new Query(terms);
+        List<Node> objects = new ArrayList<>(terms.size());
+        for (Node term : terms) objects.add(asObjectTerm(term));
+        return new And(type, objects);
+    }
+
+    private static Node or(List<Node> terms, ValueType type) {
+        if (terms.size() == 1) return type == ValueType.OBJECT ? asObjectTerm(terms.get(0)) : terms.get(0);
+        if (type != ValueType.OBJECT) return new Or(type, terms);
+        List<Node> objects = new ArrayList<>(terms.size());
+        for (Node term : terms) objects.add(asObjectTerm(term));
+        return new Or(type, objects);
+    }
+
+    private static NormalForm convert(Visitable expression, boolean disjunctive, long limit) {
+        Node tree = expression.toExpression(Visitors.TREE);
+        if (tree == null) return new NormalForm(null, true);
+        ValueType type = getType(tree);
+        Converter converter = new Converter(disjunctive);
+        Form form = converter.convert(tree, limit);
+        List<Node> clauses = new ArrayList<>(form.clauses.size());
+        for (List<Node> clause : form.clauses) clauses.add(disjunctive ? and(clause, type) : or(clause, type));
+        Node result = disjunctive ? or(clauses, type) : and(clauses, type);
+        return new NormalForm(result, converter.complete);
+    }
+
+    /** Convert an expression to disjunctive normal form (an OR of ANDs).
+     *
+     * @param expression Expression to convert
+     * @param limit Maximum number of comparisons in the result
+     * @return The converted expression
+     */
+    public static NormalForm toDNF(Visitable expression, long limit) {
+        return convert(expression, true, limit);
+    }
+
+    /** Convert an expression to conjunctive normal form (an AND of ORs).
+     *
+     * @param expression Expression to convert
+     * @param limit Maximum number of comparisons in the result
+     * @return The converted expression
+     */
+    public static NormalForm toCNF(Visitable expression, long limit) {
+        return convert(expression, false, limit);
+    }
+}
@@ -8,23 +8,27 @@ package com.softwareplumbers.common.abstractquery.visitor;
 import com.softwareplumbers.common.immutablelist.QualifiedName;
 import com.softwareplumbers.common.abstractpattern.parsers.Parsers;
 import com.softwareplumbers.common.abstractpattern.visitor.Builders;
+import com.softwareplumbers.common.abstractquery.Budget;
 import com.softwareplumbers.common.abstractquery.JsonUtil;
 import com.softwareplumbers.common.abstractquery.Param;
 import com.softwareplumbers.common.abstractquery.Range;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.Stack;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
@@ -361,108 +365,155 @@ public class Visitors {
 	public static interface Node extends List<Node>, Visitable {
 	}
 	
-	public  static class Unbounded extends AbstractList<Node> implements Node {
-
-		@Override public Node get(int index) { throw new IndexOutOfBoundsException(); }
-		@Override public int size() { return 0; }
+	/** Base class for immutable expression tree nodes.
+	 * 
+	 * Children are held in an array of exactly the right size. Nodes are equal if they are of the same
+	 * class, have the same label (operator, value, dimension or type) and equal children; the hash code
+	 * is computed from the same properties on first use and then cached.
+	 */
+	public static abstract class AbstractNode extends AbstractList<Node> implements Node {
+		
+		private static final Node[] NO_CHILDREN = new Node[0];
+		
+		private final Node[] children;
+		private int hash;
+		
+		protected AbstractNode(List<? extends Node> children) {
+			this.children = children.isEmpty() ? NO_CHILDREN : children.toArray(new Node[children.size()]);
+		}
+		
+		/** Get the operator, value, dimension or type which distinguishes this node from others of the same class. */
+		protected abstract Object getLabel();
+		
+		@Override public Node get(int index) { return children[index]; }
+		@Override public int size() { return children.length; }
+		
+		@Override
+		public int hashCode() {
+			int result = hash;
+			if (result == 0) {
+				result = getClass().getName().hashCode() * 31 + Objects.hashCode(getLabel());
+				for (Node child : children) result = result * 31 + child.hashCode();
+				hash = result;
+			}
+			return result;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) return true;
+			if (other == null || other.getClass() != getClass()) return false;
+			AbstractNode node = (AbstractNode)other;
+			return hashCode() == node.hashCode() && eq(getLabel(), node.getLabel()) && Arrays.equals(children, node.children);
+		}
+	}
+	
+	public  static class Unbounded extends AbstractNode {
+		public Unbounded() { super(Collections.emptyList()); }
+		@Override protected Object getLabel() { return null; }
 		@Override public void visit(Visitor<?> visitor) { visitor.unbounded(); }
-		public Unbounded() {  }
-        @Override public boolean equals(Object other) { return other instanceof Unbounded;  }
 	}
     
-    public static class Dimension extends ArrayList<Node> implements Node {
+    public static class Dimension extends AbstractNode {
         public final QualifiedName value;
+		public Dimension(QualifiedName value, List<? extends Node> items) { super(items); this.value = value; }
+		public Dimension(QualifiedName value) { this(value, Collections.emptyList()); }
+		@Override protected Object getLabel() { return value; }
 		@Override public void visit(Visitor<?> visitor) { visitor.dimensionExpr(value.part); forEach(item->item.visit(visitor)); visitor.endExpr(); }
-		public Dimension(QualifiedName value) { this.value = value;  }
-        public boolean equals(Dimension other) { return eq(value, other.value) && super.equals(other);  }
-        @Override public boolean equals(Object other) { return other instanceof Dimension && equals((Dimension)other); }
     }
 
-    public  static class Value extends AbstractList<Node> implements Node {
-
+    public  static class Value extends AbstractNode {
         public final JsonValue value;
-        
-		@Override public Node get(int index) { throw new IndexOutOfBoundsException();  }
-		@Override public int size() { return 0; }
+		public Value(JsonValue value) { super(Collections.emptyList()); this.value = value; }
+		@Override protected Object getLabel() { return value; }
 		@Override public void visit(Visitor<?> visitor) { visitor.value(value); }
-		public Value(JsonValue value) { this.value = value;  }
-        public boolean equals(Value other) { return eq(value, other.value);  }
-        @Override public boolean equals(Object other) { return other instanceof Value && equals((Value)other); }
     }
 
-	public  static class Operator extends ArrayList<Node> implements Node {
-		
+	public  static class Operator extends AbstractNode {
 		public final String operator;
-		public Operator(String operator) { this.operator = operator; }
-        public Operator(String operator, JsonValue value) { this.operator = operator; add(new Value(value)); }
+		public Operator(String operator, List<? extends Node> items) { super(items); this.operator = operator; }
+		public Operator(String operator) { this(operator, Collections.emptyList()); }
+        public Operator(String operator, JsonValue value) { this(operator, Collections.singletonList(new Value(value))); }
+		@Override protected Object getLabel() { return operator; }
 		@Override public void visit(Visitor<?> visitor) { visitor.operExpr(operator); forEach(item->item.visit(visitor)); visitor.endExpr(); }
 		public String toString() { return toExpression(DEFAULT); }
-        public boolean equals(Operator other) { return eq(operator, other.operator) && super.equals(other); }
-        @Override public boolean equals(Object other) { return other instanceof Operator && equals((Operator)other); }
 	}
 	
-	public  static class And extends ArrayList<Node> implements Node { 
+	public  static class And extends AbstractNode { 
 		public final JsonValue.ValueType type;
-		public And(JsonValue.ValueType type, Node... items) { super(Arrays.asList(items)); this.type = type; }
-		public And(JsonValue.ValueType type) { this.type = type; }
+		public And(JsonValue.ValueType type, List<? extends Node> items) { super(items); this.type = type; }
+		public And(JsonValue.ValueType type, Node... items) { this(type, Arrays.asList(items)); }
+		@Override protected Object getLabel() { return type; }
 		@Override public void visit(Visitor<?> visitor) { visitor.andExpr(type); forEach(item->item.visit(visitor)); visitor.endExpr(); }
 		public String toString() { return toExpression(DEFAULT); }
-        public boolean equals(And other) { return eq(type, other.type);  }
-        @Override public boolean equals(Object other) { return other instanceof And && equals((And)other); }
 	}
 	
-	public  static class Between extends ArrayList<Node> implements Node { 
+	public  static class Between extends AbstractNode { 
 		public final JsonValue.ValueType type;
-		public Between(JsonValue.ValueType type, Node lower, Node upper) { super(Arrays.asList(lower,upper)); this.type = type;  }
-		public Between(JsonValue.ValueType type) { this.type = type; }
+		public Between(JsonValue.ValueType type, List<? extends Node> items) { super(items); this.type = type; }
+		public Between(JsonValue.ValueType type, Node lower, Node upper) { this(type, Arrays.asList(lower,upper)); }
+		public Between(JsonValue.ValueType type) { this(type, Collections.emptyList()); }
+		@Override protected Object getLabel() { return type; }
 		@Override public void visit(Visitor<?> visitor) { visitor.betweenExpr(type); forEach(item->item.visit(visitor)); visitor.endExpr(); }
 		public String toString() { return toExpression(DEFAULT); }
-        public boolean equals(Between other) { return eq(type, other.type);  }
-        @Override public boolean equals(Object other) { return other instanceof Between && equals((Between)other); }
 	}
 	
 		
-	public  static class Or extends ArrayList<Node> implements Node { 
+	public  static class Or extends AbstractNode { 
 		public final JsonValue.ValueType type;
 		public Or(JsonValue.ValueType type, List<? extends Node> items) { super(items); this.type = type; }
-		public Or(JsonValue.ValueType type) { this.type = type; }		
+		public Or(JsonValue.ValueType type) { this(type, Collections.emptyList()); }		
+		@Override protected Object getLabel() { return type; }
 		@Override public void visit(Visitor<?> visitor) { visitor.orExpr(type); forEach(item->item.visit(visitor)); visitor.endExpr(); }
 		public String toString() { return toExpression(DEFAULT); }
-        public boolean equals(Or other) { return eq(type, other.type);  }
-        @Override public boolean equals(Object other) { return other instanceof Or && equals((Or)other); }
 	}
     
 	
-	public  static class Sub extends ArrayList<Node> implements Node {
+	public  static class Sub extends AbstractNode {
 		public final String operator;
-		public Sub(String operator) { this.operator = operator;  }
+		public Sub(String operator, List<? extends Node> items) { super(items); this.operator = operator; }
+		public Sub(String operator) { this(operator, Collections.emptyList()); }
+		@Override protected Object getLabel() { return operator; }
 		@Override public void visit(Visitor<?> visitor) { visitor.subExpr(operator); forEach(item->item.visit(visitor)); visitor.endExpr(); }
 		public String toString() { return toExpression(DEFAULT); }
-        public boolean equals(Sub other) { return eq(operator, other.operator);  }
-        @Override public boolean equals(Object other) { return other instanceof Sub && equals((Sub)other); }
 	}
 	
-	public  static class Array extends ArrayList<Node> implements Node { 
+	public  static class Array extends AbstractNode { 
 		public Array(List<? extends Node> items) { super(items); }
-		public Array() { super(); }		
+		public Array() { this(Collections.emptyList()); }		
+		@Override protected Object getLabel() { return null; }
 		@Override public void visit(Visitor<?> visitor) { visitor.arrayExpr(); forEach(item->item.visit(visitor)); visitor.endExpr(); }
 		public String toString() { return toExpression(DEFAULT); }
-        public boolean equals(Array other) { return super.equals(other);  }
-        @Override public boolean equals(Object other) { return other instanceof Array && equals((Array)other); }
 	}
 	
-	public  static class Query extends ArrayList<Node> implements Node { 
+	public  static class Query extends AbstractNode { 
 		public Query(List<? extends Node> items) { super(items); }
-		public Query() { super(); }		
+		public Query() { this(Collections.emptyList()); }		
+		@Override protected Object getLabel() { return null; }
 		@Override public void visit(Visitor<?> visitor) { visitor.queryExpr(); forEach(item->item.visit(visitor)); visitor.endExpr(); }
 		public String toString() { return toExpression(DEFAULT); }
-        public boolean equals(Query other) { return super.equals(other);  }
-        @Override public boolean equals(Object other) { return other instanceof Query && equals((Query)other); }
 	}
 
+	/** Builds an immutable expression tree.
+	 * 
+	 * Children of each node are collected until the node is ended, and the node is then created with
+	 * an array of exactly the right size. Value nodes are interned, so that each distinct value in
+	 * the tree is represented by a single node.
+	 */
 	public static class TreeFormatter implements Visitor<Node> {
+		
+		private static final Unbounded UNBOUNDED = new Unbounded();
+		
+		/** A node under construction */
+		private static class Frame {
+			final Function<List<Node>, Node> factory;
+			final List<Node> children = new ArrayList<>();
+			final boolean dimension;
+			Frame(Function<List<Node>, Node> factory, boolean dimension) { this.factory = factory; this.dimension = dimension; }
+		}
         
-        Stack<Node> nodes = new Stack<>();
+        private final Stack<Frame> frames = new Stack<>();
+        private final Map<JsonValue, Value> values = new HashMap<>();
         QualifiedName scope = QualifiedName.ROOT;
         Node result = null;
 		
@@ -470,107 +521,201 @@ public class Visitors {
 		public Node getResult() {
 			return result;
 		}
+		
+		/** Complete a node before it is added to its parent.
+		 * 
+		 * @param node A newly created node, with all its children
+		 * @return node itself, or some replacement for it
+		 */
+		protected Node complete(Node node) {
+			return node;
+		}
         
-        private void beginExpr(Node node) {
-            if (!nodes.isEmpty()) nodes.lastElement().add(node);
-            nodes.add(node);
+        private void beginExpr(Function<List<Node>, Node> factory) {
+            frames.push(new Frame(factory, false));
+        }
+        
+        private void addNode(Node node) {
+            if (frames.isEmpty()) 
+            	result = node;
+            else 
+            	frames.peek().children.add(node);
         }
         
         @Override 
         public void endExpr() {
-            result = nodes.pop();
-            if (result instanceof Dimension) scope = scope.parent;
+            Frame frame = frames.pop();
+            if (frame.dimension) scope = scope.parent;
+            result = complete(frame.factory.apply(frame.children));
+            if (!frames.isEmpty()) frames.peek().children.add(result);
         }
 		
 		@Override
-		public void operExpr(String operator) { beginExpr(new Operator(operator)); }
+		public void operExpr(String operator) { beginExpr(items -> new Operator(operator, items)); }
 		@Override
-		public void andExpr(JsonValue.ValueType type) { beginExpr(new And(type)); }
+		public void andExpr(JsonValue.ValueType type) { beginExpr(items -> new And(type, items)); }
 		@Override
-		public void orExpr(JsonValue.ValueType type) { beginExpr(new Or(type)); }
+		public void orExpr(JsonValue.ValueType type) { beginExpr(items -> new Or(type, items)); }
 		@Override
-		public void subExpr(String operator) { beginExpr(new Sub(operator)); }
+		public void subExpr(String operator) { beginExpr(items -> new Sub(operator, items)); }
 		@Override
-		public void betweenExpr(JsonValue.ValueType type) { beginExpr(new Between(type)); }
+		public void betweenExpr(JsonValue.ValueType type) { beginExpr(items -> new Between(type, items)); }
 		@Override
-		public void unbounded() { nodes.lastElement().add(new Unbounded()); }
+		public void unbounded() { addNode(UNBOUNDED); }
         @Override
         public void dimensionExpr(String dimension) { 
             scope = scope.add(dimension);
-            beginExpr(new Dimension(scope)); 
+            QualifiedName name = scope;
+            frames.push(new Frame(items -> new Dimension(name, items), true)); 
         }
         @Override
-        public void value(JsonValue value) { nodes.lastElement().add(new Value(value)); }
+        public void value(JsonValue value) { addNode(values.computeIfAbsent(value, Value::new)); }
         @Override
-        public void arrayExpr() { beginExpr(new Array()); }
+        public void arrayExpr() { beginExpr(Array::new); }
         @Override
-        public void queryExpr() { beginExpr(new Query()); }
+        public void queryExpr() { beginExpr(Query::new); }
 	}
 	
 	public  static class Factorizer extends TreeFormatter {
 		
-		private static void triage(List<Node> ands, List<Node> queries, Or atomics, Node node) {
+		private static void triage(List<Node> ands, List<Node> queries, List<Node> atomics, Node node) {
 			if (node instanceof And) 		
-                ands.add((And)node);
+                ands.add(node);
             else if (node instanceof Query) 
-                queries.add((Query)node);
+                queries.add(node);
             else if (node instanceof Or)	
-                ((Or)node).stream().forEach(inner->triage(ands, queries, atomics, inner));
+                node.forEach(inner->triage(ands, queries, atomics, inner));
 			else 							
                 atomics.add(node);			
 		}	
 		
+		/** Count the terms in which each factor appears.
+		 * 
+		 * Each count is held as { number of terms, rank }, where the rank of a factor is the order in
+		 * which it first appears and is used to break ties.
+		 */
+		private static Map<Node, int[]> count(List<? extends List<Node>> terms) {
+			Map<Node, int[]> counts = new HashMap<>();
+			Set<Node> seen = new HashSet<>();
+			for (List<Node> term : terms) {
+				seen.clear();
+				for (Node factor : term) 
+					if (seen.add(factor)) counts.computeIfAbsent(factor, key -> new int[] { 0, counts.size() })[0]++;
+			}
+			return counts;
+		}
+		
+		/** Count the terms in which each factor appears, keeping the ranks of an earlier count. */
+		private static Map<Node, int[]> recount(List<? extends List<Node>> terms, Map<Node, int[]> ranks) {
+			Map<Node, int[]> counts = new HashMap<>();
+			Set<Node> seen = new HashSet<>();
+			for (List<Node> term : terms) {
+				seen.clear();
+				for (Node factor : term) 
+					if (seen.add(factor)) counts.computeIfAbsent(factor, key -> new int[] { 0, ranks.get(key)[1] })[0]++;
+			}
+			return counts;
+		}
+		
+		/** Remove some terms from a count. */
+		private static void uncount(Map<Node, int[]> counts, List<? extends List<Node>> terms) {
+			Set<Node> seen = new HashSet<>();
+			for (List<Node> term : terms) {
+				seen.clear();
+				for (Node factor : term) 
+					if (seen.add(factor) && --counts.get(factor)[0] == 0) counts.remove(factor);
+			}
+		}
+		
+		/** Find the factor which appears in the most terms.
+		 * 
+		 * Where several factors appear equally often, the one which first appears in the terms originally
+		 * counted is chosen.
+		 * 
+		 * @return The commonest factor, or null if no factor appears in more than one term
+		 */
+		private static Node getCommonestTermFactor(Map<Node, int[]> counts) {
+			Node result = null;
+			int[] best = { 2, Integer.MAX_VALUE };
+			for (Map.Entry<Node, int[]> entry : counts.entrySet()) {
+				int[] count = entry.getValue();
+				if (count[0] > best[0] || count[0] == best[0] && count[1] < best[1]) {
+					result = entry.getKey();
+					best = count;
+				}
+			}
+			return result;
+		}
+		
 		public Optional<Node> getCommonestFactor(List<Node> ands) {
-			return ands
-					.stream()
-					.flatMap(List::stream) // Stream of all possible factors
-					.collect(Collectors.groupingBy(node->node, Collectors.counting())) // count number of times each factor appears
-					.entrySet()
-					.stream()
-					.filter(entry -> entry.getValue() > 1) // Ignore any factor that appears only once
-					.sorted(Comparator.comparing(entry->entry.getKey().toString())) // sort so we factorize in a stable way
-					.collect(
-						Collectors.maxBy(
-							Comparator.comparingLong(entry -> entry.getValue()) // Find the factor that appears the most times
-						)
-					)
-					.map(entry -> entry.getKey());
-			
+			return Optional.ofNullable(getCommonestTermFactor(count(ands)));
 		}
 		
-		public Optional<Node> factorize(JsonValue.ValueType type, List<Node> ands, Function<JsonValue.ValueType,Node> nodeFactory) {
+		public Optional<Node> factorize(JsonValue.ValueType type, List<Node> ands, BiFunction<JsonValue.ValueType, List<Node>, Node> nodeFactory) {
+			List<List<Node>> terms = new ArrayList<>(ands.size());
+			for (Node and : ands) terms.add(new ArrayList<>(and));
+			return factorizeTerms(type, ands, terms, count(terms), nodeFactory);
+		}
+		
+		/** Factorize a list of terms.
+		 * 
+		 * terms holds the factors of each node in ands, in the same order, and is updated as factors are
+		 * removed; counts holds the number of terms in which each factor appears. Only the terms containing
+		 * the commonest factor are factorized further. Their counts are found by subtracting the other terms
+		 * from counts, or by counting them again, whichever touches fewer factors. Each term examined counts
+		 * as a node against the current Budget; once it is exhausted, the remaining terms are left as they are.
+		 */
+		private Optional<Node> factorizeTerms(JsonValue.ValueType type, List<Node> ands, List<List<Node>> terms, Map<Node, int[]> counts, BiFunction<JsonValue.ValueType, List<Node>, Node> nodeFactory) {
 			
-			Optional<Node> factor = getCommonestFactor(ands);
-			if (factor.isPresent()) {
-				List<Node> factorized = new ArrayList<Node>();
-				Or result = new Or(type);
-				for (Node and : ands) {
-					if (and.remove(factor.get())) 
-						factorized.add(and); 
-					else result.add(and);
+			Node factor = Budget.tryNodes(terms.size()) ? getCommonestTermFactor(counts) : null;
+			if (factor != null) {
+				List<Node> factorized = new ArrayList<>();
+				List<List<Node>> factorizedTerms = new ArrayList<>();
+				List<List<Node>> otherTerms = new ArrayList<>();
+				List<Node> result = new ArrayList<>();
+				int factorizedSize = 0;
+				int otherSize = 0;
+				boolean repeated = false;
+				for (int i = 0; i < ands.size(); i++) {
+					List<Node> term = terms.get(i);
+					if (term.remove(factor)) {
+						factorized.add(nodeFactory.apply(type, term));
+						factorizedTerms.add(term);
+						factorizedSize += term.size();
+						repeated |= term.contains(factor);
+					} else {
+						result.add(ands.get(i));
+						otherTerms.add(term);
+						otherSize += term.size();
+					}
 				}
-				Optional<Node> inner = factorize(type, factorized, nodeFactory);
+				Map<Node, int[]> factorizedCounts;
+				if (otherSize < factorizedSize && !repeated) {
+					uncount(counts, otherTerms);
+					counts.remove(factor);
+					factorizedCounts = counts;
+				} else {
+					factorizedCounts = recount(factorizedTerms, counts);
+				}
+				Optional<Node> inner = factorizeTerms(type, factorized, factorizedTerms, factorizedCounts, nodeFactory);
 				Node factored = null;
 				if (inner.isPresent()) {
 					// if inner is an 'And' we have no remainder
 					if (inner.get() instanceof And || inner.get() instanceof Query) {
-						factored = inner.get();
-						factored.add(factor.get());
+						List<Node> items = new ArrayList<>(inner.get());
+						items.add(factor);
+						factored = nodeFactory.apply(type, items);
 					} else {
-						factored = nodeFactory.apply(type);
-                        factored.add(factor.get());
-                        factored.add(inner.get());
+						factored = nodeFactory.apply(type, Arrays.asList(factor, inner.get()));
 					}
 				} else {
-					factored = nodeFactory.apply(type);
-                    factored.add(factor.get());
-                    factored.add(new Or(type, factorized));
+					factored = nodeFactory.apply(type, Arrays.asList(factor, new Or(type, factorized)));
 				}
 				if (result.isEmpty()) 
 					return Optional.of(factored);
 				else {
 					result.add(factored);
-					return Optional.of(result);
+					return Optional.of(new Or(type, result));
 				}			
 			} else {
 				return Optional.empty();
@@ -578,45 +723,40 @@ public class Visitors {
 		}
 		
 		@Override
-		public void endExpr() {
+		protected Node complete(Node node) {
             
-            Node top = nodes.lastElement();
-            if (top instanceof Or) {
-                ValueType type = ((Or)top).type;
-                Stream<Node> expressions = top.stream();
+            if (node instanceof Or) {
+                ValueType type = ((Or)node).type;
 
                 final List<Node> ands = new ArrayList<>();
                 final List<Node> queries = new ArrayList<>();
-                final Or atomics = new Or(type);
+                final List<Node> atomics = new ArrayList<>();
 
-                expressions.forEach(node -> triage(ands,queries,atomics,node));
-                Optional<Node> factorizedAnds = factorize(type, ands, t->new And(t));
-                Optional<Node> factorizedQueries = factorize(type, queries, t->new Query());
+                node.forEach(item -> triage(ands,queries,atomics,item));
+                Optional<Node> factorizedAnds = factorize(type, ands, And::new);
+                Optional<Node> factorizedQueries = factorize(type, queries, (t, items) -> new Query(items));
                 
                 if (factorizedAnds.isPresent()) {
-                    Node node = factorizedAnds.get();
-                    if (node instanceof Or) 
-                        atomics.addAll(node);
+                    Node factorized = factorizedAnds.get();
+                    if (factorized instanceof Or) 
+                        atomics.addAll(factorized);
                     else
-                        atomics.add(node);
+                        atomics.add(factorized);
                 }
 
                 if (factorizedQueries.isPresent()) {
-                    Node node = factorizedQueries.get();
-                    if (node instanceof Or) 
-                        atomics.addAll(node);
+                    Node factorized = factorizedQueries.get();
+                    if (factorized instanceof Or) 
+                        atomics.addAll(factorized);
                     else
-                        atomics.add(node);
+                        atomics.add(factorized);
                 }
                 
                 if (factorizedAnds.isPresent() || factorizedQueries.isPresent()) {
-                    nodes.pop();
-                    nodes.push(atomics);
+                    return new Or(type, atomics);
                 }
-
-            
             }
-            super.endExpr();
+            return node;
 		}
 	}
     
@@ -692,6 +832,25 @@ public class Visitors {
         @Override
         public String toString() { return sql; }
         public List<String> getParameters() { return Arrays.asList(parameters); }
+        
+        /** Get the parameter values for each of several bindings, for executing this statement as a batch.
+         * 
+         * @param bindings Maps of parameter names to parameter values
+         * @return For each binding, the values of the parameters in the order in which they appear in sql
+         * @throws IllegalArgumentException if a binding has no value for some parameter
+         */
+        public List<JsonValue[]> getParameterRows(List<JsonObject> bindings) {
+            List<JsonValue[]> rows = new ArrayList<>(bindings.size());
+            for (JsonObject binding : bindings) {
+                JsonValue[] row = new JsonValue[parameters.length];
+                for (int i = 0; i < parameters.length; i++) {
+                    row[i] = binding.get(parameters[i]);
+                    if (row[i] == null) throw new IllegalArgumentException("No value for parameter " + parameters[i] + " in " + binding);
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
     }
         
     @FunctionalInterface
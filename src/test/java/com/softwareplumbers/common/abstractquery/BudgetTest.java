@@ -0,0 +1,67 @@
+package com.softwareplumbers.common.abstractquery;
+
+import com.softwareplumbers.common.abstractquery.visitor.Visitors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BudgetTest {
+
+    private static List<Query> cubes() {
+        List<Query> cubes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            cubes.add(Query.fromJson("{ 'x': " + (i % 100) + ", 'y': " + (i % 13) + " }"));
+            if (i % 10 == 0) cubes.add(Query.fromJson("{ 'x': " + (i % 100) + " }"));
+        }
+        return cubes;
+    }
+
+    private static int size(Query query) {
+        return query instanceof Query.UnionCube ? ((Query.UnionCube)query).getMembers().size() : 1;
+    }
+
+    @Test
+    public void unlimitedBudgetCompletes() {
+        Simplified<Query> union = Budget.UNLIMITED.apply(() -> Query.union(cubes()));
+        assertTrue(union.complete);
+        assertEquals(size(Query.union(cubes())), size(union.result));
+        assertFalse(Budget.isExhausted());
+    }
+
+    @Test
+    public void exhaustedBudgetReturnsEquivalentResult() {
+        Query full = Query.union(cubes());
+        Simplified<Query> partial = Budget.UNLIMITED.withComparisons(50).apply(() -> Query.union(cubes()));
+        assertFalse(partial.complete);
+        assertTrue(size(partial.result) > size(full));
+        for (int x = 0; x < 100; x++) {
+            for (int y = 0; y < 14; y++) {
+                JsonObject item = Json.createObjectBuilder().add("x", x).add("y", y).build();
+                assertEquals(item.toString(), full.containsItem(item), partial.result.containsItem(item));
+            }
+        }
+    }
+
+    @Test
+    public void limitsNodesAndTime() {
+        assertFalse(Budget.UNLIMITED.withNodes(100).apply(() -> Query.union(cubes())).complete);
+        assertFalse(Budget.UNLIMITED.withTimeout(0, TimeUnit.MILLISECONDS).apply(() -> Query.union(cubes())).complete);
+        Query query = Query.union(cubes());
+        Simplified<Visitors.Node> tree = Budget.UNLIMITED.withNodes(10).apply(() -> query.toExpression(Visitors.SIMPLIFY));
+        assertFalse(tree.complete);
+        assertEquals(query.toExpression(Visitors.TREE), tree.result);
+    }
+
+    @Test
+    public void nestedBudgetsAreIndependent() {
+        Simplified<Simplified<Query>> outer = Budget.UNLIMITED.apply(() ->
+            Budget.UNLIMITED.withComparisons(10).apply(() -> Query.union(cubes())));
+        assertTrue(outer.complete);
+        assertFalse(outer.result.complete);
+    }
+}
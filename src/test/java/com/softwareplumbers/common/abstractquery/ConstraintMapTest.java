@@ -0,0 +1,67 @@
+package com.softwareplumbers.common.abstractquery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConstraintMapTest {
+
+    private static void assertMatches(TreeMap<String, Integer> expected, ConstraintMap<Integer> actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+        assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(actual.entrySet()));
+        for (String key : expected.keySet()) {
+            assertTrue(actual.containsKey(key));
+            assertEquals(expected.get(key), actual.get(key));
+        }
+        List<String> visited = new ArrayList<>();
+        actual.forEach((key, value) -> visited.add(key));
+        assertEquals(new ArrayList<>(expected.keySet()), visited);
+    }
+
+    @Test
+    public void behavesLikeSortedMap() {
+        Random random = new Random(11);
+        TreeMap<String, Integer> expected = new TreeMap<>();
+        ConstraintMap<Integer> actual = ConstraintMap.empty();
+        for (int i = 0; i < 5000; i++) {
+            // "Aa" and "BB" have the same hash code
+            String key = (random.nextBoolean() ? "Aa" : "BB") + random.nextInt(60);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.without(key);
+            } else {
+                expected.put(key, i);
+                actual = actual.with(key, i);
+            }
+            if (i % 50 == 0) assertMatches(expected, actual);
+        }
+        assertMatches(expected, actual);
+        for (String key : new ArrayList<>(expected.keySet())) {
+            expected.remove(key);
+            actual = actual.without(key);
+            assertMatches(expected, actual);
+        }
+    }
+
+    @Test
+    public void updatesDoNotChangeOriginal() {
+        ConstraintMap<Integer> original = ConstraintMap.empty();
+        for (int i = 0; i < 100; i++) original = original.with("d" + i, i);
+        ConstraintMap<Integer> updated = original.with("d5", -5).without("d7").with("e", 1);
+        assertEquals(Integer.valueOf(5), original.get("d5"));
+        assertEquals(Integer.valueOf(7), original.get("d7"));
+        assertFalse(original.containsKey("e"));
+        assertEquals(Integer.valueOf(-5), updated.get("d5"));
+        assertFalse(updated.containsKey("d7"));
+        assertEquals(100, updated.size());
+        assertEquals(new TreeMap<>(original), ConstraintMap.from(new TreeMap<>(original)));
+        assertSame(original, ConstraintMap.from(original));
+        assertSame(original, original.without("missing"));
+        assertSame(original, original.with("d3", original.get("d3")));
+    }
+}
@@ -0,0 +1,124 @@
+package com.softwareplumbers.common.abstractquery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PreparedQueryTest {
+
+    private static final Query TEMPLATE = Query.fromJson(
+        "{ 'x': { '$': 'x' }, 'y': [{ '$': 'min' }, { '$': 'max' }], 'z': { 'alpha': [{ '$': 'min' }, null], 'beta': 'b' }, 'w': 7 }");
+
+    @Test
+    public void assignsPositionsInOrderOfFirstAppearance() {
+        PreparedQuery prepared = PreparedQuery.from(TEMPLATE);
+        assertEquals(Arrays.asList("x", "min", "max"), prepared.getParameters());
+        assertSame(TEMPLATE, prepared.getTemplate());
+        assertSame(TEMPLATE, prepared.bind(null, null, null));
+    }
+
+    @Test
+    public void bindsLikeTemplate() {
+        PreparedQuery prepared = PreparedQuery.from(TEMPLATE);
+        Query bound = prepared.bind(3, 10, 20);
+        Query expected = TEMPLATE.bind("{ 'x': 3, 'min': 10, 'max': 20 }");
+        assertEquals(expected, bound);
+        assertEquals(expected.toString(), bound.toString());
+        assertSame(TEMPLATE.getConstraint("w"), bound.getConstraint("w"));
+
+        JsonObject partial = JsonUtil.parseObject("{ 'x': 'a', 'max': 5 }");
+        assertEquals(TEMPLATE.bind(partial), prepared.bind(partial));
+        assertEquals(TEMPLATE.bind(partial), prepared.bind("a", null, 5));
+    }
+
+    @Test
+    public void bindsEmptyRangesToEmptyQuery() {
+        PreparedQuery prepared = PreparedQuery.from(TEMPLATE);
+        assertEquals(Query.EMPTY, prepared.bind(3, 20, 10));
+    }
+
+    @Test
+    public void simplifiesUnionsOnlyWhereBindingCanChangeThem() {
+        Query overlapping = Query.fromJson("{ 'x': { '$': 'a' } }").union(Query.fromJson("{ 'x': 1, 'y': 2 }"));
+        PreparedQuery prepared = PreparedQuery.from(overlapping);
+        assertEquals(Query.fromJson("{ 'x': 1 }"), prepared.bind(1));
+        assertEquals(overlapping.bind("{ 'a': 2 }"), prepared.bind(2));
+
+        Query disjoint = Query.fromJson("{ 'x': { '$': 'a' }, 'y': 1 }").union(Query.fromJson("{ 'x': { '$': 'b' }, 'y': 2 }"));
+        prepared = PreparedQuery.from(disjoint);
+        Query bound = prepared.bind(5, 5);
+        assertEquals(disjoint.bind("{ 'a': 5, 'b': 5 }"), bound);
+        assertEquals(2, ((Query.UnionCube)bound).getMembers().size());
+    }
+
+    @Test
+    public void bindsRangeUnions() {
+        Query query = Query.from("x", Range.union(Range.equals(Param.from("a")), Range.greaterThan(Param.from("b"))));
+        PreparedQuery prepared = PreparedQuery.from(query);
+        assertEquals(Arrays.asList("a", "b"), prepared.getParameters());
+        assertEquals(query.bind("{ 'a': 5, 'b': 3 }"), prepared.bind(5, 3));
+        assertEquals(query.bind("{ 'a': 1, 'b': 3 }"), prepared.bind(1, 3));
+    }
+
+    private static List<JsonObject> bindings(int count) {
+        List<JsonObject> bindings = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            bindings.add(Json.createObjectBuilder().add("x", i % 50).add("min", 10).add("max", 20).build());
+        return bindings;
+    }
+
+    @Test
+    public void bindsAllToInList() {
+        List<JsonObject> bindings = bindings(200);
+        List<Query> bound = new ArrayList<>();
+        for (JsonObject binding : bindings) bound.add(TEMPLATE.bind(binding));
+        Query union = TEMPLATE.bindAll(bindings);
+        assertTrue(union instanceof Query.Impl);
+        assertTrue(union.getConstraint("x") instanceof Range.RangeUnion);
+        assertEquals(50, ((Range.RangeUnion)union.getConstraint("x")).getMembers().size());
+        assertEquals(TEMPLATE.bind(bindings.get(0)).getConstraint("y"), union.getConstraint("y"));
+        for (int x = -1; x < 52; x++) {
+            JsonObject item = JsonUtil.parseObject("{ 'x': " + x + ", 'y': 15, 'z': { 'alpha': 12, 'beta': 'b' }, 'w': 7 }");
+            assertEquals(Query.union(bound).containsItem(item), union.containsItem(item));
+        }
+        assertEquals(TEMPLATE.bind(bindings.get(0)), TEMPLATE.bindAll(bindings.subList(0, 1)));
+        assertEquals(Query.EMPTY, TEMPLATE.bindAll(new ArrayList<>()));
+    }
+
+    @Test
+    public void bindsAllToUnionWhereParametersVaryTogether() {
+        List<JsonObject> bindings = new ArrayList<>();
+        List<Query> bound = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            JsonObject binding = Json.createObjectBuilder().add("x", i).add("min", i % 10).add("max", 20).build();
+            bindings.add(binding);
+            bound.add(TEMPLATE.bind(binding));
+        }
+        assertEquals(Query.union(bound), TEMPLATE.bindAll(bindings));
+
+        Query nested = Query.fromJson("{ 'z': { 'alpha': { '$': 'a' } }, 'w': { '$': 'a' } }");
+        List<JsonObject> values = Arrays.asList(
+            JsonUtil.parseObject("{ 'a': 1 }"), JsonUtil.parseObject("{ 'a': 2 }"));
+        assertEquals(nested.bind(values.get(0)).union(nested.bind(values.get(1))), nested.bindAll(values));
+    }
+
+    @Test
+    public void bindsAllNestedDimensionsToInList() {
+        Query query = Query.fromJson("{ 'z': { 'alpha': { '$': 'a' } }, 'w': 7 }");
+        Query union = query.bindAll(Arrays.asList(
+            JsonUtil.parseObject("{ 'a': 1 }"), JsonUtil.parseObject("{ 'a': 2 }"), JsonUtil.parseObject("{ 'a': 1.0 }")));
+        assertEquals("w=7 and (z.alpha=1 or z.alpha=2)", union.toString());
+        assertEquals(Boolean.TRUE, union.containsItem(JsonUtil.parseObject("{ 'z': { 'alpha': 2 }, 'w': 7 }")));
+        assertEquals(Boolean.FALSE, union.containsItem(JsonUtil.parseObject("{ 'z': { 'alpha': 3 }, 'w': 7 }")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWrongNumberOfValues() {
+        PreparedQuery.from(TEMPLATE).bind(1, 2);
+    }
+}
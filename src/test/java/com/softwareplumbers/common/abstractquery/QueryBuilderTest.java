@@ -0,0 +1,67 @@
+package com.softwareplumbers.common.abstractquery;
+
+import com.softwareplumbers.common.immutablelist.QualifiedName;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryBuilderTest {
+
+    @Test
+    public void intersectsConstraintsLikeIncrementalApi() {
+        QueryBuilder builder = new QueryBuilder();
+        Query expected = Query.UNBOUNDED;
+        for (int i = 0; i < 50; i++) {
+            Range range = Range.between(i % 10, 100 - i);
+            builder.intersect("d" + (i % 10), range);
+            expected = expected.intersect(Query.from("d" + (i % 10), range));
+        }
+        builder.intersect(QualifiedName.of("y", "beta"), Range.lessThan(5))
+            .intersect(QualifiedName.of("y", "alpha"), Range.equals(3))
+            .intersect(Query.fromJson("{ 'y': { 'beta': [1,null] }, 'z': 'z' }"));
+        expected = expected
+            .intersect(Query.from(QualifiedName.of("y", "beta"), Range.lessThan(5)))
+            .intersect(Query.from(QualifiedName.of("y", "alpha"), Range.equals(3)))
+            .intersect(Query.fromJson("{ 'y': { 'beta': [1,null] }, 'z': 'z' }"));
+        assertEquals(expected, builder.build());
+        assertEquals(expected.toString(), builder.build().toString());
+    }
+
+    @Test
+    public void unitesClausesLikeIncrementalApi() {
+        QueryBuilder builder = new QueryBuilder();
+        Query expected = Query.EMPTY;
+        for (int i = 0; i < 200; i++) {
+            builder.or().intersect("x", Range.equals(i % 50)).intersect("y", Range.lessThan(i % 7));
+            expected = expected.union(Query.from("x", Range.equals(i % 50)).intersect(Query.from("y", Range.lessThan(i % 7))));
+        }
+        builder.union(Query.fromJson("{ 'z': 1 }"));
+        expected = expected.union(Query.fromJson("{ 'z': 1 }"));
+        assertEquals(expected, builder.build());
+        assertEquals(expected.toString(), builder.build().toString());
+    }
+
+    @Test
+    public void handlesEmptyUnboundedAndUnions() {
+        assertEquals(Query.UNBOUNDED, new QueryBuilder().build());
+        assertEquals(Query.EMPTY, new QueryBuilder().union(Query.EMPTY).build());
+        assertEquals(Query.EMPTY, new QueryBuilder().intersect("x", Range.equals(1)).intersect("x", Range.equals(2)).build());
+        assertEquals(Query.EMPTY, new QueryBuilder().intersect("x", Range.equals(1)).intersect(Query.EMPTY).build());
+        Query union = Query.fromJson("{ 'x': 1 }").union(Query.fromJson("{ 'x': 2 }"));
+        Query expected = union.intersect(Query.fromJson("{ 'y': 3 }"));
+        assertEquals(expected, new QueryBuilder().intersect(union).intersect("y", Range.equals(3)).build());
+    }
+
+    @Test
+    public void buildsLargeQueries() {
+        QueryBuilder builder = new QueryBuilder();
+        List<Query> clauses = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            builder.or().intersect("id", Range.equals(i)).intersect("region", Range.equals(i % 20));
+            clauses.add(Query.from("id", Range.equals(i)).intersect(Query.from("region", Range.equals(i % 20))));
+        }
+        assertEquals(Query.union(clauses).toString(), builder.build().toString());
+    }
+}
@@ -2,8 +2,12 @@ package com.softwareplumbers.common.abstractquery;
 
 import com.softwareplumbers.common.immutablelist.QualifiedName;
 import com.softwareplumbers.common.jsonview.JsonViewFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import javax.json.Json;
 
@@ -13,6 +17,8 @@ import static org.junit.Assert.*;
 
 import javax.json.JsonObject;
 import javax.json.JsonValue;
+import com.softwareplumbers.common.abstractquery.visitor.Capabilities;
+import com.softwareplumbers.common.abstractquery.visitor.Formatter;
 import com.softwareplumbers.common.abstractquery.visitor.Visitors;
 import java.math.BigDecimal;
 
@@ -288,6 +294,51 @@ public class QueryTest {
     	assertEquals("(x=3 and y>=3 and z=7 or x=2 and (y>=3 and y<4 and z=8 or y<4 and z=7))", query.toExpression(Visitors.SIMPLIFY).toExpression(Visitors.DEFAULT));
     }
 
+	@Test
+    public void factorizesOnlyStructurallyEqualFactors() {
+    	Query query = Query.fromJson("{'x': [1,2], 'y': 1}").union("{'x': [3,4], 'y': 2}");
+    	assertEquals("(x>=1 and x<2 and y=1 or x>=3 and x<4 and y=2)", query.toExpression(Visitors.SIMPLIFY).toExpression(Visitors.DEFAULT));
+    }
+
+	@Test
+    public void factorizesByFirstOfEquallyCommonFactors() {
+    	Query query = Query.fromJson("{'b': 1, 'x': 1}")
+    		.union("{'b': 1, 'y': 2}")
+    		.union("{'a': 1, 'x': 1}")
+    		.union("{'a': 1, 'y': 2}");
+    	assertEquals("(a=1 and x=1 or a=1 and y=2 or b=1 and (x=1 or y=2))", query.toExpression(Visitors.SIMPLIFY).toExpression(Visitors.DEFAULT));
+    }
+
+	@Test
+    public void factorizesLargeUnions() {
+    	List<Query> cubes = new ArrayList<>();
+    	for (int i = 0; i < 5000; i++)
+    		cubes.add(Query.fromJson("{'a': " + (i % 3) + ", 'b': " + (i % 7) + ", 'c': " + i + "}"));
+    	String expr = Query.union(cubes).toExpression(Visitors.SIMPLIFY).toExpression(Visitors.DEFAULT);
+    	assertEquals(5000, expr.split("c=").length - 1);
+    	assertEquals(2, expr.split("a=0").length);
+    	assertTrue(expr.contains("a=0 and ("));
+    }
+
+	@Test
+    public void treeNodesAreImmutableWithStructuralEquality() {
+    	Visitors.Node tree1 = Query.fromJson("{'x': [1,2], 'y': 1, 'z': 1}").toExpression(Visitors.TREE);
+    	Visitors.Node tree2 = Query.fromJson("{'x': [1,2], 'y': 1, 'z': 1}").toExpression(Visitors.TREE);
+    	Visitors.Node tree3 = Query.fromJson("{'x': [1,3], 'y': 1, 'z': 1}").toExpression(Visitors.TREE);
+    	assertEquals(tree1, tree2);
+    	assertEquals(tree1.hashCode(), tree2.hashCode());
+    	assertNotEquals(tree1, tree3);
+    	assertNotEquals(tree1.get(0), tree3.get(0));
+    	// values are interned within a tree
+    	assertSame(tree1.get(1).get(0).get(0), tree1.get(2).get(0).get(0));
+    	try {
+    		tree1.add(tree3);
+    		fail("tree nodes should be immutable");
+    	} catch (UnsupportedOperationException e) {
+    		// expected
+    	}
+    }
+
 	@Test
     public void hasSaneJSONRepresentation() {
         
@@ -565,4 +616,330 @@ public class QueryTest {
     	Query query = Query.fromJson("{ 'x':2, 'y': { 'z': 3}}");
     	assertFalse(query.containsItem(JsonUtil.parseObject("{ 'x':2, 'y': { 'a': 3}}")));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDifference() {
+    	Query wide = Query.fromJson("{ 'age': [21,65] }");
+    	assertEquals(Query.fromJson("{ 'age': [40,65] }"), wide.difference(Query.fromJson("{ 'age': [21,40] }")));
+    	assertEquals(Query.EMPTY, Query.fromJson("{ 'age': [21,40] }").difference(wide));
+    	assertEquals(wide, wide.difference(Query.fromJson("{ 'age': [70,80] }")));
+    	assertNull(wide.difference(Query.from("name", Range.like("a*"))));
+    }
+    
+    @Test
+    public void testDifferenceIsDisjointAndComplete() {
+    	Query query = Query.fromJson("{ 'x': [0,10], 'y': [0,10] }").union("{ 'x': [5,15] }");
+    	Query remove = Query.fromJson("{ 'x': [2,8], 'y': [3,6] }").union("{ 'y': 9 }");
+    	Query difference = query.difference(remove);
+    	for (int x = -1; x < 17; x++) {
+    		for (int y = -1; y < 12; y++) {
+    			JsonObject item = Json.createObjectBuilder().add("x", x).add("y", y).build();
+    			boolean expected = query.containsItem(item) && !remove.containsItem(item);
+    			assertEquals(item.toString(), expected, difference.containsItem(item));
+    			if (difference instanceof Query.UnionCube) {
+    				long matches = ((Query.UnionCube)difference).getMembers().stream().filter(cube -> cube.containsItem(item)).count();
+    				assertTrue(item.toString(), matches <= 1);
+    			}
+    		}
+    	}
+    }
+
+    @Test
+    public void testToDisjointUnion() {
+    	Query query = Query.fromJson("{ 'x': [0,10], 'y': [0,10] }")
+    		.union("{ 'x': [5,15], 'y': [5,15] }")
+    		.union("{ 'z': 'a' }");
+    	Query disjoint = query.toDisjointUnion();
+    	List<Query> cubes = ((Query.UnionCube)disjoint).getMembers();
+    	for (int i = 0; i < cubes.size(); i++)
+    		for (int j = i + 1; j < cubes.size(); j++)
+    			assertFalse(cubes.get(i) + " intersects " + cubes.get(j), cubes.get(i).intersects(cubes.get(j)));
+    	for (int x = -1; x < 17; x++) {
+    		for (int y = -1; y < 17; y++) {
+    			for (String z : Arrays.asList("a", "b")) {
+	    			JsonObject item = Json.createObjectBuilder().add("x", x).add("y", y).add("z", z).build();
+	    			assertEquals(item.toString(), query.containsItem(item), disjoint.containsItem(item));
+    			}
+    		}
+    	}
+    	assertNull(query.toDisjointUnion(2));
+    	Query single = Query.fromJson("{ 'x': [0,10] }");
+    	assertSame(single, single.toDisjointUnion());
+    }
+
+    @Test
+    public void testSplit() {
+    	Query query = Query.fromJson("{ 'x': [0,20], 'y': 'a' }");
+    	List<Query> parts = query.split(QualifiedName.of("x"), 3, SplitPointProvider.of(JsonUtil.parseValue("5"), JsonUtil.parseValue("10")));
+    	assertEquals(3, parts.size());
+    	for (int i = 0; i < parts.size(); i++)
+    		for (int j = i + 1; j < parts.size(); j++)
+    			assertFalse(parts.get(i) + " intersects " + parts.get(j), parts.get(i).intersects(parts.get(j)));
+    	for (int x = -2; x < 23; x++) {
+    		for (String y : Arrays.asList("a", "b")) {
+    			JsonObject item = Json.createObjectBuilder().add("x", x).add("y", y).build();
+    			long matches = parts.stream().filter(part -> part.containsItem(item)).count();
+    			assertEquals(item.toString(), query.containsItem(item) ? 1 : 0, matches);
+    		}
+    	}
+    }
+    
+    @Test
+    public void testSplitIgnoresPointsOutsideRange() {
+    	Query query = Query.fromJson("{ 'x': [0,20] }");
+    	List<Query> parts = query.split(QualifiedName.of("x"), 3, SplitPointProvider.of(JsonUtil.parseValue("-5"), JsonUtil.parseValue("10"), JsonUtil.parseValue("30")));
+    	assertEquals(Arrays.asList(Query.fromJson("{ 'x': [0,10] }"), Query.fromJson("{ 'x': [10,20] }")), parts);
+    	assertEquals(Arrays.asList(query), query.split(QualifiedName.of("x"), 1, SplitPointProvider.of(JsonUtil.parseValue("10"))));
+    }
+    
+    @Test
+    public void testSplitFromSample() {
+    	List<JsonValue> sample = Arrays.asList(1,2,3,4,5,6,7,8,9,10,11,12).stream()
+    		.map(x -> JsonUtil.parseValue(x.toString())).collect(Collectors.toList());
+    	List<Query> parts = Query.UNBOUNDED.split(QualifiedName.of("x"), 4, SplitPointProvider.fromSample(sample));
+    	assertEquals(4, parts.size());
+    	for (Query part : parts) {
+    		long count = sample.stream().filter(x -> part.containsItem(Json.createObjectBuilder().add("x", x).build())).count();
+    		assertEquals(part.toString(), 3, count);
+    	}
+    }
+
+    @Test
+    public void testResidual() {
+    	Query query = Query.fromJson("{ 'tenant': 'a', 'day': ['2024-01-01', '2024-02-01'], 'size': [5,null] }");
+    	Query partition = Query.fromJson("{ 'tenant': 'a', 'day': ['2024-01-05', '2024-01-06'] }");
+    	assertEquals(Query.fromJson("{ 'size': [5,null] }"), query.residual(partition));
+    	Query straddling = Query.fromJson("{ 'tenant': 'a', 'day': ['2024-01-31', '2024-02-02'] }");
+    	assertEquals(Query.fromJson("{ 'day': ['2024-01-01', '2024-02-01'], 'size': [5,null] }"), query.residual(straddling));
+    	Query union = query.union("{ 'tenant': 'b' }");
+    	assertEquals(Query.fromJson("{ 'size': [5,null] }"), union.residual(partition));
+    	assertEquals(Query.UNBOUNDED, Query.fromJson("{ 'tenant': 'a' }").residual(partition));
+    }
+    
+    @Test
+    public void testIntersectsUnionWithUnconstrainedMember() {
+    	Query cube = Query.fromJson("{ 'x': [1,null], 'y': [null,1] }");
+    	Query union = Query.fromJson("{ 'x': [null,10] }").union("{ 'x': [190,null], 'y': 3 }");
+    	assertTrue(cube.intersects(union));
+    	assertTrue(union.intersects(cube));
+    }
+
+    @Test
+    public void testPushdownOfPrefixLike() {
+    	Query query = Query.fromJson("{ 'name': { '$like': 'smi*' }, 'age': [20,30] }");
+    	Pushdown split = query.pushdown(Capabilities.ALL.without(Capabilities.Construct.LIKE));
+    	assertEquals(Query.from("name", Range.between("smi", "smj")).intersect(Query.fromJson("{ 'age': [20,30] }")), split.pushed);
+    	assertEquals(Query.from("name", Range.like("smi*")), split.residual);
+    	assertFalse(split.isExact());
+    	assertTrue(query.pushdown(Capabilities.ALL).isExact());
+    	assertSame(query, query.pushdown(Capabilities.ALL).pushed);
+    	Formatter<String> formatter = Visitors.DEFAULT.withCapabilities(Capabilities.NONE);
+    	assertEquals(Capabilities.NONE, formatter.getCapabilities());
+    	assertEquals(Capabilities.NONE, formatter.transform(Visitors.rename(name -> name)).getCapabilities());
+    	assertEquals(query.toString(), query.toExpression(formatter));
+    }
+    
+    @Test
+    public void testPushdownOfSubqueryAndHas() {
+    	Query query = Query.fromJson("{ 'x': [null,2], 'y': { 'alpha': [2,6], 'nuts': { '$has': 'brazil' }}}");
+    	Pushdown noHas = query.pushdown(Capabilities.of(Capabilities.Construct.SUBQUERY));
+    	assertEquals(Query.fromJson("{ 'x': [null,2], 'y': { 'alpha': [2,6] }}"), noHas.pushed);
+    	assertEquals(Query.fromJson("{ 'y': { 'nuts': { '$has': 'brazil' }}}"), noHas.residual);
+    	Pushdown none = query.pushdown(Capabilities.NONE);
+    	assertEquals(Query.fromJson("{ 'x': [null,2] }"), none.pushed);
+    	assertEquals(Query.fromJson("{ 'y': { 'alpha': [2,6], 'nuts': { '$has': 'brazil' }}}"), none.residual);
+    }
+    
+    @Test
+    public void testPushdownPreservesResults() {
+    	Query query = Query.fromJson("{ 'name': { '$like': 'b?n*' }, 'n': [0,5] }").union("{ 'name': { '$like': 'ca*' } }");
+    	Pushdown split = query.pushdown(Capabilities.NONE);
+    	for (String name : Arrays.asList("ban", "bin", "bun", "cab", "cat", "dog", "b", "c")) {
+    		for (int n = -1; n < 7; n++) {
+    			JsonObject item = Json.createObjectBuilder().add("name", name).add("n", n).build();
+    			if (query.containsItem(item)) assertTrue(item.toString(), split.pushed.containsItem(item));
+    			assertEquals(item.toString(), query.containsItem(item), split.pushed.containsItem(item) && split.residual.containsItem(item));
+    		}
+    	}
+    }
+    
+    @Test
+    public void testUnionFlattensAndAbsorbsNestedUnions() {
+    	Query inner = Query.fromJson("{ 'x': 1, 'y': 2 }").union("{ 'x': 3, 'y': 4 }");
+    	Query query = Query.union(Query.fromJson("{ 'x': 5 }"), inner, Query.fromJson("{ 'x': [0,4] }"));
+    	List<Query> members = ((Query.UnionCube)query).getMembers();
+    	assertEquals(Arrays.asList(Query.fromJson("{ 'x': 5 }"), Query.fromJson("{ 'x': [0,4] }")), members);
+    	assertEquals(Query.fromJson("{ 'x': [0,10] }"), Query.union(query, Query.fromJson("{ 'x': [0,10] }")));
+    	assertEquals(Query.UNBOUNDED, Query.union(query, Query.UNBOUNDED));
+    	assertEquals(Query.fromJson("{ 'x': 5 }"), Query.union(Query.EMPTY, Query.fromJson("{ 'x': 5 }")));
+    }
+    
+    @Test
+    public void testUnionAbsorbsCubesWithNumericallyEqualPoints() {
+    	Query wide = Query.fromJson("{ 'x': 1, 'y': [0,5] }");
+    	assertSame(wide, Query.union(Query.fromJson("{ 'x': 1.0, 'y': 2 }"), wide));
+    	assertSame(wide, Query.union(wide, Query.fromJson("{ 'x': 1.00, 'y': 3 }")));
+    	Query zero = Query.fromJson("{ 'x': 0, 'y': [0,5] }");
+    	assertSame(zero, Query.union(Query.fromJson("{ 'x': 0.0, 'y': 2 }"), zero));
+    }
+    
+    @Test
+    public void testLargeUnionIsMinimalAndDeterministic() {
+    	List<Query> cubes = new ArrayList<>();
+    	for (int i = 0; i < 600; i++) {
+    		switch (i % 3) {
+    			case 0: cubes.add(Query.fromJson("{ 'x': " + (i % 50) + ", 'y': " + (i % 7) + " }")); break;
+    			case 1: cubes.add(Query.fromJson("{ 'x': " + (i % 50) + " }")); break;
+    			default: cubes.add(Query.fromJson("{ 'y': [" + (i % 7) + "," + (i % 7 + 2) + "], 'z': " + (i % 11) + " }"));
+    		}
+    	}
+    	List<Query> members = ((Query.UnionCube)Query.union(cubes)).getMembers();
+    	for (Query a : members)
+    		for (Query b : members)
+    			if (a != b) assertNotEquals(a + " contains " + b, Boolean.TRUE, a.contains(b));
+    	for (Query cube : cubes)
+    		assertTrue(cube.toString(), members.stream().anyMatch(member -> member.contains(cube) == Boolean.TRUE));
+    	Collections.reverse(cubes);
+    	assertEquals(members.size(), ((Query.UnionCube)Query.union(cubes)).getMembers().size());
+    	Collections.reverse(cubes);
+    	assertEquals(members.toString(), ((Query.UnionCube)Query.union(cubes)).getMembers().toString());
+    }
+    
+    @Test
+    public void testParallelUnionMatchesSerialUnion() {
+    	Random random = new Random(5);
+    	List<Query> cubes = new ArrayList<>();
+    	for (int i = 0; i < 20000; i++) {
+    		switch (random.nextInt(4)) {
+    			case 0: cubes.add(Query.fromJson("{ 'x': " + random.nextInt(300) + ", 'y': " + random.nextInt(9) + " }")); break;
+    			case 1: cubes.add(Query.fromJson("{ 'x': " + random.nextInt(300) + " }")); break;
+    			case 2: cubes.add(Query.fromJson("{ 'y': [" + random.nextInt(9) + "," + (random.nextInt(9) + 2) + "], 'z': " + random.nextInt(20) + " }")); break;
+    			default: cubes.add(Query.fromJson("{ 'z': " + random.nextInt(20) + " }"));
+    		}
+    	}
+    	ForkJoinPool pool = new ForkJoinPool(4);
+    	try {
+    		Query serial = Query.union(cubes);
+    		Query parallel = Query.union(cubes, pool);
+    		assertEquals(serial, parallel);
+    		assertEquals(serial.toString(), parallel.toString());
+    		assertEquals(Query.EMPTY, Query.union(Collections.emptyList(), pool));
+    	} finally {
+    		pool.shutdown();
+    	}
+    }
+    
+    @Test
+    public void testParallelUnionMatchesSerialUnionOfMixedQueries() {
+    	ForkJoinPool pool = new ForkJoinPool(4);
+    	try {
+    		for (int seed = 0; seed < 3; seed++) {
+    			Random random = new Random(seed);
+    			int count = 4000;
+    			List<Query> cubes = new ArrayList<>(count);
+    			for (int i = 0; i < count; i++) {
+    				switch (random.nextInt(4)) {
+    					case 0: cubes.add(Query.from("id", Range.equals(random.nextInt(count)))); break;
+    					case 1: cubes.add(Query.from("id", Range.equals(random.nextInt(count))).intersect(Query.from("region", Range.equals(random.nextInt(20))))); break;
+    					case 2: cubes.add(Query.from("region", Range.equals(random.nextInt(20))).intersect(Query.from("day", Range.between(i, i + random.nextInt(30))))); break;
+    					default: cubes.add(Query.from("id", Range.equals(random.nextInt(count))).union(Query.from("status", Range.equals(random.nextInt(5)))));
+    				}
+    			}
+    			Query serial = Query.union(cubes);
+    			Query parallel = Query.union(cubes, pool);
+    			assertEquals(serial, parallel);
+    			assertEquals(serial.toString(), parallel.toString());
+    		}
+    	} finally {
+    		pool.shutdown();
+    	}
+    }
+    
+    private static Boolean bruteForceContains(Query union, Query cube) {
+    	for (Query member : ((Query.UnionCube)union).getMembers()) {
+    		Boolean contains = member.contains(cube);
+    		if (contains == null || contains) return contains;
+    	}
+    	return false;
+    }
+    
+    private static Boolean bruteForceEquals(Query a, Query b) {
+    	List<Query> others = ((Query.UnionCube)b).getMembers();
+    	return Tristate.every(((Query.UnionCube)a).getMembers(), member -> Tristate.any(others, other -> member.maybeEquals(other)));
+    }
+    
+    @Test
+    public void testLargeUnionContainsAndEqualsMatchPairwiseChecks() {
+    	List<Query> cubes = new ArrayList<>();
+    	for (int i = 0; i < 500; i++) {
+    		switch (i % 5) {
+    			case 0: cubes.add(Query.fromJson("{ 'x': " + i + ", 'y': " + (i % 7) + " }")); break;
+    			case 1: cubes.add(Query.fromJson("{ 'x': " + i + ", 'y': [" + (i % 7) + "," + (i % 7 + 3) + "] }")); break;
+    			case 2: cubes.add(Query.fromJson("{ 'z': '" + i + "' }")); break;
+    			case 3: cubes.add(Query.fromJson("{ 'x': " + i + ".0, 'z': '" + i + "' }")); break;
+    			default: cubes.add(Query.fromJson("{ 'x': { '$': 'p" + (i % 3) + "' }, 'y': " + i + " }"));
+    		}
+    	}
+    	Query union = Query.union(cubes);
+    	List<Query> reversed = new ArrayList<>(cubes);
+    	Collections.reverse(reversed);
+    	Query other = Query.union(reversed);
+    	Query smaller = Query.union(cubes.subList(0, 400));
+    	assertEquals(bruteForceEquals(union, other), union.maybeEquals(other));
+    	assertEquals(bruteForceEquals(union, smaller), union.maybeEquals(smaller));
+    	assertEquals(Boolean.FALSE, union.maybeEquals(smaller));
+    	assertEquals(union, other);
+    	
+    	List<Query> probes = new ArrayList<>(cubes);
+    	probes.add(Query.fromJson("{ 'x': 5, 'y': 5 }"));
+    	probes.add(Query.fromJson("{ 'x': 5.00, 'y': 5, 'w': 1 }"));
+    	probes.add(Query.fromJson("{ 'x': 6, 'y': { '$': 'p1' } }"));
+    	probes.add(Query.fromJson("{ 'x': { '$': 'p2' }, 'y': 504 }"));
+    	probes.add(Query.fromJson("{ 'x': 1000, 'y': 1 }"));
+    	probes.add(Query.fromJson("{ 'x': 0 }"));
+    	for (Query probe : probes)
+    		assertEquals(probe.toString(), bruteForceContains(union, probe), union.contains(probe));
+    	assertEquals(Tristate.every(((Query.UnionCube)smaller).getMembers(), member -> bruteForceContains(union, member)), union.contains(smaller));
+    	assertEquals(Boolean.TRUE, Query.union(cubes.subList(200, 300)).contains(Query.union(cubes.subList(210, 230))));
+    	assertEquals(Boolean.FALSE, smaller.contains(union));
+    }
+    
+    @Test
+    public void testNormalForms() {
+    	Query query = Query.fromJson("{'x': [1,5], 'y': { 'z': 3 } }").union("{'x': 7, 'w': 2}");
+    	Simplified<Visitors.Node> dnf = query.toDNF(100);
+    	assertTrue(dnf.complete);
+    	assertEquals("(x>=1 and x<5 and y.z=3 or w=2 and x=7)", dnf.result.toExpression(Visitors.DEFAULT));
+    	Simplified<Visitors.Node> cnf = query.toCNF(100);
+    	assertTrue(cnf.complete);
+    	assertEquals("(x>=1 and x<5 or w=2) and (x>=1 and x<5 or x=7) and (y.z=3 or w=2) and (y.z=3 or x=7)", cnf.result.toExpression(Visitors.DEFAULT));
+    	Simplified<Visitors.Node> factored = query.toCNF(3);
+    	assertFalse(factored.complete);
+    	assertEquals(query.toString(), factored.result.toExpression(Visitors.DEFAULT));
+    	Query ab = Query.from("a", Range.union(Range.equals(1), Range.equals(2))).intersect(Query.from("b", Range.union(Range.equals(3), Range.equals(4))));
+    	Query cd = Query.from("c", Range.union(Range.equals(1), Range.equals(2))).intersect(Query.from("d", Range.union(Range.equals(3), Range.equals(4))));
+    	Simplified<Visitors.Node> both = ab.union(cd).toDNF(8);
+    	assertFalse(both.complete);
+    	assertEquals("((a=1 or a=2) and (b=3 or b=4) or (c=1 or c=2) and (d=3 or d=4))", both.result.toExpression(Visitors.DEFAULT));
+    	Simplified<Visitors.Node> first = ab.union(cd).toDNF(12);
+    	assertFalse(first.complete);
+    	assertEquals("(a=1 and b=3 or a=1 and b=4 or a=2 and b=3 or a=2 and b=4 or (c=1 or c=2) and (d=3 or d=4))", first.result.toExpression(Visitors.DEFAULT));
+    	assertTrue(ab.union(cd).toDNF(16).complete);
+    }
+    
+    @Test
+    public void testNormalFormLimitPreventsBlowUp() {
+    	Query query = Query.UNBOUNDED;
+    	for (int i = 0; i < 40; i++)
+    		query = query.intersect(Query.from("d" + i, Range.union(Range.equals(i), Range.equals(i + 100))));
+    	Simplified<Visitors.Node> cnf = query.toCNF(1000);
+    	assertTrue(cnf.complete);
+    	assertEquals(40, cnf.result.size());
+    	Simplified<Visitors.Node> dnf = query.toDNF(1000);
+    	assertFalse(dnf.complete);
+    	assertEquals(query.toString(), dnf.result.toExpression(Visitors.DEFAULT));
+    	Query small = Query.from("a", Range.union(Range.equals(1), Range.equals(2))).intersect(Query.from("b", Range.union(Range.equals(3), Range.equals(4))));
+    	assertEquals("(a=1 and b=3 or a=1 and b=4 or a=2 and b=3 or a=2 and b=4)", small.toDNF(8).result.toExpression(Visitors.DEFAULT));
+    	assertFalse(small.toDNF(7).complete);
+    }
+}
@@ -1,6 +1,7 @@
 package com.softwareplumbers.common.abstractquery;
 
 
+import com.softwareplumbers.common.abstractquery.visitor.Visitors;
 import com.softwareplumbers.common.jsonview.JsonViewFactory;
 import org.junit.Test;
 
@@ -732,4 +733,49 @@ public class RangeTest {
     	assertEquals(range, range1);
     	
     }
+
+    @Test public void testUnionOfDisjointBetweenAndOpenRange() {
+    	assertFalse(Range.between(6,9).intersects(Range.lessThan(3)));
+    	assertFalse(Range.between(6,9).intersects(Range.greaterThan(10)));
+    	assertTrue(Range.lessThan(3).union(Range.between(6,9)) instanceof Range.RangeUnion);
+    	assertTrue(Range.between(6,9).union(Range.lessThan(3)) instanceof Range.RangeUnion);
+    	assertEquals(Range.greaterThanOrEqual(6), Range.greaterThan(7).union(Range.between(6,9)));
+    	assertEquals(Range.lessThan(9), Range.between(6,9).union(Range.lessThan(7)));
+    }
+    
+    @Test public void testIntersectsAtSharedBound() {
+    	assertFalse(Range.greaterThanOrEqual(10).intersects(Range.lessThan(10)));
+    	assertFalse(Range.lessThanOrEqual(10).intersects(Range.greaterThan(10)));
+    	assertTrue(Range.lessThanOrEqual(10).intersects(Range.greaterThanOrEqual(10)));
+    	assertFalse(Range.between(10,15).intersects(Range.between(5,10)));
+    	assertTrue(Range.between(0,5).intersects(Range.lessThan(5).union(Range.greaterThanOrEqual(10))));
+    }
+    
+    @Test public void testComplement() {
+    	assertEquals(Range.lessThan(3).union(Range.greaterThan(3)), Range.equals(3).complement());
+    	assertEquals(Range.lessThan(1).union(Range.greaterThanOrEqual(5)), Range.between(1,5).complement());
+    	assertEquals(Range.between(Range.greaterThanOrEqual(3), Range.lessThanOrEqual(5)), Range.lessThan(3).union(Range.greaterThan(5)).complement());
+    	assertEquals(Range.EMPTY, Range.UNBOUNDED.complement());
+    	assertNull(Range.like("ab*").complement());
+    	assertNull(Range.lessThan(Param.from("x")).complement());
+    }
+    
+    @Test public void testDifference() {
+    	assertEquals(Range.between(40, 65), Range.between(21, 65).difference(Range.between(21, 40)));
+    	assertEquals(Range.between(0, 3).union(Range.between(5, 10)), Range.between(0, 10).difference(Range.between(3, 5)));
+    	assertEquals(Range.EMPTY, Range.between(3, 5).difference(Range.between(0, 10)));
+    	assertNull(Range.between(3, 5).difference(Range.like("a*")));
+    }
+    
+    @Test
+    public void testNormalForms() {
+    	Range range = Range.union(Range.between(0, 3), Range.equals(5)).intersect(Range.union(Range.lessThan(2), Range.greaterThan(4)));
+    	Simplified<Visitors.Node> dnf = range.toDNF(100);
+    	assertTrue(dnf.complete);
+    	assertTrue(dnf.result instanceof Visitors.Or);
+    	for (Visitors.Node term : dnf.result) assertFalse(term instanceof Visitors.Or);
+    	Simplified<Visitors.Node> cnf = Range.union(Range.equals(1), Range.equals(2)).toCNF(100);
+    	assertTrue(cnf.complete);
+    	assertEquals("(=1 or =2)", cnf.result.toExpression(Visitors.DEFAULT));
+    }
 }
@@ -6,10 +6,13 @@
 package com.softwareplumbers.common.abstractquery;
 
 import com.softwareplumbers.common.immutablelist.QualifiedName;
+import com.softwareplumbers.common.jsonview.JsonViewFactory;
 import com.softwareplumbers.common.abstractquery.visitor.Formatter;
 import com.softwareplumbers.common.abstractquery.visitor.Visitors;
 import com.softwareplumbers.common.abstractquery.visitor.Visitors.Relationship;
 import com.softwareplumbers.common.abstractquery.visitor.Visitors.ParameterizedSQL;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import javax.json.JsonValue;
 import static org.junit.Assert.assertEquals;
@@ -83,6 +86,24 @@ public class SQLFormatTest {
         assertEquals("zparam", result.parameters[1]);
     }  
 
+    @Test
+    public void createsParameterRowsForBatch() {
+        Query query = Query.fromJson("{'x': [null,2], 'y': { '$': 'yparam'}, 'z': { '$': 'zparam'}}");
+        ParameterizedSQL result = query.toExpression(GENERIC_FORMATTER_WITH_PARAMS);
+        List<JsonValue[]> rows = result.getParameterRows(Arrays.asList(
+            JsonUtil.parseObject("{ 'yparam': 1, 'zparam': 'a' }"),
+            JsonUtil.parseObject("{ 'zparam': 'b', 'yparam': 2 }")));
+        assertEquals(2, rows.size());
+        assertEquals(Arrays.asList(JsonUtil.parseValue("1"), JsonViewFactory.asJson("a")), Arrays.asList(rows.get(0)));
+        assertEquals(Arrays.asList(JsonUtil.parseValue("2"), JsonViewFactory.asJson("b")), Arrays.asList(rows.get(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBatchWithMissingParameter() {
+        Query query = Query.fromJson("{'y': { '$': 'yparam'}}");
+        query.toExpression(GENERIC_FORMATTER_WITH_PARAMS).getParameterRows(Arrays.asList(JsonUtil.parseObject("{ 'z': 1 }")));
+    }
+
     @Test
     public void createsExpressionWithNull() {
         Query query = Query.from("x", Range.equals(JsonValue.NULL));
@@ -0,0 +1,105 @@
+package com.softwareplumbers.common.abstractquery.cache;
+
+import com.softwareplumbers.common.abstractquery.JsonUtil;
+import com.softwareplumbers.common.abstractquery.Param;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InvalidationIndexTest {
+
+    @Test
+    public void findsQueriesContainingEitherVersion() {
+        InvalidationIndex<String> index = new InvalidationIndex<>();
+        index.put("gbp", Query.fromJson("{ 'currency': 'GBP', 'amount': [100,200] }"));
+        index.put("usd", Query.fromJson("{ 'currency': 'USD' }"));
+        index.put("small", Query.from("amount", Range.lessThan(50)));
+        index.put("uk", Query.fromJson("{ 'branch': { 'country': 'UK' } }"));
+
+        JsonObject before = JsonUtil.parseObject("{ 'currency': 'GBP', 'amount': 150 }");
+        JsonObject after = JsonUtil.parseObject("{ 'currency': 'USD', 'amount': 150 }");
+
+        assertEquals(new HashSet<>(Arrays.asList("gbp", "usd")), index.getAffected(before, after));
+        assertEquals(Collections.singleton("gbp"), index.getAffected(before, null));
+        assertEquals(Collections.singleton("small"), index.getAffected(null, JsonUtil.parseObject("{ 'currency': 'EUR', 'amount': 10 }")));
+        assertEquals(Collections.singleton("uk"), index.getAffected(null, JsonUtil.parseObject("{ 'amount': 500, 'branch': { 'country': 'UK' } }")));
+    }
+
+    @Test
+    public void indexesEachMemberOfUnion() {
+        InvalidationIndex<String> index = new InvalidationIndex<>();
+        index.put("either", Query.fromJson("{ 'x': 1 }").union("{ 'y': 2 }"));
+        assertEquals(Collections.singleton("either"), index.getAffected(null, JsonUtil.parseObject("{ 'x': 1, 'y': 5 }")));
+        assertEquals(Collections.singleton("either"), index.getAffected(null, JsonUtil.parseObject("{ 'x': 7, 'y': 2 }")));
+        assertTrue(index.getAffected(null, JsonUtil.parseObject("{ 'x': 7, 'y': 5 }")).isEmpty());
+    }
+
+    @Test
+    public void unindexableQueriesAreConservative() {
+        InvalidationIndex<String> index = new InvalidationIndex<>();
+        index.put("param", Query.from("x", Range.lessThan(Param.from("max"))));
+        index.put("like", Query.from("name", Range.like("jo*")));
+        index.put("all", Query.UNBOUNDED);
+        assertEquals(new HashSet<>(Arrays.asList("param", "like", "all")), index.getAffected(null, JsonUtil.parseObject("{ 'x': 1, 'name': 'joe' }")));
+        assertEquals(new HashSet<>(Arrays.asList("param", "all")), index.getAffected(null, JsonUtil.parseObject("{ 'x': 1, 'name': 'fred' }")));
+    }
+
+    @Test
+    public void valuesOfUnexpectedTypeAreConservative() {
+        InvalidationIndex<String> index = new InvalidationIndex<>();
+        index.put("small", Query.from("amount", Range.lessThan(50)));
+        index.put("gbp", Query.fromJson("{ 'currency': 'GBP' }"));
+        assertEquals(Collections.singleton("small"), index.getAffected(null, JsonUtil.parseObject("{ 'amount': 'lots', 'currency': 'EUR' }")));
+    }
+
+    @Test
+    public void invalidateRemovesAffectedEntries() {
+        InvalidationIndex<String> index = new InvalidationIndex<>();
+        index.put("a", Query.from("x", Range.equals(1)));
+        index.put("b", Query.from("x", Range.equals(2)));
+        assertEquals(Collections.singleton("a"), index.invalidate(JsonUtil.parseObject("{ 'x': 1 }"), null));
+        assertEquals(1, index.size());
+        assertTrue(index.getAffected(JsonUtil.parseObject("{ 'x': 1 }"), null).isEmpty());
+    }
+
+    @Test
+    public void agreesWithContainsItem() {
+        Random random = new Random(1234);
+        InvalidationIndex<Integer> index = new InvalidationIndex<>();
+        Query[] queries = new Query[500];
+        for (int i = 0; i < queries.length; i++) {
+            int a = random.nextInt(100);
+            int b = a + random.nextInt(20);
+            switch (random.nextInt(4)) {
+                case 0: queries[i] = Query.from("x", Range.equals(a)); break;
+                case 1: queries[i] = Query.from("x", Range.between(a, b)).intersect(Query.from("y", Range.greaterThan(b))); break;
+                case 2: queries[i] = Query.from("y", Range.lessThanOrEqual(a)).union(Query.from("x", Range.greaterThan(b))); break;
+                default: queries[i] = Query.from("z", Range.equals("v" + a % 10)).intersect(Query.from("x", Range.lessThan(b))); break;
+            }
+            index.put(i, queries[i]);
+        }
+        for (int i = 0; i < queries.length; i += 3) index.remove(i);
+
+        for (int trial = 0; trial < 200; trial++) {
+            JsonObject document = Json.createObjectBuilder()
+                .add("x", random.nextInt(130))
+                .add("y", random.nextInt(130))
+                .add("z", "v" + random.nextInt(10))
+                .build();
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < queries.length; i++) {
+                if (i % 3 != 0 && queries[i].containsItem(document)) expected.add(i);
+            }
+            assertEquals(expected, index.getAffected(document, null));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.softwareplumbers.common.abstractquery.cache;
+
+import com.softwareplumbers.common.abstractquery.ArrayConstraint;
+import com.softwareplumbers.common.abstractquery.Param;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PersistentResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static JsonObject row(String json) {
+        return Json.createReader(new StringReader(json)).readObject();
+    }
+
+    private static final List<JsonObject> ROWS = Arrays.asList(
+        row("{\"x\":1,\"y\":\"a\"}"),
+        row("{\"x\":2,\"y\":\"b\"}"),
+        row("{\"x\":3,\"y\":\"c\"}")
+    );
+
+    private Path cacheFile() throws IOException {
+        return folder.getRoot().toPath().resolve("results.cache");
+    }
+
+    @Test
+    public void canGetExactResults() throws IOException {
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            Query query = Query.from("x", Range.lessThan(10));
+            cache.put(query, ROWS);
+            assertEquals(Optional.of(ROWS), cache.get(Query.from("x", Range.lessThan(10))));
+            assertFalse(cache.get(Query.from("x", Range.lessThan(20))).isPresent());
+        }
+    }
+
+    @Test
+    public void canGetResultsForContainedQuery() throws IOException {
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            cache.put(Query.from("x", Range.lessThan(10)), ROWS);
+            Optional<List<JsonObject>> result = cache.get(Query.from("x", Range.between(2, 5)));
+            assertEquals(Optional.of(Arrays.asList(ROWS.get(1), ROWS.get(2))), result);
+        }
+    }
+
+    @Test
+    public void resultsSurviveReopen() throws IOException {
+        Query query = Query.from("x", Range.greaterThan(0)).intersect(Query.from("y", Range.like("a*")));
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            cache.put(query, ROWS);
+            cache.put(Query.from("x", Range.equals(2)), Collections.singletonList(ROWS.get(1)));
+            cache.remove(Query.from("x", Range.equals(2)));
+        }
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            assertEquals(1, cache.size());
+            assertEquals(Optional.of(ROWS), cache.get(query));
+            assertFalse(cache.get(Query.from("x", Range.equals(2))).isPresent());
+        }
+    }
+
+    @Test
+    public void replacesAndCompacts() throws IOException {
+        Query query = Query.from("x", Range.lessThan(10));
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            cache.put(query, ROWS);
+            cache.put(Query.from("y", Range.equals("b")), Collections.singletonList(ROWS.get(1)));
+            cache.put(query, ROWS.subList(0, 1));
+            cache.compact();
+            assertEquals(2, cache.size());
+            assertEquals(Optional.of(ROWS.subList(0, 1)), cache.get(query));
+            assertEquals(Optional.of(Collections.singletonList(ROWS.get(1))), cache.get(Query.from("y", Range.equals("b"))));
+        }
+    }
+
+    @Test
+    public void compactedResultsSurviveReopen() throws IOException {
+        Query query = Query.from("x", Range.lessThan(10));
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            cache.put(Query.from("y", Range.equals("b")), Collections.singletonList(ROWS.get(1)));
+            cache.put(query, ROWS);
+            cache.remove(Query.from("y", Range.equals("b")));
+            cache.compact();
+            cache.put(Query.from("x", Range.equals(2)), Collections.singletonList(ROWS.get(1)));
+        }
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve("results.cache.compact")));
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            assertEquals(Arrays.asList(query, Query.from("x", Range.equals(2))), cache.getQueries());
+            assertEquals(Optional.of(ROWS), cache.get(query));
+        }
+    }
+
+    @Test
+    public void keepsExistingResultsWhenReplacementTooLarge() throws IOException {
+        Query query = Query.from("x", Range.lessThan(10));
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile(), 256)) {
+            cache.put(query, ROWS.subList(0, 1));
+            assertFalse(cache.put(query, Collections.nCopies(50, ROWS.get(0))));
+            assertEquals(Optional.of(ROWS.subList(0, 1)), cache.get(query));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptFile() throws IOException {
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            cache.put(Query.from("x", Range.lessThan(10)), ROWS);
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0, 0x7F, 0, 0, 0 }), 8);
+        }
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            fail("corrupt file was opened");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("corrupt"));
+        }
+    }
+
+    @Test
+    public void discardsRecordsFromFirstCorruptRecord() throws IOException {
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            cache.put(Query.from("x", Range.lessThan(10)), ROWS);
+            cache.put(Query.from("x", Range.equals(2)), Collections.singletonList(ROWS.get(1)));
+            cache.put(Query.from("y", Range.equals("b")), Collections.singletonList(ROWS.get(1)));
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, 17);
+            length.flip();
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7F }), 16 + 5 + length.getInt());
+        }
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            assertEquals(Collections.singletonList(Query.from("x", Range.lessThan(10))), cache.getQueries());
+            cache.put(Query.from("x", Range.equals(3)), Collections.singletonList(ROWS.get(2)));
+        }
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            assertEquals(Arrays.asList(Query.from("x", Range.lessThan(10)), Query.from("x", Range.equals(3))), cache.getQueries());
+            assertEquals(Optional.of(ROWS), cache.get(Query.from("x", Range.lessThan(10))));
+        }
+    }
+
+    @Test
+    public void keepsReplacedResultsWhenEvicting() throws IOException {
+        Query query = Query.from("x", Range.lessThan(10));
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile(), 256)) {
+            cache.put(query, ROWS.subList(0, 1));
+            cache.put(Query.from("x", Range.equals(2)), ROWS.subList(1, 2));
+            cache.put(query, ROWS.subList(0, 2));
+            assertEquals(Optional.of(ROWS.subList(0, 2)), cache.get(query));
+            assertEquals(1, cache.getQueries().stream().filter(query::equals).count());
+        }
+    }
+
+    @Test
+    public void evictsOldestWhenFull() throws IOException {
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile(), 256)) {
+            for (int i = 0; i < 10; i++)
+                cache.put(Query.from("x", Range.equals(i)), ROWS);
+            assertTrue(cache.size() < 10);
+            assertTrue(cache.get(Query.from("x", Range.equals(9))).isPresent());
+            assertFalse(cache.get(Query.from("x", Range.equals(0))).isPresent());
+        }
+    }
+
+    @Test
+    public void invalidatesAffectedResults() throws IOException {
+        try (PersistentResultCache cache = new PersistentResultCache(cacheFile())) {
+            cache.put(Query.from("x", Range.lessThan(10)), ROWS);
+            cache.put(Query.from("y", Range.equals("z")), Collections.emptyList());
+            assertEquals(1, cache.invalidate(null, row("{\"x\":4,\"y\":\"d\"}")));
+            assertEquals(Collections.singletonList(Query.from("y", Range.equals("z"))), cache.getQueries());
+        }
+    }
+
+    @Test
+    public void codecRoundTripsRows() {
+        List<JsonObject> rows = Arrays.asList(
+            row("{}"),
+            row("{\"a\":null,\"b\":true,\"c\":false,\"d\":-12.50,\"e\":1E+3,\"f\":\"\u00e9t\u00e9\"}"),
+            row("{\"g\":{\"h\":[1,\"two\",[3],{\"i\":null},true]},\"j\":[]}")
+        );
+        QueryCodec.Output out = new QueryCodec.Output();
+        for (JsonObject row : rows) QueryCodec.writeRow(out, row);
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        for (JsonObject row : rows) assertEquals(row, QueryCodec.readRow(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void codecRoundTripsQueries() {
+        List<Query> queries = Arrays.asList(
+            Query.UNBOUNDED,
+            Query.EMPTY,
+            Query.from("x", Range.like("ab*")),
+            Query.from("x", Range.between(Param.from("lo"), Param.from("hi"))),
+            Query.from("tags", ArrayConstraint.match(Range.equals("red"))),
+            Query.from("x", Range.lessThan(2)).union(Query.from("y", Range.greaterThanOrEqual("b"))),
+            Query.from("x", Range.lessThan(2).union(Range.greaterThan(5))),
+            Query.fromJson("{ 'currency': 'GBP', 'branch': { 'country': 'UK' }}")
+        );
+        for (Query query : queries) {
+            assertEquals(query, QueryCodec.decode(QueryCodec.encode(query)));
+        }
+    }
+}
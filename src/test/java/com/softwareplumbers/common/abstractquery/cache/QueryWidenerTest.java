@@ -0,0 +1,70 @@
+package com.softwareplumbers.common.abstractquery.cache;
+
+import com.softwareplumbers.common.abstractquery.Param;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import com.softwareplumbers.common.immutablelist.QualifiedName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryWidenerTest {
+
+    private static final QueryWidener WIDENER = new QueryWidener()
+        .withBuckets("age", QueryWidener.Buckets.width(10))
+        .withBuckets(QualifiedName.of("stats", "score"), QueryWidener.Buckets.width(0.5));
+
+    @Test
+    public void roundsBoundsOutwardToBucketEdges() {
+        assertEquals(Query.from("age", Range.greaterThanOrEqual(20)), WIDENER.widen(Query.from("age", Range.greaterThanOrEqual(21))));
+        assertEquals(Query.from("age", Range.greaterThanOrEqual(20)), WIDENER.widen(Query.from("age", Range.greaterThan(22))));
+        assertEquals(Query.from("age", Range.lessThan(30)), WIDENER.widen(Query.from("age", Range.lessThan(30))));
+        assertEquals(Query.from("age", Range.lessThan(40)), WIDENER.widen(Query.from("age", Range.lessThanOrEqual(30))));
+        assertEquals(Query.from("age", Range.between(10, 40)), WIDENER.widen(Query.from("age", Range.between(17, 33))));
+        assertEquals(
+            Query.from("stats", Query.from("score", Range.between(-1.5, 2.5))),
+            WIDENER.widen(Query.from("stats", Query.from("score", Range.between(-1.2, 2.1)))));
+    }
+
+    @Test
+    public void leavesOtherConstraintsUnchanged() {
+        Query query = Query.fromJson("{ 'age': 21, 'name': [ 'a', 'c' ], 'height': [150, 180] }");
+        assertSame(query, WIDENER.widen(query));
+        Query strings = Query.from("age", Range.greaterThan("x"));
+        assertSame(strings, WIDENER.widen(strings));
+    }
+
+    @Test
+    public void leavesParameterizedRangesUnchanged() {
+        Query lower = Query.fromJson("{ 'age': [ { '$': 'lo' }, 27 ] }");
+        assertSame(lower, WIDENER.widen(lower));
+        Query upper = Query.from("age", Range.greaterThan(21).intersect(Range.lessThan(Param.from("hi"))));
+        assertSame(upper, WIDENER.widen(upper));
+        Query bound = lower.bind("{ 'lo': 21 }");
+        assertEquals(Query.from("age", Range.between(20, 30)), WIDENER.widen(bound));
+    }
+
+    @Test
+    public void neighbouringQueriesShareCacheEntries() {
+        List<JsonObject> table = IntStream.range(0, 100)
+            .mapToObj(age -> Json.createObjectBuilder().add("age", age).build())
+            .collect(Collectors.toList());
+        List<Query> fetched = new ArrayList<>();
+        for (int lower : Arrays.asList(21, 22, 25, 29)) {
+            Query query = Query.from("age", Range.between(lower, 45));
+            List<JsonObject> rows = WIDENER.fetch(query, widened -> {
+                if (!fetched.contains(widened)) fetched.add(widened);
+                return table.stream().filter(widened).collect(Collectors.toList());
+            });
+            assertEquals(table.subList(lower, 45), rows);
+        }
+        assertEquals(Arrays.asList(Query.from("age", Range.between(20, 50))), fetched);
+    }
+}
@@ -0,0 +1,129 @@
+package com.softwareplumbers.common.abstractquery.execution;
+
+import com.softwareplumbers.common.abstractquery.JsonUtil;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import javax.json.JsonObject;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoalescingExecutorTest {
+
+    private static final List<JsonObject> TABLE = Arrays.asList(
+        JsonUtil.parseObject("{ 'id': 'w', 'n': 1 }"),
+        JsonUtil.parseObject("{ 'id': 'x', 'n': 2 }"),
+        JsonUtil.parseObject("{ 'id': 'y', 'n': 3 }"),
+        JsonUtil.parseObject("{ 'id': 'z', 'n': 4 }")
+    );
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<Query> fetched = Collections.synchronizedList(new ArrayList<>());
+
+    private CompletableFuture<List<JsonObject>> backend(Query query) {
+        fetched.add(query);
+        return CompletableFuture.completedFuture(TABLE.stream().filter(query).collect(Collectors.toList()));
+    }
+
+    @After
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void mergesPointLookupsIntoOneQuery() {
+        List<Query> merged = CoalescingExecutor.merge(Arrays.asList(
+            Query.from("id", Range.equals("x")),
+            Query.from("id", Range.equals("y")),
+            Query.from("id", Range.equals("z"))
+        ));
+        assertEquals(1, merged.size());
+        assertEquals(Query.from("id", Range.equals("x").union(Range.equals("y")).union(Range.equals("z"))), merged.get(0));
+    }
+
+    @Test
+    public void mergesLargeBurstByFixedDimensions() {
+        List<Query> queries = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            queries.add(Query.from("id", Range.equals(i)).intersect(Query.from("region", Range.equals(i % 3))));
+        queries.add(Query.from("id", Range.equals(1)).intersect(Query.from("region", Range.equals(1))).intersect(Query.from("n", Range.equals(1))));
+        List<Query> merged = CoalescingExecutor.merge(queries);
+        assertEquals(4, merged.size());
+        for (int region = 0; region < 3; region++) {
+            assertEquals(Range.equals(region), merged.get(region).getConstraint("region"));
+            assertEquals(Boolean.TRUE, merged.get(region).containsItem(JsonUtil.parseObject("{ 'id': " + (9000 + region) + ", 'region': " + region + " }")));
+            assertEquals(Boolean.FALSE, merged.get(region).containsItem(JsonUtil.parseObject("{ 'id': " + (9001 + region) + ", 'region': " + region + " }")));
+        }
+    }
+
+    /** Scheduler which records the tasks it is asked to schedule, and never runs them itself. */
+    private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+        final List<Runnable> scheduled = new ArrayList<>();
+        ManualScheduler() { super(1); }
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            scheduled.add(command);
+            return super.schedule(() -> { }, 1, TimeUnit.HOURS);
+        }
+    }
+
+    @Test
+    public void staleTimerDoesNotSendBatch() throws InterruptedException, ExecutionException, TimeoutException {
+        ManualScheduler manual = new ManualScheduler();
+        try {
+            CoalescingExecutor executor = new CoalescingExecutor(this::backend, manual, 20, 100, TimeUnit.MILLISECONDS, 100);
+            executor.submit(Query.from("id", Range.equals("w")));
+            executor.flush();
+            CompletableFuture<List<JsonObject>> x = executor.submit(Query.from("id", Range.equals("x")));
+            CompletableFuture<List<JsonObject>> y = executor.submit(Query.from("id", Range.equals("y")));
+            assertEquals(3, manual.scheduled.size());
+            manual.scheduled.get(0).run();
+            manual.scheduled.get(1).run();
+            assertEquals(1, fetched.size());
+            assertFalse(x.isDone());
+            manual.scheduled.get(2).run();
+            assertEquals(2, fetched.size());
+            assertEquals(Collections.singletonList(TABLE.get(1)), x.get(1, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList(TABLE.get(2)), y.get(1, TimeUnit.SECONDS));
+        } finally {
+            manual.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sendsFullBatchImmediately() throws InterruptedException, ExecutionException, TimeoutException {
+        CoalescingExecutor executor = new CoalescingExecutor(this::backend, scheduler, 1, TimeUnit.HOURS, 3);
+        CompletableFuture<List<JsonObject>> x = executor.submit(Query.from("id", Range.equals("x")));
+        CompletableFuture<List<JsonObject>> y = executor.submit(Query.from("id", Range.equals("y")));
+        assertTrue(fetched.isEmpty());
+        CompletableFuture<List<JsonObject>> big = executor.submit(Query.from("n", Range.greaterThan(2)));
+        assertEquals(1, fetched.size());
+        assertEquals(Collections.singletonList(TABLE.get(1)), x.get(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(TABLE.get(2)), y.get(1, TimeUnit.SECONDS));
+        assertEquals(TABLE.subList(2, 4), big.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sendsBatchWhenWindowCloses() throws InterruptedException, ExecutionException, TimeoutException {
+        CoalescingExecutor executor = new CoalescingExecutor(this::backend, scheduler, 20, 100, TimeUnit.MILLISECONDS, 100);
+        CompletableFuture<List<JsonObject>> w = executor.submit(Query.from("id", Range.equals("w")));
+        CompletableFuture<List<JsonObject>> z = executor.submit(Query.from("id", Range.equals("z")));
+        assertEquals(Collections.singletonList(TABLE.get(0)), w.get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(TABLE.get(3)), z.get(5, TimeUnit.SECONDS));
+        assertEquals(1, fetched.size());
+    }
+}
@@ -0,0 +1,87 @@
+package com.softwareplumbers.common.abstractquery.execution;
+
+import com.softwareplumbers.common.abstractquery.JsonUtil;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import javax.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InFlightRegistryTest {
+
+    private static final List<JsonObject> ROWS = Arrays.asList(
+        JsonUtil.parseObject("{ 'x': 1 }"),
+        JsonUtil.parseObject("{ 'x': 5 }"),
+        JsonUtil.parseObject("{ 'x': 9 }")
+    );
+
+    private final List<Query> fetched = new ArrayList<>();
+    private final List<CompletableFuture<List<JsonObject>>> pending = new ArrayList<>();
+
+    private CompletableFuture<List<JsonObject>> backend(Query query) {
+        CompletableFuture<List<JsonObject>> result = new CompletableFuture<>();
+        fetched.add(query);
+        pending.add(result);
+        return result;
+    }
+
+    @Test
+    public void sharesFetchForEqualAndNarrowerQueries() throws InterruptedException, ExecutionException {
+        InFlightRegistry registry = new InFlightRegistry(this::backend);
+        CompletableFuture<List<JsonObject>> wide = registry.fetch(Query.from("x", Range.lessThan(10)));
+        CompletableFuture<List<JsonObject>> same = registry.fetch(Query.from("x", Range.lessThan(10)));
+        CompletableFuture<List<JsonObject>> narrow = registry.fetch(Query.from("x", Range.greaterThan(3)).intersect(Query.from("x", Range.lessThan(10))));
+        assertEquals(1, fetched.size());
+        assertEquals(1, registry.size());
+
+        pending.get(0).complete(ROWS);
+        assertEquals(ROWS, wide.get());
+        assertEquals(ROWS, same.get());
+        assertEquals(ROWS.subList(1, 3), narrow.get());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void fetchesQueriesNotContainedByQueryInFlight() {
+        InFlightRegistry registry = new InFlightRegistry(this::backend);
+        registry.fetch(Query.from("x", Range.lessThan(5)));
+        registry.fetch(Query.from("x", Range.lessThan(10)));
+        assertEquals(2, fetched.size());
+        pending.forEach(future -> future.complete(Collections.emptyList()));
+        registry.fetch(Query.from("x", Range.lessThan(5)));
+        assertEquals(3, fetched.size());
+    }
+
+    @Test
+    public void givesEachCallerItsOwnFuture() throws InterruptedException, ExecutionException {
+        InFlightRegistry registry = new InFlightRegistry(this::backend);
+        CompletableFuture<List<JsonObject>> first = registry.fetch(Query.from("x", Range.lessThan(10)));
+        CompletableFuture<List<JsonObject>> second = registry.fetch(Query.from("x", Range.lessThan(10)));
+        CompletableFuture<List<JsonObject>> third = registry.fetch(Query.from("x", Range.lessThan(10)));
+        assertNotSame(first, second);
+        first.cancel(false);
+        second.complete(Collections.emptyList());
+        pending.get(0).complete(ROWS);
+        assertTrue(first.isCancelled());
+        assertEquals(Collections.emptyList(), second.get());
+        assertEquals(ROWS, third.get());
+    }
+
+    @Test
+    public void propagatesFailure() {
+        InFlightRegistry registry = new InFlightRegistry(this::backend);
+        CompletableFuture<List<JsonObject>> first = registry.fetch(Query.from("x", Range.lessThan(10)));
+        CompletableFuture<List<JsonObject>> second = registry.fetch(Query.from("x", Range.lessThan(5)));
+        pending.get(0).completeExceptionally(new IllegalStateException("backend down"));
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.isCompletedExceptionally());
+        assertEquals(0, registry.size());
+    }
+}
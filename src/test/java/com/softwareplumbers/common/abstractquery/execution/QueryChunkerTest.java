@@ -0,0 +1,93 @@
+package com.softwareplumbers.common.abstractquery.execution;
+
+import com.softwareplumbers.common.abstractquery.JsonUtil;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import com.softwareplumbers.common.abstractquery.SQLFormatTest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryChunkerTest {
+
+    private static Query inList(int count) {
+        List<Range> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) ids.add(Range.equals(JsonUtil.parseValue(Integer.toString(i))));
+        return Query.from("id", Range.union(ids)).intersect(Query.fromJson("{ 'type': 'a' }"));
+    }
+
+    private static JsonObject row(int id, String type) {
+        return Json.createObjectBuilder().add("id", id).add("type", type).build();
+    }
+
+    @Test
+    public void leavesSmallQueryAlone() {
+        Query query = inList(5);
+        assertEquals(Collections.singletonList(query), new QueryChunker(QueryChunker.terms(), 10).chunk(query));
+    }
+
+    @Test
+    public void splitsInListByTerms() {
+        Query query = inList(250);
+        ToLongFunction<Query> terms = QueryChunker.terms();
+        assertEquals(251, terms.applyAsLong(query));
+        List<Query> chunks = new QueryChunker(terms, 100).chunk(query);
+        assertEquals(3, chunks.size());
+        for (Query chunk : chunks) assertTrue(chunk.toString(), terms.applyAsLong(chunk) <= 100);
+        for (int id = -1; id <= 250; id++) {
+            for (String type : Arrays.asList("a", "b")) {
+                JsonObject item = row(id, type);
+                long matches = chunks.stream().filter(chunk -> chunk.containsItem(item)).count();
+                assertEquals(item.toString(), query.containsItem(item) ? 1 : 0, matches);
+            }
+        }
+    }
+
+    @Test
+    public void splitsUnionBySqlLength() {
+        Query query = inList(40).union(Query.fromJson("{ 'type': 'b', 'size': [1,5] }"));
+        ToLongFunction<Query> bytes = QueryChunker.bytes(SQLFormatTest.GENERIC_FORMATTER);
+        List<Query> chunks = new QueryChunker(bytes, 200).chunk(query);
+        assertTrue(chunks.size() > 1);
+        for (Query chunk : chunks) assertTrue(chunk.toString(), bytes.applyAsLong(chunk) <= 200);
+        for (int id = -1; id <= 40; id++) {
+            for (int size = 0; size < 6; size++) {
+                JsonObject item = Json.createObjectBuilder().add("id", id).add("type", size % 2 == 0 ? "a" : "b").add("size", size).build();
+                assertEquals(item.toString(), query.containsItem(item), chunks.stream().anyMatch(chunk -> chunk.containsItem(item)));
+            }
+        }
+    }
+
+    @Test
+    public void returnsUnsplittableQueryWhole() {
+        Query query = Query.fromJson("{ 'x': [1,5], 'y': 'a' }");
+        assertEquals(Collections.singletonList(query), new QueryChunker(QueryChunker.values(), 1).chunk(query));
+    }
+
+    @Test
+    public void mergesResultsByKey() throws InterruptedException, ExecutionException {
+        List<JsonObject> table = Arrays.asList(row(1, "a"), row(2, "a"), row(3, "b"), row(4, "a"));
+        Query query = Query.from("id", Range.lessThan(3)).union(Query.from("type", Range.equals("a")));
+        List<Query> fetched = new ArrayList<>();
+        List<JsonObject> result = new QueryChunker(QueryChunker.terms(), 1).execute(
+            query,
+            chunk -> {
+                fetched.add(chunk);
+                return CompletableFuture.completedFuture(table.stream().filter(chunk).collect(Collectors.toList()));
+            },
+            row -> row.getInt("id")
+        ).get();
+        assertEquals(2, fetched.size());
+        assertEquals(Arrays.asList(row(1, "a"), row(2, "a"), row(4, "a")), result);
+    }
+}
@@ -0,0 +1,115 @@
+package com.softwareplumbers.common.abstractquery.execution;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SortedMergeTest {
+
+    private static final List<JsonObject> TABLE = IntStream.range(0, 20)
+        .mapToObj(id -> Json.createObjectBuilder().add("id", id).add("n", id % 7).build())
+        .collect(Collectors.toList());
+
+    /** Source which counts the rows pulled from it, and records whether it has been closed. */
+    private static class Source implements Iterator<JsonObject>, AutoCloseable {
+        final Iterator<JsonObject> rows;
+        int pulled;
+        boolean closed;
+        Source(List<JsonObject> rows) { this.rows = rows.iterator(); }
+        @Override public boolean hasNext() { return rows.hasNext(); }
+        @Override public JsonObject next() { pulled++; return rows.next(); }
+        @Override public void close() { closed = true; }
+    }
+
+    private final List<Source> sources = new ArrayList<>();
+
+    private Iterator<JsonObject> execute(Query query) {
+        Source source = new Source(TABLE.stream().filter(query).collect(Collectors.toList()));
+        sources.add(source);
+        return source;
+    }
+
+    private int pulled() {
+        return sources.stream().mapToInt(source -> source.pulled).sum();
+    }
+
+    private static List<Integer> ids(Iterator<JsonObject> rows) {
+        List<Integer> result = new ArrayList<>();
+        rows.forEachRemaining(row -> result.add(row.getInt("id")));
+        return result;
+    }
+
+    @Test
+    public void mergesAndDeduplicatesDisjuncts() {
+        Query query = Query.from("id", Range.lessThan(5))
+            .union(Query.from("n", Range.equals(3)))
+            .union(Query.from("id", Range.between(3, 12)).intersect(Query.from("n", Range.greaterThan(4))));
+        SortedMerge<Integer> merge = SortedMerge.of(query, this::execute, row -> row.getInt("id"));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 10, 17), ids(merge));
+        assertEquals(3, sources.size());
+        assertTrue(sources.stream().allMatch(source -> source.closed));
+    }
+
+    @Test
+    public void pullsRowsOnlyAsNeeded() {
+        Query query = Query.from("n", Range.equals(1)).union(Query.from("n", Range.equals(2)));
+        try (SortedMerge<Integer> merge = SortedMerge.of(query, this::execute, row -> row.getInt("id"))) {
+            assertTrue(sources.isEmpty() || sources.stream().allMatch(source -> source.pulled == 0));
+            assertEquals(1, merge.next().getInt("id"));
+            assertEquals(2, pulled());
+            assertEquals(2, merge.next().getInt("id"));
+            assertEquals(3, pulled());
+            assertTrue(merge.hasNext());
+            assertEquals(4, pulled());
+            assertTrue(sources.stream().allMatch(source -> source.pulled <= 2));
+        }
+        assertTrue(sources.stream().allMatch(source -> source.closed));
+    }
+
+    @Test
+    public void streamsInReverseOrder() {
+        Query query = Query.from("n", Range.equals(0)).union(Query.from("id", Range.greaterThan(15)));
+        List<Integer> ids = SortedMerge.of(query, q -> {
+            List<JsonObject> rows = TABLE.stream().filter(q).collect(Collectors.toList());
+            Collections.reverse(rows);
+            return rows.iterator();
+        }, row -> row.getInt("id"), (a, b) -> Integer.compare(b, a)).stream().map(row -> row.getInt("id")).collect(Collectors.toList());
+        assertEquals(Arrays.asList(19, 18, 17, 16, 14, 7, 0), ids);
+    }
+
+    @Test
+    public void closesEverySourceWhenOneFailsToClose() {
+        List<Source> closing = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String message = "close " + i;
+            closing.add(new Source(TABLE) {
+                @Override public void close() { super.close(); if (!message.equals("close 1")) throw new IllegalStateException(message); }
+            });
+        }
+        SortedMerge<Integer> merge = new SortedMerge<>(new ArrayList<>(closing), row -> row.getInt("id"), Integer::compare);
+        merge.next();
+        try {
+            merge.close();
+            fail("close did not fail");
+        } catch (IllegalStateException e) {
+            assertEquals(1, e.getSuppressed().length);
+        }
+        assertTrue(closing.stream().allMatch(source -> source.closed));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsUnsortedSource() {
+        ids(new SortedMerge<Integer>(Arrays.asList(Arrays.asList(TABLE.get(3), TABLE.get(1)).iterator()), row -> row.getInt("id"), Integer::compare));
+    }
+}
@@ -0,0 +1,90 @@
+package com.softwareplumbers.common.abstractquery.index;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PartitionCatalogueTest {
+
+    private static final List<String> TENANTS = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+
+    private static String day(int day) {
+        return String.format("2024-%02d-%02d", day / 28 + 1, day % 28 + 1);
+    }
+
+    private static Query partition(String tenant, int day) {
+        return Query.from("tenant", Range.equals(tenant)).intersect(Query.from("day", Range.between(day(day), day(day + 1))));
+    }
+
+    private static PartitionCatalogue<String> catalogue() {
+        PartitionCatalogue<String> catalogue = new PartitionCatalogue<>();
+        for (String tenant : TENANTS)
+            for (int day = 0; day < 300; day++)
+                catalogue.put(tenant + day, partition(tenant, day));
+        return catalogue;
+    }
+
+    @Test
+    public void findsOnlyIntersectingPartitions() {
+        PartitionCatalogue<String> catalogue = catalogue();
+        assertEquals(2400, catalogue.size());
+        Query query = Query.from("tenant", Range.equals("c"))
+            .intersect(Query.from("day", Range.between(day(10), day(13))))
+            .intersect(Query.from("size", Range.greaterThan(5)));
+        List<PartitionCatalogue.Match<String>> matches = catalogue.prune(query);
+        assertEquals(Arrays.asList("c10", "c11", "c12"), matches.stream().map(match -> match.partition).collect(Collectors.toList()));
+        for (PartitionCatalogue.Match<String> match : matches)
+            assertEquals(Query.from("size", Range.greaterThan(5)), match.residual);
+    }
+
+    @Test
+    public void keepsConstraintsNotImpliedByPartition() {
+        PartitionCatalogue<String> catalogue = catalogue();
+        Query query = Query.from("day", Range.between(day(299), "2024-11-20T12"))
+            .union(Query.from("tenant", Range.equals("h")).intersect(Query.from("day", Range.between(day(0), day(1)))));
+        List<PartitionCatalogue.Match<String>> matches = catalogue.prune(query);
+        List<String> expected = new ArrayList<>();
+        expected.add("h0");
+        for (String tenant : TENANTS) expected.add(tenant + 299);
+        assertEquals(expected, matches.stream().map(match -> match.partition).sorted((a, b) -> expected.indexOf(a) - expected.indexOf(b)).collect(Collectors.toList()));
+        for (PartitionCatalogue.Match<String> match : matches) {
+            if (match.partition.equals("h0"))
+                assertEquals(Query.UNBOUNDED, match.residual);
+            else
+                assertEquals(Query.from("day", Range.between(day(299), "2024-11-20T12")), match.residual);
+        }
+    }
+
+    @Test
+    public void matchesBruteForceScan() {
+        PartitionCatalogue<String> catalogue = new PartitionCatalogue<>();
+        List<Query> descriptors = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Query descriptor = i % 3 == 0
+                ? Query.from("x", Range.between(i, i + 7))
+                : Query.from("x", Range.greaterThan(i)).intersect(Query.from("y", Range.lessThan(i % 17)));
+            descriptors.add(descriptor);
+            catalogue.put(Integer.toString(i), descriptor);
+        }
+        catalogue.remove("3");
+        descriptors.set(3, Query.EMPTY);
+        List<Query> queries = Arrays.asList(
+            Query.from("x", Range.between(50, 60)),
+            Query.from("y", Range.greaterThanOrEqual(12)),
+            Query.from("x", Range.lessThan(10)).union(Query.from("y", Range.equals(3)).intersect(Query.from("x", Range.greaterThan(190)))),
+            Query.from("z", Range.equals("q"))
+        );
+        for (Query query : queries) {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < descriptors.size(); i++)
+                if (descriptors.get(i).intersects(query) != Boolean.FALSE) expected.add(Integer.toString(i));
+            assertEquals(query.toString(), expected, catalogue.prune(query).stream().map(match -> match.partition).collect(Collectors.toList()));
+        }
+    }
+}
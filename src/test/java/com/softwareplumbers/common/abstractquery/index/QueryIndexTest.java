@@ -0,0 +1,184 @@
+package com.softwareplumbers.common.abstractquery.index;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryIndexTest {
+
+    private static Query stored(int i) {
+        switch (i % 4) {
+            case 0: return Query.from("x", Range.between(i, i + 10));
+            case 1: return Query.from("x", Range.greaterThan(i)).intersect(Query.from("y", Range.lessThan(i % 13)));
+            case 2: return Query.from("y", Range.equals(i % 13)).union(Query.from("x", Range.lessThan(i / 2)).intersect(Query.from("y", Range.greaterThan(5))));
+            default: return Query.from("z", Query.from("w", Range.between(i % 7, i % 7 + 3)));
+        }
+    }
+
+    private static QueryIndex<Integer> index(List<Query> queries) {
+        QueryIndex<Integer> index = new QueryIndex<>();
+        for (int i = 0; i < 400; i++) {
+            queries.add(stored(i));
+            index.put(i, stored(i));
+        }
+        return index;
+    }
+
+    private static final List<Query> PROBES = Arrays.asList(
+        Query.from("x", Range.between(100, 103)),
+        Query.from("x", Range.between(100, 103)).intersect(Query.from("y", Range.equals(2))),
+        Query.from("y", Range.equals(4)),
+        Query.from("x", Range.lessThan(3)).union(Query.from("y", Range.greaterThan(11))),
+        Query.from("z", Query.from("w", Range.between(4, 5))),
+        Query.UNBOUNDED
+    );
+
+    @Test
+    public void findsSameQueriesAsLinearScan() {
+        List<Query> queries = new ArrayList<>();
+        QueryIndex<Integer> index = index(queries);
+        for (Query probe : PROBES) {
+            List<Integer> containing = new ArrayList<>();
+            List<Integer> intersecting = new ArrayList<>();
+            for (int i = 0; i < queries.size(); i++) {
+                Query stored = queries.get(i);
+                List<Query> cubes = probe instanceof Query.UnionCube ? ((Query.UnionCube)probe).getMembers() : Arrays.asList(probe);
+                if (cubes.stream().allMatch(cube -> stored.contains(cube) == Boolean.TRUE)) containing.add(i);
+                if (stored.intersects(probe) != Boolean.FALSE) intersecting.add(i);
+            }
+            assertEquals(probe.toString(), containing, index.getContaining(probe));
+            assertEquals(probe.toString(), intersecting, index.getIntersecting(probe));
+        }
+    }
+
+    @Test
+    public void findsQueriesContainingItem() {
+        List<Query> queries = new ArrayList<>();
+        QueryIndex<Integer> index = index(queries);
+        Random random = new Random(7);
+        for (int n = 0; n < 50; n++) {
+            JsonObject item = Json.createObjectBuilder()
+                .add("x", random.nextInt(420))
+                .add("y", random.nextInt(14))
+                .add("z", Json.createObjectBuilder().add("w", random.nextInt(10)))
+                .build();
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < queries.size(); i++)
+                if (queries.get(i).containsItem(item) != Boolean.FALSE) expected.add(i);
+            assertEquals(item.toString(), expected, index.getContainingItem(item));
+        }
+    }
+
+    @Test
+    public void findsQueriesContainingItemOfUnexpectedType() {
+        QueryIndex<String> index = new QueryIndex<>();
+        index.put("number", Query.from("x", Range.lessThan(10)));
+        index.put("string", Query.from("x", Range.lessThan("m")));
+        JsonObject item = Json.createObjectBuilder().add("x", "a").build();
+        List<String> expected = new ArrayList<>();
+        for (String key : Arrays.asList("number", "string")) {
+            try {
+                if (index.get(key).containsItem(item) != Boolean.FALSE) expected.add(key);
+            } catch (RuntimeException e) {
+                expected.add(key);
+            }
+        }
+        assertEquals(expected, index.getContainingItem(item));
+    }
+
+    /** Check that the index agrees with a linear scan, and return the time in nanoseconds taken by each. */
+    private static long[] timeLookups(int size, List<JsonObject> items) {
+        QueryIndex<Integer> index = new QueryIndex<>();
+        List<Query> queries = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            queries.add(Query.from("d" + (i % 10), Range.equals(i % (size / 2))));
+            index.put(i, queries.get(i));
+        }
+        long scan = 0;
+        long lookup = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            scan = lookup = 0;
+            for (JsonObject item : items) {
+                long start = System.nanoTime();
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < size; i++) if (queries.get(i).containsItem(item) != Boolean.FALSE) expected.add(i);
+                scan += System.nanoTime() - start;
+                start = System.nanoTime();
+                List<Integer> found = index.getContainingItem(item);
+                lookup += System.nanoTime() - start;
+                assertEquals(expected, found);
+            }
+        }
+        return new long[] { lookup, scan };
+    }
+
+    @Test
+    public void lookupScalesBetterThanLinearScan() {
+        Random random = new Random(11);
+        List<JsonObject> items = new ArrayList<>();
+        for (int n = 0; n < 50; n++) {
+            JsonObjectBuilder item = Json.createObjectBuilder();
+            for (int d = 0; d < 10; d++) item.add("d" + d, random.nextInt(1000));
+            items.add(item.build());
+        }
+        long[] small = timeLookups(2000, items);
+        long[] large = timeLookups(20000, items);
+        String times = "index " + small[0] + "ns, " + large[0] + "ns; linear scan " + small[1] + "ns, " + large[1] + "ns";
+        assertTrue(times, large[0] * 4 < large[1]);
+        assertTrue(times, large[0] < small[0] * 8);
+    }
+
+    @Test
+    public void replacesAndRemovesQueries() {
+        QueryIndex<String> index = new QueryIndex<>();
+        index.put("a", Query.from("x", Range.lessThan(10)));
+        index.put("b", Query.from("x", Range.lessThan(20)));
+        assertEquals(Arrays.asList("a", "b"), index.getContaining(Query.from("x", Range.equals(5))));
+        index.put("a", Query.from("x", Range.greaterThan(10)));
+        assertEquals(Arrays.asList("b"), index.getContaining(Query.from("x", Range.equals(5))));
+        assertTrue(index.remove("b"));
+        assertFalse(index.remove("b"));
+        assertEquals(1, index.size());
+        assertTrue(index.getContaining(Query.from("x", Range.equals(5))).isEmpty());
+        assertEquals(Query.from("x", Range.greaterThan(10)), index.get("a"));
+    }
+
+    @Test
+    public void supportsConcurrentUpdates() throws Exception {
+        QueryIndex<Integer> index = new QueryIndex<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                tasks.add(executor.submit(() -> {
+                    for (int i = thread; i < 2000; i += 4) {
+                        index.put(i, stored(i));
+                        index.getIntersecting(Query.from("x", Range.between(i, i + 5)));
+                        if (i % 8 == thread) index.remove(i);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) task.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        int expected = 0;
+        for (int i = 0; i < 2000; i++) if (i % 8 != i % 4) expected++;
+        assertEquals(expected, index.size());
+        assertEquals(Arrays.asList(396, 404), index.getContaining(Query.from("x", Range.between(405, 406))));
+    }
+}
@@ -0,0 +1,65 @@
+package com.softwareplumbers.common.abstractquery.index;
+
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ViewMatcherTest {
+
+    private static ViewMatcher<String> views() {
+        ViewMatcher<String> views = new ViewMatcher<>();
+        views.put("open", Query.fromJson("{ 'status': 'open' }"), 10000);
+        views.put("openEU", Query.fromJson("{ 'status': 'open', 'region': 'EU' }"), 2000);
+        views.put("openEUrecent", Query.fromJson("{ 'status': 'open', 'region': 'EU', 'day': ['2024-06-01', null] }"), 300);
+        views.put("large", Query.fromJson("{ 'total': [1000, null] }"), 500);
+        for (int i = 0; i < 300; i++)
+            views.put("customer" + i, Query.from("customer", Range.equals(i)), 50);
+        return views;
+    }
+
+    @Test
+    public void choosesSmallestContainingView() {
+        ViewMatcher<String> views = views();
+        ViewMatcher.Plan<String> plan = views.match(Query.fromJson("{ 'status': 'open', 'region': 'EU', 'total': [10,100] }"));
+        assertEquals("openEU", plan.view);
+        assertEquals(Query.fromJson("{ 'total': [10,100] }"), plan.residual);
+
+        plan = views.match(Query.fromJson("{ 'status': 'open', 'region': 'EU', 'day': ['2024-07-01', '2024-08-01'] }"));
+        assertEquals("openEUrecent", plan.view);
+        assertEquals(Query.fromJson("{ 'day': ['2024-07-01', '2024-08-01'] }"), plan.residual);
+
+        plan = views.match(Query.fromJson("{ 'status': 'open', 'customer': 17 }"));
+        assertEquals("customer17", plan.view);
+        assertEquals(Query.fromJson("{ 'status': 'open' }"), plan.residual);
+    }
+
+    @Test
+    public void returnsNullWhenNoViewContainsQuery() {
+        ViewMatcher<String> views = views();
+        assertNull(views.match(Query.fromJson("{ 'region': 'EU' }")));
+        assertNull(views.match(Query.fromJson("{ 'total': [500, 2000] }")));
+        assertNull(views.match(Query.fromJson("{ 'customer': [3, 5] }")));
+    }
+
+    @Test
+    public void matchesUnionOnlyIfViewContainsEveryMember() {
+        ViewMatcher<String> views = views();
+        ViewMatcher.Plan<String> plan = views.match(Query.fromJson("{ 'status': 'open', 'region': 'EU' }").union("{ 'status': 'open', 'customer': 3 }"));
+        assertEquals("open", plan.view);
+        assertNull(views.match(Query.fromJson("{ 'status': 'open' }").union("{ 'customer': 3 }")));
+    }
+
+    @Test
+    public void tracksRemovalAndSize() {
+        ViewMatcher<String> views = views();
+        Query query = Query.fromJson("{ 'status': 'open', 'region': 'EU' }");
+        views.setSize("open", 100);
+        assertEquals("open", views.match(query).view);
+        views.remove("open");
+        assertEquals("openEU", views.match(query).view);
+        assertEquals(Query.UNBOUNDED, views.match(query).residual);
+        assertEquals(303, views.size());
+    }
+}